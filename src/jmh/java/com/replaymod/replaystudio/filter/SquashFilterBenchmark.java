@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.filter;
+
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Chunk;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Column;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.TileEntity;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityHeadLook;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityMovement;
+import com.replaymod.replaystudio.protocol.registry.DimensionType;
+import com.replaymod.replaystudio.stream.IteratorStream;
+import com.replaymod.replaystudio.stream.PacketStream;
+import com.replaymod.replaystudio.util.DPosition;
+import com.replaymod.replaystudio.util.IPosition;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Peak heap used while squashing streams of different lengths, made up of chunk loads, block changes and entity
+ * movement, once without a memory budget and once with a budget which requires spilling every so often.
+ * <p>
+ * Each invocation squashes an entire stream, reporting the peak heap usage above the baseline before it as the
+ * {@code peakHeapMb} secondary result. Packets are generated while squashing, so the stream itself does not count
+ * towards the baseline. Run with {@code -prof gc} to also see the allocation rate.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class SquashFilterBenchmark {
+    private static final int CHUNKS = 32; // along each axis
+    private static final int ENTITIES = 100;
+
+    @Param({"10000", "50000", "200000"})
+    public int packets;
+
+    @Param({"unlimited", "16"})
+    public String memoryBudgetMb;
+
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+    private File spillDirectory;
+
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class HeapUsage {
+        public long peakHeapMb;
+
+        private long baseline;
+
+        @Setup(Level.Invocation)
+        public void reset() {
+            System.gc();
+            baseline = 0;
+            for (MemoryPoolMXBean pool : heapPools()) {
+                baseline += pool.getUsage().getUsed();
+                pool.resetPeakUsage();
+            }
+        }
+
+        void record() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : heapPools()) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+            peakHeapMb = Math.max(0, peak - baseline) / 1024 / 1024;
+        }
+
+        private static List<MemoryPoolMXBean> heapPools() {
+            List<MemoryPoolMXBean> pools = new ArrayList<>();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pools.add(pool);
+                }
+            }
+            return pools;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        spillDirectory = Files.createTempDirectory("replaystudio-bench").toFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        spillDirectory.delete();
+    }
+
+    @Benchmark
+    public int squash(HeapUsage heap) throws IOException {
+        SquashFilter filter = new SquashFilter(null, "minecraft:overworld", new DimensionType("minecraft:overworld"));
+        if (!"unlimited".equals(memoryBudgetMb)) {
+            filter.setMemoryBudget(Long.parseLong(memoryBudgetMb) * 1024L * 1024L);
+        }
+        filter.setSpillDirectory(spillDirectory);
+
+        List<PacketData> result = new ArrayList<>();
+        PacketStream stream = new IteratorStream(result.listIterator(), (PacketStream.FilterInfo) null);
+        Random random = new Random(42);
+        for (int i = 0; i < packets; i++) {
+            filter.onPacket(stream, new PacketData(i * 10L, randomPacket(random)));
+        }
+        filter.onEnd(stream, packets * 10L);
+        heap.record();
+        result.forEach(PacketData::release);
+        return result.size();
+    }
+
+    private Packet randomPacket(Random random) throws IOException {
+        int x = random.nextInt(CHUNKS);
+        int z = random.nextInt(CHUNKS);
+        int entityId = random.nextInt(ENTITIES);
+        switch (random.nextInt(4)) {
+            case 0:
+                return randomChunk(random, x, z);
+            case 1:
+                IPosition pos = new IPosition(x * 16 + random.nextInt(16), random.nextInt(64), z * 16 + random.nextInt(16));
+                return PacketBlockChange.write(registry, pos, random.nextInt(50));
+            case 2:
+                return PacketEntityHeadLook.write(registry, entityId, random.nextInt(256) / 256f * 360);
+            default:
+                DPosition delta = new DPosition((random.nextInt(256) - 128) / 32.0, 0, (random.nextInt(256) - 128) / 32.0);
+                return PacketEntityMovement.write(registry, entityId, delta, null, true);
+        }
+    }
+
+    private Packet randomChunk(Random random, int x, int z) throws IOException {
+        Chunk[] sections = new Chunk[16];
+        for (int i = 0; i < 4; i++) {
+            sections[i] = new Chunk(registry);
+            for (int j = 0; j < 200; j++) {
+                sections[i].blocks.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), 1 + random.nextInt(50));
+            }
+        }
+        Column column = new Column(x, z, sections, null, new TileEntity[0], new CompoundTag(), new int[1024], true, null);
+        return PacketChunkData.load(column).write(registry);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.util.ByteBufExtNetInput;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a generated recording of {@link #PACKETS} packets, reported per packet. Run with {@code -prof gc} to
+ * compare the allocation rate ({@code gc.alloc.rate.norm} is in bytes per packet) alongside the throughput.
+ * <ul>
+ *     <li>{@link #readPacket()} is the full {@link ReplayInputStream} path, as used when reading a replay</li>
+ *     <li>{@link #readFramesArrayLookup()} and {@link #readFramesMapLookup()} only split the recording into frames
+ *     and decode the packet id and type of each one, the former via {@link PacketTypeRegistry#getType(int)}, the
+ *     latter via a boxed {@code HashMap<Integer, PacketType>} as the registry used to</li>
+ * </ul>
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReplayInputStreamBenchmark {
+    private static final int PACKETS = 200_000;
+    private static final PacketType[] TYPES = {
+            PacketType.Chat, PacketType.EntityHeadLook, PacketType.EntityPosition, PacketType.EntityPositionRotation,
+            PacketType.EntityVelocity, PacketType.EntityMetadata, PacketType.BlockChange, PacketType.SpawnPlayer,
+    };
+
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+    private final Map<Integer, PacketType> typeById = new HashMap<>();
+    private byte[] recording;
+
+    @Setup
+    public void setup() throws IOException {
+        for (PacketType type : PacketType.values()) {
+            int id = registry.getId(type);
+            if (id != PacketTypeRegistry.NO_ID) {
+                typeById.put(id, type);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Random random = new Random(42);
+        for (int i = 0; i < PACKETS; i++) {
+            byte[] payload = new byte[1 + random.nextInt(64)];
+            random.nextBytes(payload);
+            payload[0] = (byte) registry.getId(TYPES[random.nextInt(TYPES.length)]); // all ids fit in a single byte
+            out.writeInt(i * 5);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        recording = bytes.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int readPacket() throws IOException {
+        int sum = 0;
+        try (ReplayInputStream in = new ReplayInputStream(registry, new ByteArrayInputStream(recording),
+                ReplayMetaData.CURRENT_FILE_FORMAT_VERSION, registry.getVersion().getOriginalVersion(), false)) {
+            PacketData data;
+            while ((data = in.readPacket()) != null) {
+                sum += data.getPacket().getType().ordinal();
+                data.release();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int readFramesArrayLookup() throws IOException {
+        int sum = 0;
+        ByteBuf buf = Unpooled.wrappedBuffer(recording);
+        while (buf.isReadable()) {
+            buf.skipBytes(4); // time
+            ByteBuf frame = buf.readRetainedSlice(buf.readInt());
+            int id = new ByteBufExtNetInput(frame).readVarInt();
+            Packet packet = new Packet(registry, id, registry.getType(id), frame);
+            sum += packet.getType().ordinal();
+            packet.release();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int readFramesMapLookup() throws IOException {
+        int sum = 0;
+        ByteBuf buf = Unpooled.wrappedBuffer(recording);
+        while (buf.isReadable()) {
+            buf.skipBytes(4); // time
+            ByteBuf frame = buf.readRetainedSlice(buf.readInt());
+            int id = new ByteBufExtNetInput(frame).readVarInt();
+            Packet packet = new Packet(registry, id, typeById.get(id), frame);
+            sum += packet.getType().ordinal();
+            packet.release();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.protocol;
+
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packet id and type lookups as done for every packet that is read or written.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PacketTypeRegistryBenchmark {
+    private static final int LOOKUPS = 1024;
+
+    private PacketTypeRegistry registry;
+    private final int[] ids = new int[LOOKUPS];
+    private final PacketType[] types = new PacketType[LOOKUPS];
+
+    @Setup
+    public void setup() {
+        registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+        Random random = new Random(42);
+        PacketType[] all = PacketType.values();
+        int n = 0;
+        while (n < LOOKUPS) {
+            PacketType type = all[random.nextInt(all.length)];
+            int id = registry.getId(type);
+            if (id != PacketTypeRegistry.NO_ID) {
+                types[n] = type;
+                ids[n] = id;
+                n++;
+            }
+        }
+    }
+
+    @Benchmark
+    public int getType() {
+        int sum = 0;
+        for (int id : ids) {
+            sum += registry.getType(id).ordinal();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int getId() {
+        int sum = 0;
+        for (PacketType type : types) {
+            sum += registry.getId(type);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar.cache;
+
+import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.rar.containers.PacketStateTree;
+import com.replaymod.replaystudio.util.ByteBufExtNetInput;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Loading all state trees of a generated quick mode cache segment, as a quick mode seek into a segment which is not
+ * yet loaded does: each block of the cache is inflated once, then the delta-encoded times and packets of every tree
+ * are decoded. Run with {@code -prof gc} to also see the allocation rate.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CacheLoadBenchmark {
+    private static final int TREES = 2000;
+    private static final int UPDATES = 20; // per tree
+    private static final int BLOCK_SIZE = 64 * 1024; // same as RandomAccessReplay
+
+    @Param({"none", "deflate", "dictionary"})
+    public String codec;
+
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+    private final int[] indices = new int[TREES];
+    private ByteBuf content;
+    private CacheCodec readCodec;
+
+    @Setup
+    public void setup() throws IOException {
+        CacheCodec writeCodec;
+        switch (codec) {
+            case "none":
+                writeCodec = CacheCodec.none();
+                break;
+            case "deflate":
+                writeCodec = CacheCodec.deflate(Deflater.DEFAULT_COMPRESSION);
+                break;
+            default:
+                writeCodec = CacheCodec.dictionary(Deflater.DEFAULT_COMPRESSION, CacheCodec.DEFAULT_DICTIONARY_SIZE);
+                break;
+        }
+
+        content = Unpooled.buffer();
+        WriteableCache cache = new WriteableCache(new ByteBufOutputStream(content), BLOCK_SIZE, writeCodec);
+        Random random = new Random(42);
+        for (int i = 0; i < TREES; i++) {
+            PacketStateTree.Builder builder = new PacketStateTree.Builder();
+            int time = 0;
+            for (int j = 0; j < UPDATES; j++) {
+                time += 1 + random.nextInt(5000);
+                builder.put(time, randomPacket(random, i));
+            }
+            indices[i] = builder.build(cache);
+        }
+        cache.finish();
+
+        // Restore the codec from its header, like the quick mode cache does
+        ByteBuf header = Unpooled.buffer();
+        writeCodec.writeHeader(new StreamNetOutput(new ByteBufOutputStream(header)));
+        readCodec = CacheCodec.readHeader(new ByteBufExtNetInput(header));
+        header.release();
+    }
+
+    /**
+     * Entity metadata of some entity: mostly the same for each entity, with a few random values.
+     */
+    private Packet randomPacket(Random random, int entity) {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeInt(entity);
+        int size = 8 + random.nextInt(120);
+        for (int i = 0; i < size; i++) {
+            buf.writeByte(i % 8 == 0 ? random.nextInt() : i);
+        }
+        return new Packet(registry, PacketType.EntityMetadata, buf);
+    }
+
+    @TearDown
+    public void tearDown() {
+        content.release();
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        ReadableCache cache = new ReadableCache(content.retainedDuplicate(), new BlockCache(Long.MAX_VALUE), readCodec);
+        int loaded = 0;
+        try {
+            PacketStateTree[] trees = new PacketStateTree[TREES];
+            for (int i = 0; i < TREES; i++) {
+                trees[i] = new PacketStateTree(registry, indices[i]);
+                trees[i].load(Packet::release, cache);
+                loaded++;
+            }
+            for (PacketStateTree tree : trees) {
+                tree.unload(Packet::release, cache);
+            }
+        } finally {
+            cache.release();
+        }
+        return loaded;
+    }
+}
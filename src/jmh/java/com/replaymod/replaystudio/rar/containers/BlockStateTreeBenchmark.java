@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar.containers;
+
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
+import com.replaymod.replaystudio.protocol.registry.DimensionType;
+import com.replaymod.replaystudio.rar.PacketSink;
+import com.replaymod.replaystudio.rar.cache.ReadableCache;
+import com.replaymod.replaystudio.rar.cache.WriteableCache;
+import com.replaymod.replaystudio.util.IPosition;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Playing and rewinding the block changes of a single chunk column across the whole replay, as a quick mode seek from
+ * one end to the other does.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BlockStateTreeBenchmark {
+    private static final int TIMES = 1000;
+    private static final int CHANGES_PER_TIME = 8;
+    private static final int RESEND_INTERVAL = 100;
+
+    /**
+     * Protocol version, MultiBlockChange packets cover a whole column before 1.16.2 (754) and a single section after.
+     */
+    @Param({"340", "754"})
+    public int protocol;
+
+    private BlockStateTree tree;
+    private ReadableCache cache;
+    private int count;
+    private final PacketSink sink = packet -> {
+        count++;
+        packet.release();
+    };
+
+    @Setup
+    public void setup() throws IOException {
+        PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.getProtocol(protocol), State.PLAY);
+        DimensionType dimension = new DimensionType("minecraft:overworld");
+        Random random = new Random(42);
+
+        PacketChunkData.Chunk[] chunks = new PacketChunkData.Chunk[dimension.getSections()];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new PacketChunkData.Chunk(registry);
+            for (int j = 0; j < 4096; j++) {
+                chunks[i].blocks.set(j & 15, j >> 8, j >> 4 & 15, random.nextInt(16));
+            }
+        }
+
+        BlockStateTree.Builder builder = new BlockStateTree.Builder(registry, dimension, 0, 0, chunks);
+        for (int t = 1; t <= TIMES; t++) {
+            int time = t * 50;
+            for (int j = 0; j < CHANGES_PER_TIME; j++) {
+                IPosition pos = new IPosition(random.nextInt(16), random.nextInt(dimension.getSections() * 16), random.nextInt(16));
+                builder.update(time, new PacketBlockChange(pos, random.nextInt(16)));
+            }
+            if (t % RESEND_INTERVAL == 0) {
+                // The server re-sends the whole column with a few changes
+                PacketChunkData.Chunk[] resent = new PacketChunkData.Chunk[chunks.length];
+                for (int i = 0; i < resent.length; i++) {
+                    resent[i] = new PacketChunkData.Chunk(registry);
+                    for (int j = 0; j < 4096; j++) {
+                        int x = j & 15, y = j >> 8, z = j >> 4 & 15;
+                        resent[i].blocks.set(x, y, z, random.nextInt(100) == 0 ? random.nextInt(16) : chunks[i].blocks.get(x, y, z));
+                    }
+                }
+                builder.update(time, resent);
+                chunks = resent;
+            }
+        }
+
+        ByteBuf buf = Unpooled.buffer();
+        int index = builder.build(new WriteableCache(new ByteBufOutputStream(buf)));
+        cache = new ReadableCache(buf);
+        tree = new BlockStateTree(registry, index);
+        tree.load(Packet::release, cache);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        tree.unload(Packet::release, cache);
+        cache.release();
+    }
+
+    @Benchmark
+    public int play() throws IOException {
+        count = 0;
+        tree.play(sink, -1, TIMES * 50);
+        return count;
+    }
+
+    @Benchmark
+    public int rewind() throws IOException {
+        count = 0;
+        tree.rewind(sink, TIMES * 50, -1);
+        return count;
+    }
+}
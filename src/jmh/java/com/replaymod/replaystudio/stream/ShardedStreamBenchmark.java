@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.stream;
+
+import com.google.gson.JsonObject;
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.filter.RemoveFilter;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Filtering a replay with one or multiple shards, once with mapped (the temporary recording of an open replay file)
+ * and once with deflated packet data (where the executor falls back to a single stream).
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShardedStreamBenchmark {
+    private static final int PACKETS = 500_000;
+
+    @Param({"1", "2", "4"})
+    public int shards;
+
+    @Param({"true", "false"})
+    public boolean compressed;
+
+    private final Studio studio = new ReplayStudio();
+    private File folder;
+    private ReplayFile replay;
+
+    @Setup
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("replaystudio-bench").toFile();
+        PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+        replay = new ZipReplayFile(studio, new File(folder, "bench.mcpr"));
+        replay.writeMetaData(registry, new ReplayMetaData());
+        Random random = new Random(42);
+        PacketType[] types = {PacketType.KeepAlive, PacketType.Chat, PacketType.EntityHeadLook};
+        try (ReplayOutputStream out = replay.writePacketData()) {
+            for (int i = 0; i < PACKETS; i++) {
+                byte[] payload = new byte[random.nextInt(200)];
+                random.nextBytes(payload);
+                out.write(i * 10L, new Packet(registry, types[random.nextInt(types.length)], Unpooled.wrappedBuffer(payload)));
+            }
+        }
+        if (compressed) {
+            replay.save();
+        }
+        replay.getSeekIndex(); // built once, not part of the measurement
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        replay.close();
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long run() throws IOException {
+        ShardedStreamExecutor executor = new ShardedStreamExecutor(replay,
+                PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.LOGIN), shards);
+        RemoveFilter filter = new RemoveFilter();
+        JsonObject config = new JsonObject();
+        config.addProperty("type", PacketType.KeepAlive.name());
+        filter.init(studio, config);
+        executor.addFilter(filter);
+        return executor.run(null);
+    }
+}
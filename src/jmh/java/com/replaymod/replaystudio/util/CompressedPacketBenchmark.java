@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Writing and reading a single packet in the compressed format used by the random access replay cache, with and
+ * without the threshold below which packets are stored raw.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompressedPacketBenchmark {
+    @Param({"16", "48", "256", "4096"})
+    public int size;
+
+    @Param({"0", "64"})
+    public int threshold;
+
+    private PacketTypeRegistry registry;
+    private Packet packet;
+    private ByteBuf out;
+    private ByteBuf encoded;
+    private final ZlibPool zlib = new ZlibPool();
+
+    @Setup
+    public void setup() throws IOException {
+        registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+        Random random = new Random(42);
+        ByteBuf buf = Unpooled.buffer(size);
+        for (int i = 0; i < size; i++) {
+            buf.writeByte(i % 4 == 0 ? random.nextInt() : i / 64);
+        }
+        packet = new Packet(registry, PacketType.EntityMetadata, buf);
+        out = Unpooled.buffer(size * 2 + 16);
+        encoded = Unpooled.buffer(size * 2 + 16);
+        Utils.writeCompressedPacket(new ByteBufExtNetOutput(encoded), packet, threshold, Deflater.DEFAULT_COMPRESSION, null, zlib);
+    }
+
+    @TearDown
+    public void tearDown() {
+        packet.release();
+        out.release();
+        encoded.release();
+        zlib.close();
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        out.clear();
+        Utils.writeCompressedPacket(new ByteBufExtNetOutput(out), packet, threshold, Deflater.DEFAULT_COMPRESSION, null, zlib);
+        return out.writerIndex();
+    }
+
+    @Benchmark
+    public int read() throws IOException {
+        Packet read = Utils.readCompressedPacket(registry, new ByteBufExtNetInput(encoded.duplicate()), null, zlib);
+        try {
+            return read.getBuf().readableBytes();
+        } finally {
+            read.release();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityMovement;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracting the entity id and applying the movement of entity movement packets, as done by the squash filter and
+ * the entity position tracker for most packets of a replay, with the boxed and the primitive variants.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntityMovementBenchmark {
+    private static final int PACKETS = 1024;
+
+    private final Packet[] packets = new Packet[PACKETS];
+    private final MutableLocation mutableLocation = new MutableLocation();
+
+    @Setup
+    public void setup() throws IOException {
+        PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+        Random random = new Random(42);
+        for (int i = 0; i < PACKETS; i++) {
+            DPosition delta = new DPosition(random.nextInt(64) / 32.0, random.nextInt(64) / 32.0, random.nextInt(64) / 32.0);
+            Pair<Float, Float> rotation = random.nextBoolean() ? Pair.of(random.nextFloat() * 360, random.nextFloat() * 180 - 90) : null;
+            packets[i] = PacketEntityMovement.write(registry, random.nextInt(100), delta, rotation, true);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Packet packet : packets) {
+            packet.release();
+        }
+    }
+
+    @Benchmark
+    public double boxed() throws IOException {
+        double sum = 0;
+        Location location = Location.NULL;
+        for (Packet packet : packets) {
+            Integer entityId = PacketUtils.getEntityId(packet);
+            location = PacketUtils.updateLocation(location, packet);
+            sum += entityId + location.getX();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double primitive() throws IOException {
+        double sum = 0;
+        MutableLocation location = mutableLocation.set(Location.NULL);
+        for (Packet packet : packets) {
+            int entityId = PacketUtils.getEntityIdOrMinus1(packet);
+            PacketUtils.updateLocation(location, packet);
+            sum += entityId + location.getX();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a deflated replay entry with one (plain {@link java.util.zip.DeflaterOutputStream}) versus multiple
+ * ({@link ParallelDeflaterOutputStream}) compression threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelDeflaterBenchmark {
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        // Roughly as compressible as real packet data
+        Random random = new Random(42);
+        data = new byte[16 * 1024 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 4 == 0 ? random.nextInt() : i / 4096);
+        }
+    }
+
+    @Benchmark
+    public void writeEntry() throws IOException {
+        try (RawZipOutputStream out = new RawZipOutputStream(ByteStreams.nullOutputStream())) {
+            out.setCompressionThreads(threads, ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE);
+            try (OutputStream entryOut = out.putNextEntry("recording.tmcpr")) {
+                for (int i = 0; i < data.length; i += 8192) {
+                    entryOut.write(data, i, 8192);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.github.steveice10.packetlib.io.NetInput;
+import com.github.steveice10.packetlib.io.NetOutput;
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetInput;
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing runs of VarInts with packetlib's byte-by-byte implementation versus the fast paths of
+ * {@link ByteBufExtNetInput} and {@link ByteBufExtNetOutput}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VarIntBenchmark {
+    private static final int COUNT = 4096;
+
+    /**
+     * Maximum number of bits per value, 7 means all VarInts are one byte long, 32 mostly gives five byte ones.
+     */
+    @Param({"7", "14", "32"})
+    public int bits;
+
+    private final int[] values = new int[COUNT];
+    private final int[] read = new int[COUNT];
+    private ByteBuf encoded;
+    private ByteBuf out;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < COUNT; i++) {
+            values[i] = bits == 32 ? random.nextInt() : random.nextInt(1 << bits);
+        }
+        encoded = Unpooled.buffer();
+        NetOutput netOut = new ByteBufNetOutput(encoded);
+        for (int value : values) {
+            netOut.writeVarInt(value);
+        }
+        out = Unpooled.buffer(encoded.readableBytes());
+    }
+
+    private int read(NetInput in) throws IOException {
+        int sum = 0;
+        for (int i = 0; i < COUNT; i++) {
+            sum += in.readVarInt();
+        }
+        return sum;
+    }
+
+    private int write(NetOutput netOut) throws IOException {
+        out.clear();
+        for (int value : values) {
+            netOut.writeVarInt(value);
+        }
+        return out.writerIndex();
+    }
+
+    @Benchmark
+    public int readPacketlib() throws IOException {
+        return read(new ByteBufNetInput(encoded.duplicate()));
+    }
+
+    @Benchmark
+    public int readExt() throws IOException {
+        return read(new ByteBufExtNetInput(encoded.duplicate()));
+    }
+
+    @Benchmark
+    public int[] readExtBulk() throws IOException {
+        new ByteBufExtNetInput(encoded.duplicate()).readVarInts(read, COUNT);
+        return read;
+    }
+
+    @Benchmark
+    public int writePacketlib() throws IOException {
+        return write(new ByteBufNetOutput(out));
+    }
+
+    @Benchmark
+    public int writeExt() throws IOException {
+        return write(new ByteBufExtNetOutput(out));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Re-writing a replay file whose packet data did not change: copying the entries verbatim (as
+ * {@link com.replaymod.replaystudio.replay.ZipReplayFile#saveTo(File)} does) versus inflating and deflating them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipCopyBenchmark {
+    @Param({"32"})
+    public int recordingMegabytes;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("replay", ".mcpr");
+        // Roughly as compressible as real packet data
+        Random random = new Random(42);
+        byte[] recording = new byte[recordingMegabytes * 1024 * 1024];
+        for (int i = 0; i < recording.length; i++) {
+            recording[i] = (byte) (i % 4 == 0 ? random.nextInt() : i / 4096);
+        }
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new ZipEntry("metaData.json"));
+            out.write("{}".getBytes());
+            out.putNextEntry(new ZipEntry("recording.tmcpr"));
+            out.write(recording);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.delete(file.toPath());
+    }
+
+    @Benchmark
+    public void copyEntries() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             RawZipOutputStream out = new RawZipOutputStream(ByteStreams.nullOutputStream())) {
+            ZipCentralDirectory directory = ZipCentralDirectory.read(channel);
+            for (ZipCentralDirectory.Entry entry : directory.getEntries()) {
+                out.copyEntry(directory, entry);
+            }
+        }
+    }
+
+    @Benchmark
+    public void recompressEntries() throws IOException {
+        try (ZipFile zipFile = new ZipFile(file);
+             ZipOutputStream out = new ZipOutputStream(ByteStreams.nullOutputStream())) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    ByteStreams.copy(in, out);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressing and decompressing a single packet-sized buffer with a new zlib codec (which is ended right away, the
+ * best case without a pool) versus one reused from a {@link ZlibPool} (one per thread, like each cache has its own).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZlibPoolBenchmark {
+    @Param({"64", "512", "8192"})
+    public int size;
+
+    private byte[] data;
+    private byte[] compressed;
+    private byte[] out;
+    private final ZlibPool zlib = new ZlibPool();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 4 == 0 ? random.nextInt() : i / 64);
+        }
+        out = new byte[size * 2 + 64];
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        int len = deflater.deflate(out);
+        deflater.end();
+        compressed = new byte[len];
+        System.arraycopy(out, 0, compressed, 0, len);
+    }
+
+    @TearDown
+    public void tearDown() {
+        zlib.close();
+    }
+
+    private int deflate(Deflater deflater) {
+        deflater.setInput(data);
+        deflater.finish();
+        return deflater.deflate(out);
+    }
+
+    private int inflate(Inflater inflater) throws DataFormatException {
+        inflater.setInput(compressed);
+        return inflater.inflate(out, 0, size);
+    }
+
+    @Benchmark
+    public int deflateNew() {
+        Deflater deflater = new Deflater();
+        try {
+            return deflate(deflater);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Benchmark
+    public int deflatePooled() {
+        return deflate(zlib.deflater());
+    }
+
+    @Benchmark
+    public int inflateNew() throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            return inflate(inflater);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Benchmark
+    public int inflatePooled() throws DataFormatException {
+        return inflate(zlib.inflater());
+    }
+}
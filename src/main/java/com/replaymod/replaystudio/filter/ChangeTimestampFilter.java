@@ -23,7 +23,9 @@ import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.Studio;
 import com.replaymod.replaystudio.stream.PacketStream;
 
-public class ChangeTimestampFilter implements StreamFilter {
+import java.util.List;
+
+public class ChangeTimestampFilter implements ParallelizableFilter {
 
     private long offset;
 
@@ -37,6 +39,18 @@ public class ChangeTimestampFilter implements StreamFilter {
         offset = config.get("offset").getAsLong();
     }
 
+    @Override
+    public ParallelizableFilter split() {
+        ChangeTimestampFilter copy = new ChangeTimestampFilter();
+        copy.offset = offset;
+        return copy;
+    }
+
+    @Override
+    public void merge(List<ParallelizableFilter> shards) {
+
+    }
+
     @Override
     public void onStart(PacketStream stream) {
 
@@ -30,6 +30,7 @@ import com.replaymod.replaystudio.protocol.registry.DimensionType;
 import com.replaymod.replaystudio.stream.PacketStream;
 
 import java.io.IOException;
+import java.util.EnumSet;
 
 public class DimensionTracker implements StreamFilter {
 
@@ -37,6 +38,11 @@ public class DimensionTracker implements StreamFilter {
     public String dimension;
     public DimensionType dimensionType;
 
+    @Override
+    public EnumSet<PacketType> getInterests() {
+        return EnumSet.of(PacketType.JoinGame, PacketType.Respawn);
+    }
+
     @Override
     public void onStart(PacketStream stream) {
     }
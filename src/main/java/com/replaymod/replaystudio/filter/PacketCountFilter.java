@@ -27,12 +27,18 @@ import com.replaymod.replaystudio.stream.PacketStream;
 import org.apache.commons.lang3.mutable.MutableInt;
 
 import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 
-public class PacketCountFilter implements StreamFilter {
+public class PacketCountFilter implements ParallelizableFilter {
 
     private final EnumMap<PacketType, MutableInt> count = new EnumMap<>(PacketType.class);
 
+    /**
+     * Whether this filter only processes a single shard, in which case the counts are printed once merged instead.
+     */
+    private boolean shard;
+
     @Override
     public String getName() {
         return "packet_count";
@@ -43,6 +49,32 @@ public class PacketCountFilter implements StreamFilter {
 
     }
 
+    @Override
+    public ParallelizableFilter split() {
+        PacketCountFilter copy = new PacketCountFilter();
+        copy.shard = true;
+        return copy;
+    }
+
+    @Override
+    public void merge(List<ParallelizableFilter> shards) {
+        count.clear();
+        for (ParallelizableFilter shard : shards) {
+            for (Map.Entry<PacketType, MutableInt> e : ((PacketCountFilter) shard).count.entrySet()) {
+                count.computeIfAbsent(e.getKey(), key -> new MutableInt()).add(e.getValue().intValue());
+            }
+        }
+        printCount();
+    }
+
+    /**
+     * Returns how many packets of the given type have been seen (or merged from all shards).
+     */
+    public int getCount(PacketType type) {
+        MutableInt value = count.get(type);
+        return value != null ? value.intValue() : 0;
+    }
+
     @Override
     public void onStart(PacketStream stream) {
         count.clear();
@@ -58,6 +90,12 @@ public class PacketCountFilter implements StreamFilter {
 
     @Override
     public void onEnd(PacketStream stream, long timestamp) {
+        if (!shard) {
+            printCount();
+        }
+    }
+
+    private void printCount() {
         System.out.println();
         System.out.println();
 
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.filter;
+
+import com.replaymod.replaystudio.stream.PacketStream;
+import com.replaymod.replaystudio.stream.ShardedStreamExecutor;
+
+import java.util.List;
+
+/**
+ * A stream filter which can be applied to multiple contiguous parts (shards) of a stream in parallel.
+ * See {@link ShardedStreamExecutor}.
+ * <p>
+ * Each shard is processed by its own copy of the filter, obtained via {@link #split()}, which receives the usual
+ * {@link #onStart(PacketStream)}, {@link #onPacket(PacketStream, com.replaymod.replaystudio.PacketData)} and
+ * {@link #onEnd(PacketStream, long)} calls for its shard only. Hence the output of a filter for a packet must not
+ * depend on any packets of previous shards.
+ * The filter from which the copies were split does not see any packets, instead the state of all copies is merged
+ * back into it via {@link #merge(List)} once all shards are done.
+ */
+public interface ParallelizableFilter extends StreamFilter {
+
+    /**
+     * Creates a new filter with the same configuration as this one, to be applied to a single shard.
+     * @return The new filter
+     */
+    ParallelizableFilter split();
+
+    /**
+     * Merges the state of the filters which have been applied to the shards back into this filter.
+     * Any results which would usually be produced in {@link #onEnd(PacketStream, long)} should be produced here.
+     * @param shards The filters returned by {@link #split()}, in the order of their shards
+     */
+    void merge(List<ParallelizableFilter> shards);
+}
@@ -24,11 +24,14 @@ import com.replaymod.replaystudio.Studio;
 import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.stream.PacketStream;
 
+import java.util.EnumSet;
+import java.util.List;
 import java.util.function.Predicate;
 
-public class RemoveFilter implements StreamFilter {
+public class RemoveFilter implements ParallelizableFilter {
 
     private Predicate<PacketData> filter = packetData -> true;
+    private EnumSet<PacketType> interests;
 
     @Override
     public String getName() {
@@ -41,9 +44,28 @@ public class RemoveFilter implements StreamFilter {
             String name = config.get("type").getAsString();
             PacketType type = PacketType.valueOf(name);
             filter = (d) -> d.getPacket().getType() == type;
+            interests = EnumSet.of(type);
         }
     }
 
+    @Override
+    public ParallelizableFilter split() {
+        RemoveFilter copy = new RemoveFilter();
+        copy.filter = filter;
+        copy.interests = interests;
+        return copy;
+    }
+
+    @Override
+    public void merge(List<ParallelizableFilter> shards) {
+
+    }
+
+    @Override
+    public EnumSet<PacketType> getInterests() {
+        return interests;
+    }
+
     @Override
     public void onStart(PacketStream stream) {
 
@@ -44,12 +44,28 @@ import com.replaymod.replaystudio.stream.IteratorStream;
 import com.replaymod.replaystudio.stream.PacketStream;
 import com.replaymod.replaystudio.util.DPosition;
 import com.replaymod.replaystudio.util.IPosition;
+import com.replaymod.replaystudio.util.MutableLocation;
 import com.replaymod.replaystudio.util.PacketUtils;
 import com.replaymod.replaystudio.util.Utils;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.apache.commons.lang3.tuple.MutablePair;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.commons.lang3.tuple.Triple;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -62,8 +78,35 @@ import java.util.Set;
 
 import static com.replaymod.replaystudio.util.Utils.within;
 
+/**
+ * Squashes all packets of a stream into the minimal set of packets required to reproduce the state at its end.
+ * <p>
+ * State of the current world (chunks, entities and other world packets) can grow very large for long streams.
+ * If a memory budget is set (see {@link #setMemoryBudget(long)}, unlimited by default), then once the estimated size
+ * of that state exceeds it, it is squashed as if the stream ended and spilled to a temporary file, from which it is
+ * streamed back in {@link #onEnd(PacketStream, long)}. Any changes to the same chunks or entities after that point are then squashed
+ * separately, so the result is only slightly larger than without spilling.
+ * <p>
+ * Other state is kept in memory: most of it holds at most one packet per key (e.g. team, inventory slot, packet type)
+ * but packets which are not handled in any special way (e.g. chat messages) are kept in full. Entities also remain in
+ * memory after being spilled, though without any of their packets.
+ */
 public class SquashFilter implements StreamFilter {
 
+    /**
+     * Default memory budget, measured in (estimated) bytes retained by the state which may be spilled.
+     * Unlimited, i.e. the state is never spilled unless a budget is set explicitly.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = Long.MAX_VALUE;
+
+    // Rough sizes of the objects which make up the spillable state, excluding any arrays counted separately
+    private static final int PACKET_OVERHEAD = 64; // PacketData, Packet and ByteBuf
+    private static final int CHUNK_OVERHEAD = 256; // ChunkData and its arrays
+    private static final int BLOCK_CHANGE_OVERHEAD = 128; // PacketBlockChange, its position, pair and map entry
+    private static final int TILE_ENTITY_OVERHEAD = 256; // parsed NBT, usually a handful of small tags
+    private static final int HEIGHTMAPS_OVERHEAD = 1024; // parsed NBT, two or three long arrays
+    private static final int UNLOAD_OVERHEAD = 64; // map entry and boxed keys
+
     private static final long POS_MIN = Byte.MIN_VALUE;
     private static final long POS_MAX = Byte.MAX_VALUE;
 
@@ -114,9 +157,11 @@ public class SquashFilter implements StreamFilter {
         private long dx = 0;
         private long dy = 0;
         private long dz = 0;
-        private Float yaw = null;
-        private Float pitch = null;
+        private boolean rotated;
+        private float yaw;
+        private float pitch;
         private boolean onGround = false; // 1.8+
+        private long size; // estimated bytes retained by packets and teleport
 
         Entity copy() {
             Entity copy = new Entity();
@@ -128,9 +173,11 @@ public class SquashFilter implements StreamFilter {
             copy.dx = this.dx;
             copy.dy = this.dy;
             copy.dz = this.dz;
+            copy.rotated = this.rotated;
             copy.yaw = this.yaw;
             copy.pitch = this.pitch;
             copy.onGround = this.onGround;
+            copy.size = this.size;
             return copy;
         }
 
@@ -141,6 +188,7 @@ public class SquashFilter implements StreamFilter {
             }
             packets.forEach(PacketData::release);
             packets.clear();
+            size = 0;
         }
     }
 
@@ -153,10 +201,12 @@ public class SquashFilter implements StreamFilter {
     private boolean forgeHandshake;
     private final List<PacketData> loginPhase = new ArrayList<>();
     private final List<PacketData> unhandled = new ArrayList<>();
-    private final Map<Integer, Entity> entities = new HashMap<>();
+    private final Int2ObjectMap<Entity> entities = new Int2ObjectOpenHashMap<>();
+    // Re-used to avoid allocations for every packet
+    private final MutableLocation movement = new MutableLocation();
+    private final IntList entityIds = new IntArrayList();
     private final Map<String, Team> teams = new HashMap<>();
-    private final Map<Integer, PacketData> mainInventoryChanges = new HashMap<>();
-    private final Map<Integer, Packet> maps = new HashMap<>();
+    private final Map<Integer, PacketData> mainInventoryChanges = new HashMap<>(); // by slot
 
     private final List<PacketData> currentWorld = new ArrayList<>();
     private final List<PacketData> currentWindow = new ArrayList<>();
@@ -168,6 +218,25 @@ public class SquashFilter implements StreamFilter {
 
     private CompoundTag registries;
 
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private File spillDirectory;
+
+    /**
+     * Estimated number of bytes retained by the state which can be spilled, i.e. by the packets of
+     * {@link #currentWorld} and {@link #entities}, the (parsed) {@link #chunks} and the {@link #unloadedChunks}.
+     */
+    private long spillableSize;
+
+    /**
+     * Spilled state of the current world, in order.
+     */
+    private final List<SpillSegment> spill = new ArrayList<>();
+
+    /**
+     * Chunks which have been spilled, changes to them may no longer be merged into their chunk packet.
+     */
+    private final LongSet spilledChunks = new LongOpenHashSet();
+
     /**
      * The behavior of the Respawn packet depends on the current world. While vanilla seems to never
      * make any use of that fact, custom server and proxies do, so we need to take it into consideration.
@@ -190,6 +259,14 @@ public class SquashFilter implements StreamFilter {
      */
     private long prevTimestamp;
 
+    /**
+     * Creates a filter for a stream which starts at the very beginning of a replay.
+     * Required for {@link Studio#loadStreamFilter(String)}.
+     */
+    public SquashFilter() {
+        this(null, null, null);
+    }
+
     public SquashFilter(CompoundTag registries, String dimension, DimensionType dimensionType) {
         this.registries = registries;
         this.dimension = dimension;
@@ -209,7 +286,6 @@ public class SquashFilter implements StreamFilter {
         this.loginPhase.forEach(it -> copy.loginPhase.add(it.copy()));
         this.unhandled.forEach(it -> copy.unhandled.add(it.copy()));
         this.mainInventoryChanges.forEach((key, value) -> copy.mainInventoryChanges.put(key, value.copy()));
-        this.maps.forEach((key, value) -> copy.maps.put(key, value.copy()));
         this.currentWorld.forEach(it -> copy.currentWorld.add(it.copy()));
         this.currentWindow.forEach(it -> copy.currentWindow.add(it.copy()));
         this.closeWindows.forEach(it -> copy.closeWindows.add(it.copy()));
@@ -217,9 +293,38 @@ public class SquashFilter implements StreamFilter {
         this.chunks.forEach((key, value) -> copy.chunks.put(key, value.copy()));
         copy.unloadedChunks.putAll(this.unloadedChunks);
         copy.prevTimestamp = this.prevTimestamp;
+        copy.memoryBudget = this.memoryBudget;
+        copy.spillDirectory = this.spillDirectory;
+        copy.spillableSize = this.spillableSize;
+        this.spill.forEach(it -> copy.spill.add(it.retain()));
+        copy.spilledChunks.addAll(this.spilledChunks);
         return copy;
     }
 
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the memory budget above which the state of the current world is spilled to disk.
+     * @param memoryBudget The budget in (estimated) bytes or {@link Long#MAX_VALUE} (the default) to never spill
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Sets the directory in which spill files are created, e.g. the temporary folder of the replay being squashed.
+     * @param spillDirectory The directory or {@code null} to use the default temporary-file directory
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
     /**
      * Flushes all state via {@link #onEnd(PacketStream, long)} and returns the filter to a mostly empty
      * state such that one can continue to use it for subsequent packets.
@@ -240,11 +345,11 @@ public class SquashFilter implements StreamFilter {
         loginPhase.forEach(PacketData::release);
         unhandled.forEach(PacketData::release);
         mainInventoryChanges.values().forEach(PacketData::release);
-        maps.values().forEach(Packet::release);
         currentWorld.forEach(PacketData::release);
         currentWindow.forEach(PacketData::release);
         closeWindows.forEach(PacketData::release);
         latestOnly.values().forEach(PacketData::release);
+        releaseSpill();
     }
 
     @Override
@@ -254,6 +359,10 @@ public class SquashFilter implements StreamFilter {
 
     @Override
     public boolean onPacket(PacketStream stream, PacketData originalData) throws IOException {
+        if (spillableSize > memoryBudget) {
+            spill();
+        }
+
         // Ensure timestamps are strictly increasing; just monotonically increasing is not enough; see prevTimestamp
         PacketData data = new PacketData(Math.max(originalData.getTime(), prevTimestamp + 1), originalData.getPacket());
         prevTimestamp = data.getTime();
@@ -264,60 +373,69 @@ public class SquashFilter implements StreamFilter {
         long lastTimestamp = data.getTime();
 
         // Entities
-        Integer entityId = PacketUtils.getEntityId(packet);
-        if (entityId != null) { // Some entity is associated with this packet
-            if (entityId == -1) { // Multiple entities in fact
-                for (int id : PacketUtils.getEntityIds(packet)) {
-                    Entity entity;
-                    if (type == PacketType.DestroyEntity || type == PacketType.DestroyEntities) {
-                        entity = entities.computeIfAbsent(id, i -> new Entity());
-                        entity.release();
-                        entity.despawned = true;
-                        if (entity.complete) {
-                            entities.remove(id);
-                        }
-                    } else {
-                        entity = entities.compute(id, (i, e) -> e == null || e.despawned ? new Entity() : e);
-                        entity.packets.add(data.retain());
-                    }
-                    entity.lastTimestamp = lastTimestamp;
-                }
-            } else { // Only one entity
-                Entity entity = entities.compute(entityId, (i, e) -> e == null || e.despawned ? new Entity() : e);
-                if (type == PacketType.EntityMovement
-                        || type == PacketType.EntityPosition
-                        || type == PacketType.EntityRotation
-                        || type == PacketType.EntityPositionRotation) {
-                    Triple<DPosition, Pair<Float, Float>, Boolean> movement = PacketEntityMovement.getMovement(packet);
-                    DPosition deltaPos = movement.getLeft();
-                    Pair<Float, Float> yawPitch = movement.getMiddle();
-                    if (deltaPos != null) {
-                        entity.dx += deltaPos.getX() * 32;
-                        entity.dy += deltaPos.getY() * 32;
-                        entity.dz += deltaPos.getZ() * 32;
-                    }
-                    if (yawPitch != null) {
-                        entity.yaw = yawPitch.getKey();
-                        entity.pitch = yawPitch.getValue();
-                    }
-                    entity.onGround = movement.getRight();
-                } else if (type == PacketType.EntityTeleport) {
-                    if (entity.teleport != null) {
-                        entity.teleport.release();
-                    }
-                    entity.dx = entity.dy = entity.dz = 0;
-                    entity.yaw = entity.pitch = null;
-                    entity.teleport = packet.retain();
-                } else {
-                    if (PacketUtils.isSpawnEntityPacket(packet)) {
-                        entity.complete = true;
-                    }
-                    entity.packets.add(data.retain());
+        if (type == PacketType.DestroyEntities || type == PacketType.DestroyEntity) {
+            entityIds.clear();
+            PacketUtils.getEntityIds(packet, entityIds);
+            for (int i = 0; i < entityIds.size(); i++) {
+                int id = entityIds.getInt(i);
+                Entity entity = entities.get(id);
+                if (entity == null) {
+                    entities.put(id, entity = new Entity());
                 }
+                spillableSize -= entity.size;
+                entity.release();
+                entity.despawned = true;
                 entity.lastTimestamp = lastTimestamp;
+                if (entity.complete) {
+                    // Spawned (and not yet spilled) within this stream, so we can just drop it altogether
+                    entities.remove(id);
+                }
             }
             return false;
         }
+        int entityId = PacketUtils.getEntityIdOrMinus1(packet);
+        if (entityId != -1) { // Some entity is associated with this packet
+            Entity entity = entities.get(entityId);
+            if (entity == null || entity.despawned) {
+                entities.put(entityId, entity = new Entity());
+            }
+            if (type == PacketType.EntityMovement
+                    || type == PacketType.EntityPosition
+                    || type == PacketType.EntityRotation
+                    || type == PacketType.EntityPositionRotation) {
+                movement.set(0, 0, 0, 0, 0);
+                entity.onGround = PacketEntityMovement.applyMovement(packet, movement);
+                entity.dx += movement.getX() * 32;
+                entity.dy += movement.getY() * 32;
+                entity.dz += movement.getZ() * 32;
+                if (type == PacketType.EntityRotation || type == PacketType.EntityPositionRotation) {
+                    entity.rotated = true;
+                    entity.yaw = movement.getYaw();
+                    entity.pitch = movement.getPitch();
+                }
+            } else if (type == PacketType.EntityTeleport) {
+                long size = retainedSize(packet);
+                if (entity.teleport != null) {
+                    size -= retainedSize(entity.teleport);
+                    entity.teleport.release();
+                }
+                entity.dx = entity.dy = entity.dz = 0;
+                entity.rotated = false;
+                entity.teleport = packet.retain();
+                entity.size += size;
+                spillableSize += size;
+            } else {
+                if (PacketUtils.isSpawnEntityPacket(packet)) {
+                    entity.complete = true;
+                }
+                entity.packets.add(data.retain());
+                long size = retainedSize(packet);
+                entity.size += size;
+                spillableSize += size;
+            }
+            entity.lastTimestamp = lastTimestamp;
+            return false;
+        }
 
         switch (type) {
             //
@@ -346,6 +464,7 @@ public class SquashFilter implements StreamFilter {
                     currentWindow.clear();
                     entities.values().forEach(Entity::release);
                     entities.clear();
+                    releaseSpill();
                 }
                 dimension = newDimension;
                 dimensionType = packetRespawn.dimensionType;
@@ -365,6 +484,7 @@ public class SquashFilter implements StreamFilter {
                 currentWindow.clear();
                 entities.values().forEach(Entity::release);
                 entities.clear();
+                releaseSpill();
                 PacketJoinGame packetJoinGame = PacketJoinGame.read(packet);
                 registries = packetJoinGame.registry;
                 dimension = packetJoinGame.dimension;
@@ -381,13 +501,13 @@ public class SquashFilter implements StreamFilter {
                 }
                 break;
             }
-            case UpdateLight:
+            case UpdateLight: {
                 PacketUpdateLight updateLight = PacketUpdateLight.read(packet);
-                chunks.computeIfAbsent(
-                        ColumnPos.coordToLong(updateLight.getX(), updateLight.getZ()),
-                        idx -> new ChunkData(data.getTime(), updateLight.getX(), updateLight.getZ())
-                ).updateLight(updateLight.getData());
+                ChunkData chunk = getChunk(data.getTime(), updateLight.getX(), updateLight.getZ());
+                chunk.updateLight(updateLight.getData());
+                spillableSize += chunk.resize();
                 break;
+            }
             case ChunkData:
             case UnloadChunk:
                 PacketChunkData chunkData = PacketChunkData.read(packet, dimensionType.getSections());
@@ -425,6 +545,7 @@ public class SquashFilter implements StreamFilter {
             case NotifyClient:
             case MapData:
                 currentWorld.add(data.retain());
+                spillableSize += retainedSize(packet);
                 break;
 
             //
@@ -568,88 +689,37 @@ public class SquashFilter implements StreamFilter {
         mainInventoryChanges.clear();
         latestOnly.clear();
 
-        for (Map.Entry<Integer, Entity> e : entities.entrySet()) {
-            Entity entity = e.getValue();
-
-            if (entity.despawned) {
-                result.add(new PacketData(entity.lastTimestamp, PacketDestroyEntities.write(registry, e.getKey())));
-                entity.release();
-                continue;
-            }
-
-            FOR_PACKETS:
-            for (PacketData data : entity.packets) {
-                Packet packet = data.getPacket();
-                for (int i : PacketUtils.getEntityIds(packet)) {
-                    Entity other = entities.get(i);
-                    if (other == null || other.despawned) { // Other entity doesn't exist
-                        packet.release();
-                        continue FOR_PACKETS;
-                    }
-                }
-                result.add(data);
-            }
-
-            if (entity.teleport != null) {
-                result.add(new PacketData(entity.lastTimestamp, entity.teleport));
-            }
-            while (entity.dx != 0 || entity.dy != 0 || entity.dz != 0) {
-                long mx = within(entity.dx, POS_MIN, POS_MAX);
-                long my = within(entity.dy, POS_MIN, POS_MAX);
-                long mz = within(entity.dz, POS_MIN, POS_MAX);
-                entity.dx -= mx;
-                entity.dy -= my;
-                entity.dz -= mz;
-                DPosition deltaPos = new DPosition(mx / 32.0, my / 32.0, mz / 32.0);
-                result.add(new PacketData(entity.lastTimestamp, PacketEntityMovement.write(
-                        registry, e.getKey(), deltaPos, null, entity.onGround)));
-            }
-            if (entity.yaw != null && entity.pitch != null) {
-                result.add(new PacketData(entity.lastTimestamp, PacketEntityMovement.write(
-                        registry, e.getKey(), null, Pair.of(entity.yaw, entity.pitch), entity.onGround)));
-            }
+        for (Int2ObjectMap.Entry<Entity> e : entities.int2ObjectEntrySet()) {
+            squashEntity(e.getIntKey(), e.getValue(), result);
         }
         entities.clear();
 
-        for (Map.Entry<Long, Long> e : unloadedChunks.entrySet()) {
-            int x = ColumnPos.longToX(e.getKey());
-            int z = ColumnPos.longToZ(e.getKey());
-            result.add(new PacketData(e.getValue(), PacketChunkData.unload(x, z).write(registry)));
-        }
+        squashUnloadedChunks(result);
 
         for (ChunkData chunk : chunks.values()) {
-            PacketUpdateLight.Data lightData = new PacketUpdateLight.Data(
-                    Arrays.asList(chunk.skyLight),
-                    Arrays.asList(chunk.blockLight)
-            );
-            Column column = new Column(
-                    chunk.x, chunk.z, chunk.changes,
-                    chunk.biomeData, chunk.tileEntities, chunk.heightmaps, chunk.biomes, chunk.useExistingLightData,
-                    lightData
-            );
-            if (column.isFull() || !Utils.containsOnlyNull(chunk.changes)) {
-                result.add(new PacketData(chunk.firstAppearance, PacketChunkData.load(column).write(registry)));
-            }
-            for (Map<Short, MutablePair<Long, PacketBlockChange>> e : chunk.blockChanges) {
-                if (e != null) {
-                    for (MutablePair<Long, PacketBlockChange> pair : e.values()) {
-                        result.add(new PacketData(pair.getLeft(), pair.getRight().write(registry)));
-                    }
-                }
-            }
-            for (MutablePair<Long, PacketBlockChange> pair : chunk.allBlockChanges.values()) {
-                result.add(new PacketData(pair.getLeft(), pair.getRight().write(registry)));
-            }
-            if (chunk.hasLight() && registry.olderThan(ProtocolVersion.v1_18)) {
-                result.add(new PacketData(chunk.firstAppearance,
-                        new PacketUpdateLight(chunk.x, chunk.z, lightData).write(registry)));
-            }
+            squashChunk(chunk, result);
         }
         chunks.clear();
 
         result.sort(Comparator.comparingLong(PacketData::getTime));
-        for (PacketData data : result) {
-            add(stream, timestamp, data.getPacket());
+
+        // Spilled packets are older than any of the same chunks or entities still in memory but other ones may be
+        // even older, so the two need to be merged
+        int index = 0;
+        for (SpillSegment segment : spill) {
+            try (DataInputStream in = segment.open()) {
+                for (int i = 0; i < segment.size; i++) {
+                    long time = in.readLong();
+                    while (index < result.size() && result.get(index).getTime() < time) {
+                        add(stream, timestamp, result.get(index++).getPacket());
+                    }
+                    add(stream, timestamp, SpillSegment.readPacket(in, registry));
+                }
+            }
+        }
+        releaseSpill();
+        while (index < result.size()) {
+            add(stream, timestamp, result.get(index++).getPacket());
         }
 
         for (Team team : teams.values()) {
@@ -671,11 +741,144 @@ public class SquashFilter implements StreamFilter {
             }
         }
         teams.clear();
+    }
+
+    /**
+     * Adds the packets required to reproduce the current state of the given entity to the result and resets it.
+     * @return {@code true} if the entity has been despawned and should be removed
+     */
+    private boolean squashEntity(int entityId, Entity entity, List<PacketData> result) throws IOException {
+        if (entity.despawned) {
+            result.add(new PacketData(entity.lastTimestamp, PacketDestroyEntities.write(registry, entityId)));
+            entity.release();
+            return true;
+        }
+
+        FOR_PACKETS:
+        for (PacketData data : entity.packets) {
+            Packet packet = data.getPacket();
+            entityIds.clear();
+            PacketUtils.getEntityIds(packet, entityIds);
+            for (int i = 0; i < entityIds.size(); i++) {
+                Entity other = entities.get(entityIds.getInt(i));
+                if (other == null || other.despawned) { // Other entity doesn't exist
+                    packet.release();
+                    continue FOR_PACKETS;
+                }
+            }
+            result.add(data);
+        }
+        entity.packets.clear();
 
-        for (Packet packet : maps.values()) {
-            add(stream, timestamp, packet);
+        if (entity.teleport != null) {
+            result.add(new PacketData(entity.lastTimestamp, entity.teleport));
+            entity.teleport = null;
         }
-        maps.clear();
+        entity.size = 0;
+        while (entity.dx != 0 || entity.dy != 0 || entity.dz != 0) {
+            long mx = within(entity.dx, POS_MIN, POS_MAX);
+            long my = within(entity.dy, POS_MIN, POS_MAX);
+            long mz = within(entity.dz, POS_MIN, POS_MAX);
+            entity.dx -= mx;
+            entity.dy -= my;
+            entity.dz -= mz;
+            DPosition deltaPos = new DPosition(mx / 32.0, my / 32.0, mz / 32.0);
+            result.add(new PacketData(entity.lastTimestamp, PacketEntityMovement.write(
+                    registry, entityId, deltaPos, null, entity.onGround)));
+        }
+        if (entity.rotated) {
+            result.add(new PacketData(entity.lastTimestamp, PacketEntityMovement.write(
+                    registry, entityId, null, Pair.of(entity.yaw, entity.pitch), entity.onGround)));
+            entity.rotated = false;
+        }
+        return false;
+    }
+
+    /**
+     * Adds unload packets for all unloaded chunks to the result and clears them.
+     */
+    private void squashUnloadedChunks(List<PacketData> result) throws IOException {
+        for (Map.Entry<Long, Long> e : unloadedChunks.entrySet()) {
+            int x = ColumnPos.longToX(e.getKey());
+            int z = ColumnPos.longToZ(e.getKey());
+            result.add(new PacketData(e.getValue(), PacketChunkData.unload(x, z).write(registry)));
+        }
+        unloadedChunks.clear();
+    }
+
+    /**
+     * Adds the packets required to reproduce the current state of the given chunk to the result.
+     */
+    private void squashChunk(ChunkData chunk, List<PacketData> result) throws IOException {
+        PacketUpdateLight.Data lightData = new PacketUpdateLight.Data(
+                Arrays.asList(chunk.skyLight),
+                Arrays.asList(chunk.blockLight)
+        );
+        Column column = new Column(
+                chunk.x, chunk.z, chunk.changes,
+                chunk.biomeData, chunk.tileEntities, chunk.heightmaps, chunk.biomes, chunk.useExistingLightData,
+                lightData
+        );
+        boolean load = column.isFull() || !Utils.containsOnlyNull(chunk.changes);
+        if (load) {
+            result.add(new PacketData(chunk.firstAppearance, PacketChunkData.load(column).write(registry)));
+        }
+        for (Map<Short, MutablePair<Long, PacketBlockChange>> e : chunk.blockChanges) {
+            if (e != null) {
+                for (MutablePair<Long, PacketBlockChange> pair : e.values()) {
+                    result.add(new PacketData(pair.getLeft(), pair.getRight().write(registry)));
+                }
+            }
+        }
+        for (MutablePair<Long, PacketBlockChange> pair : chunk.allBlockChanges.values()) {
+            result.add(new PacketData(pair.getLeft(), pair.getRight().write(registry)));
+        }
+        // Since 1.18 light is usually part of the chunk packet, unless that has already been spilled
+        if (chunk.hasLight() && (registry.olderThan(ProtocolVersion.v1_18)
+                || !load && spilledChunks.contains(ColumnPos.coordToLong(chunk.x, chunk.z)))) {
+            result.add(new PacketData(chunk.firstAppearance,
+                    new PacketUpdateLight(chunk.x, chunk.z, lightData).write(registry)));
+        }
+    }
+
+    /**
+     * Squashes the state of the current world (chunks, entities and other world packets) and writes the result to a
+     * new spill file. Entities are kept in memory (but without any of their packets), so packets of other entities
+     * which refer to them remain valid.
+     * Unloads are spilled as well: a later load of the same chunk then simply follows the spilled unload.
+     */
+    private void spill() throws IOException {
+        List<PacketData> result = new ArrayList<>(currentWorld);
+        currentWorld.clear();
+
+        ObjectIterator<Int2ObjectMap.Entry<Entity>> iter = entities.int2ObjectEntrySet().iterator();
+        while (iter.hasNext()) {
+            Int2ObjectMap.Entry<Entity> e = iter.next();
+            if (squashEntity(e.getIntKey(), e.getValue(), result)) {
+                iter.remove();
+            } else {
+                // Its spawn packet is now part of the spill, so despawning it later needs to be spilled as well
+                e.getValue().complete = false;
+            }
+        }
+
+        for (Map.Entry<Long, ChunkData> e : chunks.entrySet()) {
+            squashChunk(e.getValue(), result);
+            spilledChunks.add((long) e.getKey());
+        }
+        chunks.clear();
+        squashUnloadedChunks(result);
+
+        result.sort(Comparator.comparingLong(PacketData::getTime));
+        spill.add(SpillSegment.write(spillDirectory, result));
+        spillableSize = 0;
+    }
+
+    private void releaseSpill() {
+        spill.forEach(SpillSegment::release);
+        spill.clear();
+        spilledChunks.clear();
+        spillableSize = 0;
     }
 
     @Override
@@ -685,33 +888,54 @@ public class SquashFilter implements StreamFilter {
 
     @Override
     public void init(Studio studio, JsonObject config) {
+        if (config.has("memoryBudget")) {
+            // In MB, like the other size options of the launcher
+            memoryBudget = config.get("memoryBudget").getAsLong() * 1024 * 1024;
+        }
+        if (config.has("spillDirectory")) {
+            spillDirectory = new File(config.get("spillDirectory").getAsString());
+        }
     }
 
     private void add(PacketStream stream, long timestamp, Packet packet) {
         stream.insert(new PacketData(timestamp, packet));
     }
 
+    /**
+     * Returns an estimate of the number of bytes retained by the given packet while it is kept in memory.
+     */
+    private static long retainedSize(Packet packet) {
+        return PACKET_OVERHEAD + packet.getBuf().capacity();
+    }
+
+    private ChunkData getChunk(long time, int x, int z) {
+        return chunks.computeIfAbsent(ColumnPos.coordToLong(x, z), idx -> new ChunkData(time, x, z));
+    }
+
     private void updateBlock(long time, PacketBlockChange record) {
         IPosition pos = record.getPosition();
-        chunks.computeIfAbsent(
-                ColumnPos.coordToLong(pos.getX() >> 4, pos.getZ() >> 4),
-                idx -> new ChunkData(time, pos.getX() >> 4, pos.getZ() >> 4)
-        ).updateBlock(time, record);
+        ChunkData chunk = getChunk(time, pos.getX() >> 4, pos.getZ() >> 4);
+        chunk.updateBlock(time, record);
+        spillableSize += chunk.resize();
     }
 
     private void unloadChunk(long time, int x, int z) {
         long coord = ColumnPos.coordToLong(x, z);
-        chunks.remove(coord);
-        unloadedChunks.put(coord, time);
+        ChunkData chunk = chunks.remove(coord);
+        if (chunk != null) {
+            spillableSize -= chunk.size;
+        }
+        if (unloadedChunks.put(coord, time) == null) {
+            spillableSize += UNLOAD_OVERHEAD;
+        }
     }
 
     private void updateChunk(long time, Column column) {
         long coord = ColumnPos.coordToLong(column.x, column.z);
-        unloadedChunks.remove(coord);
-        ChunkData chunk = chunks.get(coord);
-        if (chunk == null) {
-            chunks.put(coord, chunk = new ChunkData(time, column.x, column.z));
+        if (unloadedChunks.remove(coord) != null) {
+            spillableSize -= UNLOAD_OVERHEAD;
         }
+        ChunkData chunk = getChunk(time, column.x, column.z);
         chunk.update(
                 column.chunks,
                 column.biomeData,
@@ -723,6 +947,7 @@ public class SquashFilter implements StreamFilter {
         if (column.lightData != null) { // 1.18+
             chunk.updateLight(column.lightData);
         }
+        spillableSize += chunk.resize();
     }
 
     private class ChunkData {
@@ -747,6 +972,8 @@ public class SquashFilter implements StreamFilter {
         private int[] biomes;
         // 1.16+
         private boolean useExistingLightData = true;
+        // Estimated bytes retained by this chunk as of the last resize()
+        private long size;
 
          ChunkData(long firstAppearance, int x, int z) {
             this.firstAppearance = firstAppearance;
@@ -775,9 +1002,53 @@ public class SquashFilter implements StreamFilter {
             copy.blockLight = this.blockLight.clone();
             copy.biomes = this.biomes;
             copy.useExistingLightData = this.useExistingLightData;
+            copy.size = this.size;
             return copy;
         }
 
+        /**
+         * Updates the estimated size of this chunk after it has been modified.
+         * @return The change in size
+         */
+        long resize() {
+            long prev = size;
+            size = CHUNK_OVERHEAD;
+            for (Chunk section : changes) {
+                if (section != null) {
+                    size += section.getRetainedSize();
+                }
+            }
+            if (biomeData != null) {
+                size += biomeData.length;
+            }
+            for (Map<Short, MutablePair<Long, PacketBlockChange>> e : blockChanges) {
+                if (e != null) {
+                    size += (long) e.size() * BLOCK_CHANGE_OVERHEAD;
+                }
+            }
+            size += (long) allBlockChanges.size() * BLOCK_CHANGE_OVERHEAD;
+            if (tileEntities != null) {
+                size += (long) tileEntities.length * TILE_ENTITY_OVERHEAD;
+            }
+            if (heightmaps != null) {
+                size += HEIGHTMAPS_OVERHEAD;
+            }
+            for (byte[] light : skyLight) {
+                if (light != null) {
+                    size += light.length;
+                }
+            }
+            for (byte[] light : blockLight) {
+                if (light != null) {
+                    size += light.length;
+                }
+            }
+            if (biomes != null) {
+                size += biomes.length * 4L;
+            }
+            return size - prev;
+        }
+
         void update(
                 Chunk[] newChunks,
                 byte[] newBiomeData, // pre 1.15
@@ -887,6 +1158,70 @@ public class SquashFilter implements StreamFilter {
         }
     }
 
+    /**
+     * A file of spilled packets, sorted by time.
+     * Shared between copies of the filter, the file is deleted once it has been released by all of them.
+     */
+    private static class SpillSegment {
+        private final File file;
+        private final int size;
+        private int refCnt = 1;
+
+        private SpillSegment(File file, int size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        /**
+         * Writes the given packets to a new spill file and releases them.
+         */
+        static SpillSegment write(File directory, List<PacketData> packets) throws IOException {
+            File file = File.createTempFile("squash", ".spill", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (PacketData data : packets) {
+                    Packet packet = data.getPacket();
+                    ByteBuf buf = packet.getBuf();
+                    out.writeLong(data.getTime());
+                    out.writeInt(packet.getId());
+                    out.writeInt(buf.readableBytes());
+                    buf.getBytes(buf.readerIndex(), out, buf.readableBytes());
+                }
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            } finally {
+                packets.forEach(PacketData::release);
+            }
+            return new SpillSegment(file, packets.size());
+        }
+
+        /**
+         * Opens the spill file. Each of its {@link #size} entries consists of the time (a long) followed by the packet,
+         * see {@link #readPacket(DataInputStream, PacketTypeRegistry)}.
+         */
+        DataInputStream open() throws IOException {
+            return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        static Packet readPacket(DataInputStream in, PacketTypeRegistry registry) throws IOException {
+            int id = in.readInt();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new Packet(registry, id, Unpooled.wrappedBuffer(bytes));
+        }
+
+        synchronized SpillSegment retain() {
+            refCnt++;
+            return this;
+        }
+
+        synchronized void release() {
+            if (--refCnt == 0) {
+                file.delete();
+            }
+        }
+    }
+
     private static class ColumnPos {
         private static long coordToLong(int x, int z) {
             return (long) x << 32 | z & 0xFFFFFFFFL;
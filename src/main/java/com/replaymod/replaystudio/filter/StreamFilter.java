@@ -21,9 +21,11 @@ package com.replaymod.replaystudio.filter;
 import com.google.gson.JsonObject;
 import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.stream.PacketStream;
 
 import java.io.IOException;
+import java.util.EnumSet;
 
 /**
  * A manipulation that applies some effect onto the supplied packet stream on the fly.
@@ -46,6 +48,18 @@ public interface StreamFilter {
      */
     void init(Studio studio, JsonObject config);
 
+    /**
+     * Returns the types of packets this filter is interested in.
+     * {@link #onPacket(PacketStream, PacketData)} is only called for packets of these types, all other packets pass
+     * this filter unchanged. {@link #onStart(PacketStream)} and {@link #onEnd(PacketStream, long)} are called
+     * regardless.
+     * Called once when the filter is added to a stream, after {@link #init(Studio, JsonObject)}.
+     * @return The types of interest or {@code null} if this filter is interested in all packets (the default)
+     */
+    default EnumSet<PacketType> getInterests() {
+        return null;
+    }
+
     /**
      * Called at the beginning of a new stream.
      * @param stream The stream of packets
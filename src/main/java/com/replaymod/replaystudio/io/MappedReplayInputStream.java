@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.util.Utils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link ReplayInputStream} which reads uncompressed packet data from a memory-mapped region of a file.
+ * <p>
+ * Packets are handed out as retained slices of the mapping, so their bytes are never copied (unless they need to be
+ * converted by ViaVersion). As a consequence, the buffers of the returned packets are read-only.
+ * <p>
+ * Files larger than {@link #DEFAULT_WINDOW_SIZE} are mapped in multiple, consecutive windows. A window is unmapped
+ * once this stream has moved past it (or has been closed) and all packets referring to it have been released.
+ */
+public class MappedReplayInputStream extends ReplayInputStream {
+
+    /**
+     * Default size of a single mapped window. Must be less than 2GB as that is the limit imposed by {@link FileChannel#map}.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+    /**
+     * Size of the frame header, that is the timestamp and length of the packet.
+     */
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private final FileChannel channel;
+    private final boolean closeChannel;
+    private final int windowSize;
+
+    /**
+     * Absolute position in the file at which the packet data ends.
+     */
+    private final long end;
+
+    /**
+     * Absolute position in the file at which the {@link #window} begins.
+     */
+    private long windowStart;
+
+    /**
+     * The currently mapped window. Its reader index is the position of the next frame.
+     */
+    private ByteBuf window;
+
+    /**
+     * Creates a new replay input stream for reading packet data from the given region of a file.
+     * @param registry See {@link ReplayInputStream#ReplayInputStream(PacketTypeRegistry, java.io.InputStream, int, int)}
+     * @param channel Channel of the file containing the packet data
+     * @param closeChannel Whether the channel should be closed when this stream is closed
+     * @param offset Absolute position in the file at which the packet data begins
+     * @param length Length of the packet data in bytes
+     * @param fileFormatVersion The file format version of the replay packet data
+     * @param fileProtocol The MC protocol version of the replay packet data
+     */
+    public MappedReplayInputStream(PacketTypeRegistry registry, FileChannel channel, boolean closeChannel,
+                                   long offset, long length, int fileFormatVersion, int fileProtocol) throws IOException {
+        this(registry, channel, closeChannel, offset, length, fileFormatVersion, fileProtocol,
+                startsInLoginPhase(fileFormatVersion), DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param includeLoginPhase See {@link ReplayInputStream#ReplayInputStream(PacketTypeRegistry, java.io.InputStream, int, int, boolean)}
+     * @param windowSize Maximum size of each mapped window
+     */
+    public MappedReplayInputStream(PacketTypeRegistry registry, FileChannel channel, boolean closeChannel,
+                                   long offset, long length, int fileFormatVersion, int fileProtocol,
+                                   boolean includeLoginPhase, int windowSize) throws IOException {
+        super(registry, null, fileFormatVersion, fileProtocol, includeLoginPhase);
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.end = offset + length;
+        this.windowSize = windowSize;
+        this.windowStart = offset;
+        this.window = Unpooled.EMPTY_BUFFER;
+    }
+
+    /**
+     * Makes sure that at least {@code length} bytes are available in the current window, mapping a new window
+     * starting at the current position if necessary.
+     * @return {@code false} if there are less than {@code length} bytes left in the file region
+     */
+    private boolean ensureMapped(int length) throws IOException {
+        if (window.readableBytes() >= length) {
+            return true;
+        }
+        long position = windowStart + window.readerIndex();
+        long remaining = end - position;
+        if (remaining < length) {
+            return false;
+        }
+        long size = Math.min(remaining, Math.max(windowSize, length));
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Frame too large to be mapped: " + length);
+        }
+        window.release();
+        window = Utils.map(channel, position, (int) size);
+        windowStart = position;
+        return true;
+    }
+
+    @Override
+    protected ByteBuf readFrame() throws IOException {
+        while (true) {
+            if (!ensureMapped(FRAME_HEADER_SIZE)) {
+                return null; // reached end of stream
+            }
+            int next = window.readInt();
+            int length = window.readInt();
+            if (length == 0) {
+                continue; // skip empty segments
+            }
+            if (length < 0 || !ensureMapped(length)) {
+                throw new EOFException();
+            }
+            frameTime = next;
+            return window.readRetainedSlice(length);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureMapped(1)) {
+            return -1;
+        }
+        return window.readUnsignedByte();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        window.release();
+        window = Unpooled.EMPTY_BUFFER;
+        if (closeChannel) {
+            channel.close();
+        }
+    }
+}
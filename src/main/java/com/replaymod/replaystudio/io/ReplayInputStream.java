@@ -35,12 +35,17 @@ import com.replaymod.replaystudio.viaversion.ViaVersionPacketConverter;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import static com.replaymod.replaystudio.util.Utils.readInt;
 
@@ -50,6 +55,8 @@ import static com.replaymod.replaystudio.util.Utils.readInt;
 public class ReplayInputStream extends InputStream {
 
     private static final ByteBufAllocator ALLOC = PooledByteBufAllocator.DEFAULT;
+    private static final int PIPELINE_BATCH_SIZE = 256;
+    private static final List<PacketData> END_OF_STREAM = Collections.emptyList();
 
     private PacketTypeRegistry registry;
 
@@ -79,23 +86,47 @@ public class ReplayInputStream extends InputStream {
      */
     private Queue<PacketData> buffer = new ArrayDeque<>();
 
+    /**
+     * Timestamp of the frame most recently returned by {@link #readFrame()}.
+     */
+    protected int frameTime;
+
+    /**
+     * The background threads reading and decoding packets, if this stream is in pipelined mode.
+     */
+    private Pipeline pipeline;
+
     /**
      * Creates a new replay input stream for reading raw packet data.
      * @param registry The registry used for the first packet produced.
      *                 Further packets may be using a registry for the same version but PLAY state instead.
      *                 Should generally start in LOGIN state, even if the file doesn't not include the LOGIN phase,
      *                 the ReplayInputStream will handle it.
-     * @param in The actual input stream.
+     * @param in The actual input stream. May be {@code null} if the subclass overrides {@link #readFrame()}.
      * @param fileFormatVersion The file format version of the replay packet data
      * @param fileProtocol The MC protocol version of the replay packet data
      */
     public ReplayInputStream(PacketTypeRegistry registry, InputStream in, int fileFormatVersion, int fileProtocol) throws IOException {
-        boolean includeLoginPhase = fileFormatVersion >= 14;
+        this(registry, in, fileFormatVersion, fileProtocol, startsInLoginPhase(fileFormatVersion));
+    }
+
+    /**
+     * Creates a new replay input stream for reading raw packet data which does not necessarily start at the beginning
+     * of the recording (e.g. when resuming at a {@link ReplaySeekIndex} point).
+     * @param registry See {@link #ReplayInputStream(PacketTypeRegistry, InputStream, int, int)}
+     * @param in The actual input stream.
+     * @param fileFormatVersion The file format version of the replay packet data
+     * @param fileProtocol The MC protocol version of the replay packet data
+     * @param includeLoginPhase Whether the packet data starts in the login phase. If it does not but the given registry
+     *                          is in LOGIN state, a LoginSuccess packet is emitted first.
+     */
+    public ReplayInputStream(PacketTypeRegistry registry, InputStream in, int fileFormatVersion, int fileProtocol, boolean includeLoginPhase) throws IOException {
         this.registry = registry;
         this.loginPhase = includeLoginPhase;
         this.outputLoginPhase = registry.getState() == State.LOGIN;
         if (!includeLoginPhase && outputLoginPhase) {
-            // For Replays older than version 14, immediately end the Login phase to enter Play phase where the replay starts
+            // For Replays older than version 14 (or when starting mid-stream), immediately end the Login phase to enter
+            // Play phase where the replay starts
             buffer.offer(new PacketData(0, new PacketLoginSuccess(UUID.nameUUIDFromBytes(new byte[0]), "Player", Collections.emptyList()).write(registry)));
             this.registry = PacketTypeRegistry.get(registry.getVersion(), State.PLAY);
         } else if (includeLoginPhase && !outputLoginPhase) {
@@ -105,6 +136,15 @@ public class ReplayInputStream extends InputStream {
         this.viaVersionConverter = ViaVersionPacketConverter.createForFileVersion(fileFormatVersion, fileProtocol, registry.getVersion().getOriginalVersion());
     }
 
+    /**
+     * Returns whether the packet data of a replay with the given file format version starts in the login phase.
+     * @param fileFormatVersion The file format version of the replay packet data
+     * @return {@code true} if the login phase is included in the packet data
+     */
+    public static boolean startsInLoginPhase(int fileFormatVersion) {
+        return fileFormatVersion >= 14;
+    }
+
     @Override
     public int read() throws IOException {
         return in.read();
@@ -112,7 +152,12 @@ public class ReplayInputStream extends InputStream {
 
     @Override
     public void close() throws IOException {
-        in.close();
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        if (in != null) {
+            in.close();
+        }
     }
 
     public PacketTypeRegistry getRegistry() {
@@ -129,12 +174,18 @@ public class ReplayInputStream extends InputStream {
         return buffer.poll();
     }
 
-    private void fillBuffer() throws IOException {
-        while (buffer.isEmpty()) {
+    /**
+     * Reads the next non-empty packet frame from the underlying input.
+     * The timestamp of the frame is stored in {@link #frameTime}.
+     * @return The raw packet data (starting with the packet id) or {@code null} if the end of the stream has been reached
+     * @throws IOException if an I/O error occurs.
+     */
+    protected ByteBuf readFrame() throws IOException {
+        while (true) {
             int next = readInt(in);
             int length = readInt(in);
             if (next == -1 || length == -1) {
-                break; // reached end of stream
+                return null; // reached end of stream
             }
             if (length == 0) {
                 continue; // skip empty segments
@@ -144,39 +195,277 @@ public class ReplayInputStream extends InputStream {
             while (length > 0) {
                 int read = buf.writeBytes(in, length);
                 if (read == -1) {
+                    buf.release();
                     throw new EOFException();
                 }
                 length -= read;
             }
+            frameTime = next;
+            return buf;
+        }
+    }
 
-            List<Packet> decoded = new LinkedList<>();
-            try {
-                for (ByteBuf packet : viaVersionConverter.convertPacket(buf, loginPhase ? State.LOGIN : State.PLAY)) {
-                    int packetId = new ByteBufNetInput(packet).readVarInt();
-                    decoded.add(new Packet(registry, packetId, registry.getType(packetId), packet));
+    /**
+     * Reads all packets which are ready (at least one, unless the end of the stream has been reached).
+     * In pipelined mode, this returns the next batch produced by the conversion thread.
+     * @return The packets or {@code null} if the end of the stream has been reached
+     * @throws IOException if an I/O error occurs.
+     */
+    public List<PacketData> readPacketBatch() throws IOException {
+        fillBuffer();
+        if (buffer.isEmpty()) {
+            return null;
+        }
+        List<PacketData> batch = new ArrayList<>(buffer);
+        buffer.clear();
+        return batch;
+    }
+
+    /**
+     * Switches this stream into pipelined mode.
+     * In pipelined mode, reading (and inflating) of the packet frames happens on one background thread, conversion
+     * via ViaVersion and packet type lookup happen on a second one and packets are handed to the consumer in batches.
+     * Packets are still returned in order. Both background threads are stopped when this stream is closed.
+     * Must be called before the first packet is read.
+     * While in pipelined mode, {@link #getRegistry()} reflects the state of the conversion thread, not the consumer.
+     * @param capacity Maximum number of frames (and batches) buffered between the stages
+     * @return This stream
+     */
+    public ReplayInputStream pipelined(int capacity) {
+        if (pipeline != null) {
+            throw new IllegalStateException("Stream is already pipelined.");
+        }
+        pipeline = new Pipeline(capacity);
+        pipeline.start();
+        return this;
+    }
+
+    private void fillBuffer() throws IOException {
+        if (pipeline != null) {
+            while (buffer.isEmpty()) {
+                List<PacketData> batch = pipeline.take();
+                if (batch == null) {
+                    break; // reached end of stream
                 }
-            } catch (Exception e) {
-                throw e instanceof IOException ? (IOException) e : new IOException("decoding", e);
+                buffer.addAll(batch);
+            }
+            return;
+        }
+
+        while (buffer.isEmpty()) {
+            ByteBuf buf = readFrame();
+            if (buf == null) {
+                break; // reached end of stream
             }
+            decodeFrame(frameTime, buf, buffer);
+        }
+    }
+
+    /**
+     * Decodes the packets of the given frame and adds them to the given collection.
+     * The frame is released, even if decoding fails.
+     */
+    private void decodeFrame(int next, ByteBuf buf, Collection<PacketData> out) throws IOException {
+        List<ByteBuf> converted;
+        try {
+            converted = viaVersionConverter.convertPacket(buf, loginPhase ? State.LOGIN : State.PLAY);
+        } catch (Exception e) {
+            throw e instanceof IOException ? (IOException) e : new IOException("decoding", e);
+        } finally {
             buf.release();
+        }
+
+        List<Packet> decoded = new LinkedList<>();
+        try {
+            for (ByteBuf packet : converted) {
+                int packetId = new ByteBufNetInput(packet).readVarInt();
+                decoded.add(new Packet(registry, packetId, registry.getType(packetId), packet));
+            }
+        } catch (Exception e) {
+            converted.forEach(ByteBuf::release);
+            throw e instanceof IOException ? (IOException) e : new IOException("decoding", e);
+        }
+
+        for (Packet packet : decoded) {
+            PacketType type = packet.getType();
+            if (type == PacketType.KeepAlive) {
+                packet.release();
+                continue; // They aren't needed in a replay
+            }
+
+            if (type == PacketType.LoginSuccess) {
+                loginPhase = false;
+                registry = PacketTypeRegistry.get(registry.getVersion(), State.PLAY);
+            }
+            if ((loginPhase || type == PacketType.LoginSuccess) && !outputLoginPhase) {
+                packet.release();
+                continue;
+            }
+            out.add(new PacketData(next, packet));
+        }
+    }
+
+    private static final class Frame {
+        private static final Frame END = new Frame(0, null);
+
+        private final int time;
+        private final ByteBuf buf;
+
+        private Frame(int time, ByteBuf buf) {
+            this.time = time;
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * Two background threads connected by bounded queues: the reader thread splits the input into frames, the
+     * converter thread decodes them into batches of packets. Bounded queues provide backpressure in both directions.
+     */
+    private final class Pipeline {
+        private final BlockingQueue<Frame> frames;
+        private final BlockingQueue<List<PacketData>> batches;
+        private final Thread reader;
+        private final Thread converter;
+        private volatile Throwable error;
+        private volatile boolean closed;
+        private boolean finished;
+
+        private Pipeline(int capacity) {
+            this.frames = new ArrayBlockingQueue<>(capacity);
+            this.batches = new ArrayBlockingQueue<>(capacity);
+            this.reader = new Thread(this::read, "ReplayInputStream-Reader");
+            this.converter = new Thread(this::convert, "ReplayInputStream-Converter");
+            this.reader.setDaemon(true);
+            this.converter.setDaemon(true);
+        }
+
+        private void start() {
+            reader.start();
+            converter.start();
+        }
 
-            for (Packet packet : decoded) {
-                PacketType type = packet.getType();
-                if (type == PacketType.KeepAlive) {
-                    packet.release();
-                    continue; // They aren't needed in a replay
+        private void read() {
+            try {
+                ByteBuf buf;
+                while ((buf = readFrame()) != null) {
+                    try {
+                        frames.put(new Frame(frameTime, buf));
+                    } catch (InterruptedException e) {
+                        buf.release();
+                        return; // closed
+                    }
+                }
+            } catch (Throwable t) {
+                if (closed) {
+                    return;
                 }
+                error = t;
+            }
+            try {
+                frames.put(Frame.END);
+            } catch (InterruptedException ignored) {
+                // closed
+            }
+        }
 
-                if (type == PacketType.LoginSuccess) {
-                    loginPhase = false;
-                    registry = PacketTypeRegistry.get(registry.getVersion(), State.PLAY);
+        private void convert() {
+            List<PacketData> batch = new ArrayList<>();
+            Frame frame = null; // taken from the queue but not yet decoded
+            try {
+                while (true) {
+                    // Block only if we have nothing to hand out, otherwise hand out what we have
+                    frame = batch.isEmpty() ? frames.take() : frames.poll();
+                    if (frame == null || batch.size() >= PIPELINE_BATCH_SIZE) {
+                        batches.put(batch);
+                        batch = new ArrayList<>();
+                    }
+                    if (frame == null) {
+                        continue;
+                    }
+                    if (frame == Frame.END) {
+                        break;
+                    }
+                    Frame decoding = frame;
+                    frame = null;
+                    decodeFrame(decoding.time, decoding.buf, batch);
                 }
-                if ((loginPhase || type == PacketType.LoginSuccess) && !outputLoginPhase) {
-                    packet.release();
-                    continue;
+                if (!batch.isEmpty()) {
+                    batches.put(batch);
                 }
-                buffer.offer(new PacketData(next, packet));
+                batches.put(END_OF_STREAM);
+            } catch (InterruptedException e) {
+                if (frame != null && frame.buf != null) {
+                    frame.buf.release();
+                }
+                batch.forEach(PacketData::release);
+            } catch (Throwable t) {
+                if (!closed) {
+                    error = t;
+                    try {
+                        // Packets decoded before the error are still handed out, same as when not pipelined
+                        if (!batch.isEmpty()) {
+                            batches.put(batch);
+                            batch = Collections.emptyList();
+                        }
+                        batches.put(END_OF_STREAM);
+                    } catch (InterruptedException ignored) {
+                        // closed
+                    }
+                }
+                batch.forEach(PacketData::release);
+            }
+        }
+
+        private List<PacketData> take() throws IOException {
+            if (finished) {
+                return null;
+            }
+            List<PacketData> batch;
+            try {
+                batch = batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (batch == END_OF_STREAM) {
+                finished = true;
+                Throwable t = error;
+                if (t != null) {
+                    throw t instanceof IOException ? (IOException) t : new IOException("decoding", t);
+                }
+                return null;
+            }
+            return batch;
+        }
+
+        private void close() {
+            closed = true;
+            reader.interrupt();
+            converter.interrupt();
+            boolean interrupted = false;
+            for (Thread thread : new Thread[]{reader, converter}) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (Frame frame : frames) {
+                if (frame.buf != null) {
+                    frame.buf.release();
+                }
+            }
+            frames.clear();
+            for (List<PacketData> batch : batches) {
+                batch.forEach(PacketData::release);
             }
+            batches.clear();
         }
     }
 
@@ -18,10 +18,7 @@
  */
 package com.replaymod.replaystudio.io;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.PooledByteBufAllocator;
-import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
+import com.google.common.io.ByteStreams;
 import com.google.gson.Gson;
 import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.Studio;
@@ -32,16 +29,17 @@ import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.protocol.packets.PacketLoginSuccess;
 import com.replaymod.replaystudio.replay.ReplayMetaData;
 import com.replaymod.replaystudio.studio.ReplayStudio;
+import com.replaymod.replaystudio.util.ParallelDeflaterOutputStream;
+import com.replaymod.replaystudio.util.RawZipOutputStream;
 import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-
-import static com.replaymod.replaystudio.util.Utils.writeInt;
 
 /**
  * Output stream capable of writing {@link Packet}s and (optionally)
@@ -50,7 +48,6 @@ import static com.replaymod.replaystudio.util.Utils.writeInt;
 public class ReplayOutputStream extends OutputStream {
 
     private static final Gson GSON = new Gson();
-    private static final ByteBufAllocator ALLOC = PooledByteBufAllocator.DEFAULT;
 
     /**
      * Meta data for the current replay. Gets written after all packets are written.
@@ -59,14 +56,14 @@ public class ReplayOutputStream extends OutputStream {
 
     /**
      * The actual output stream.
-     * If we write to a ZIP output stream, this is the same as {@link #zipOut}.
+     * If we write to a ZIP output stream, this is the output stream of the current entry in {@link #zipOut}.
      */
-    private final OutputStream out;
+    private OutputStream out;
 
     /**
      * If we write to a ZIP output stream instead of just raw data, this holds a reference to that output stream.
      */
-    private final ZipOutputStream zipOut;
+    private final RawZipOutputStream zipOut;
 
     /**
      * Duration of the replay written. This gets updated with each packet and is afterwards used to set the
@@ -76,15 +73,44 @@ public class ReplayOutputStream extends OutputStream {
 
     private boolean loginPhase = true;
 
+    /**
+     * Whether the packet data started in the login phase.
+     */
+    private final boolean startedInLoginPhase;
+
+    /**
+     * Protocol version of the first packet written or {@code null} if no packets have been written yet.
+     */
+    private ProtocolVersion version;
+
+    /**
+     * Scratch space for the header (time, length and id) of each packet.
+     */
+    private final byte[] header = new byte[13];
+
     /**
      * Creates a new replay output stream which will not compress packets written to it nor write any meta data.
      * The resulting output can be read directly by a {@link ReplayInputStream}.
      * @param out The actual output stream
      */
     public ReplayOutputStream(OutputStream out) {
+        this(out, true);
+    }
+
+    /**
+     * Creates a new replay output stream which will not compress packets written to it nor write any meta data,
+     * for packet data which does not necessarily start at the beginning of a recording.
+     * @param out The actual output stream
+     * @param loginPhase Whether the packet data starts in the login phase. If it does, a LoginSuccess packet is
+     *                   written before the first packet which is not part of the login phase.
+     * @see ReplayInputStream#ReplayInputStream(PacketTypeRegistry, java.io.InputStream, int, int, boolean)
+     */
+    public ReplayOutputStream(OutputStream out, boolean loginPhase) {
         this.out = out;
         this.zipOut = null;
         this.metaData = null;
+        this.loginPhase = loginPhase;
+        this.startedInLoginPhase = loginPhase;
     }
 
     /**
@@ -96,6 +122,21 @@ public class ReplayOutputStream extends OutputStream {
      * @throws IOException If an exception occurred while writing the first entry to the zip output stream
      */
     public ReplayOutputStream(ProtocolVersion version, OutputStream out, ReplayMetaData metaData) throws IOException {
+        this(version, out, metaData, 1, ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new replay output stream which will write its packets and the specified meta data
+     * in a zip output stream according to the MCPR format, compressing it with multiple threads.
+     *
+     * @param out The actual output stream
+     * @param metaData The meta data written to the output
+     * @param compressionThreads Number of threads used for compression, see {@link RawZipOutputStream#setCompressionThreads(int, int)}
+     * @param compressionBlockSize Size of independently compressed blocks when using more than one thread
+     * @throws IOException If an exception occurred while writing the first entry to the zip output stream
+     */
+    public ReplayOutputStream(ProtocolVersion version, OutputStream out, ReplayMetaData metaData,
+                              int compressionThreads, int compressionBlockSize) throws IOException {
         Studio studio = new ReplayStudio();
         if (metaData == null) {
             metaData = new ReplayMetaData();
@@ -108,11 +149,12 @@ public class ReplayOutputStream extends OutputStream {
         metaData.setProtocolVersion(version.getOriginalVersion());
         metaData.setGenerator("ReplayStudio v" + studio.getVersion());
         this.metaData = metaData;
+        this.startedInLoginPhase = true;
 
-        this.out = zipOut = new ZipOutputStream(out);
-
-        zipOut.putNextEntry(new ZipEntry("recording.tmcpr"));
+        this.zipOut = new RawZipOutputStream(out);
+        this.zipOut.setCompressionThreads(compressionThreads, compressionBlockSize);
 
+        this.out = new BufferedOutputStream(zipOut.putNextEntry("recording.tmcpr"));
     }
 
     @Override
@@ -131,6 +173,29 @@ public class ReplayOutputStream extends OutputStream {
         write(data.getTime(), data.getPacket());
     }
 
+    /**
+     * Writes all of the specified packet data to the underlying output stream, in order.
+     * @param batch The packet data
+     * @throws IOException - if an I/O error occurs.
+     *      In particular, an IOException may be thrown if the output stream has been closed.
+     * @see #write(PacketData)
+     */
+    public void write(List<PacketData> batch) throws IOException {
+        int size = batch.size();
+        int i = 0;
+        try {
+            for (; i < size; i++) {
+                PacketData data = batch.get(i);
+                write(data.getTime(), data.getPacket());
+            }
+        } finally {
+            // The packet which failed has already been released, the ones after it never will be otherwise
+            for (int j = i + 1; j < size; j++) {
+                batch.get(j).release();
+            }
+        }
+    }
+
     /**
      * Writes the specified packet data to the underlying output stream.
      * @param time The timestamp
@@ -140,30 +205,71 @@ public class ReplayOutputStream extends OutputStream {
      * @see #write(PacketData)
      */
     public void write(long time, Packet packet) throws IOException {
+        if (version == null) {
+            version = packet.getProtocolVersion();
+        }
         if (packet.getRegistry().getState() != State.LOGIN && loginPhase) {
-            PacketTypeRegistry registry = PacketTypeRegistry.get(packet.getProtocolVersion(), State.LOGIN);
-            doWrite(0, new PacketLoginSuccess(UUID.nameUUIDFromBytes(new byte[0]), "Player", Collections.emptyList()).write(registry));
+            try {
+                writeLoginSuccess(packet.getProtocolVersion());
+            } catch (IOException | RuntimeException e) {
+                packet.release();
+                throw e;
+            }
         }
         doWrite(time, packet);
     }
 
+    /**
+     * Appends packet data which has been written by another, raw replay output stream (see
+     * {@link #ReplayOutputStream(OutputStream, boolean)}) as is, without decoding and encoding its packets again.
+     * The result is the same as if all packets had been written to this stream directly.
+     * @param in The packet data, which is read until its end but not closed
+     * @param source The stream which wrote the packet data, must already be closed
+     * @throws IOException - if an I/O error occurs.
+     */
+    public void append(InputStream in, ReplayOutputStream source) throws IOException {
+        if (source.version == null) {
+            return; // No packets
+        }
+        if (loginPhase && !source.startedInLoginPhase) {
+            writeLoginSuccess(source.version);
+        }
+        ByteStreams.copy(in, out);
+        if (version == null) {
+            version = source.version;
+        }
+        if (duration < source.duration) {
+            duration = source.duration;
+        }
+        loginPhase &= source.loginPhase;
+    }
+
+    private void writeLoginSuccess(ProtocolVersion version) throws IOException {
+        PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.LOGIN);
+        doWrite(0, new PacketLoginSuccess(UUID.nameUUIDFromBytes(new byte[0]), "Player", Collections.emptyList()).write(registry));
+    }
+
     private void doWrite(long time, Packet packet) throws IOException {
         if (duration < time) {
             duration = (int) time;
         }
 
-        ByteBuf packetIdBuf = ALLOC.buffer();
         try {
-            new ByteBufNetOutput(packetIdBuf).writeVarInt(packet.getId());
+            // Time, length and packet id are written in one go
+            int packetIdLen = 0;
+            int packetId = packet.getId();
+            while ((packetId & ~0x7f) != 0) {
+                header[8 + packetIdLen++] = (byte) (packetId & 0x7f | 0x80);
+                packetId >>>= 7;
+            }
+            header[8 + packetIdLen++] = (byte) packetId;
 
-            int packetIdLen = packetIdBuf.readableBytes();
             int packetBufLen = packet.getBuf().readableBytes();
-            writeInt(out, (int) time);
-            writeInt(out, packetIdLen + packetBufLen);
-            packetIdBuf.readBytes(out, packetIdLen);
+            putInt(header, 0, (int) time);
+            putInt(header, 4, packetIdLen + packetBufLen);
+            out.write(header, 0, 8 + packetIdLen);
             packet.getBuf().getBytes(packet.getBuf().readerIndex(), out, packetBufLen);
         } finally {
-            packetIdBuf.release();
             packet.getBuf().release();
         }
 
@@ -172,6 +278,13 @@ public class ReplayOutputStream extends OutputStream {
         }
     }
 
+    private static void putInt(byte[] array, int index, int value) {
+        array[index] = (byte) (value >>> 24);
+        array[index + 1] = (byte) (value >>> 16);
+        array[index + 2] = (byte) (value >>> 8);
+        array[index + 3] = (byte) value;
+    }
+
     /**
      * Starts a new entry in this replay zip file.
      * The previous entry is therefore closed.
@@ -179,8 +292,8 @@ public class ReplayOutputStream extends OutputStream {
      */
     public void nextEntry(String name) throws IOException {
         if (zipOut != null) {
-            zipOut.closeEntry();
-            zipOut.putNextEntry(new ZipEntry(name));
+            out.close();
+            out = new BufferedOutputStream(zipOut.putNextEntry(name));
         } else {
             throw new UnsupportedOperationException("Cannot start new entry when writing raw replay output.");
         }
@@ -188,14 +301,13 @@ public class ReplayOutputStream extends OutputStream {
 
     @Override
     public void close() throws IOException {
+        out.close();
         if (zipOut != null) {
-            zipOut.closeEntry();
-
             metaData.setDuration(duration);
-            zipOut.putNextEntry(new ZipEntry("metaData.json"));
-            zipOut.write(GSON.toJson(metaData).getBytes());
-            zipOut.closeEntry();
+            try (OutputStream metaDataOut = zipOut.putNextEntry("metaData.json")) {
+                metaDataOut.write(GSON.toJson(metaData).getBytes());
+            }
+            zipOut.close();
         }
-        out.close();
     }
 }
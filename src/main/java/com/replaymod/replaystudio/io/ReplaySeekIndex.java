@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.github.steveice10.packetlib.io.NetInput;
+import com.github.steveice10.packetlib.io.NetOutput;
+import com.github.steveice10.packetlib.io.stream.StreamNetInput;
+import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
+import com.google.common.io.ByteStreams;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.replaymod.replaystudio.util.Utils.readInt;
+
+/**
+ * Sparse index mapping timestamps to byte offsets in the raw packet data of a replay (i.e. {@code recording.tmcpr}).
+ * <p>
+ * Each index point marks the start of a packet frame from which decoding may be resumed, together with the time of that
+ * frame and the protocol state (LOGIN or PLAY) the stream is in at that point. Points are created at least every
+ * {@code intervalMillis} of replay time or every {@code intervalPackets} frames, whichever comes first.
+ * <p>
+ * Resuming a stream which is converted by ViaVersion is only possible at points where the converter does not depend
+ * on any state from previous packets. We do not snapshot converter state, instead such streams fall back to the
+ * nearest preceding join point, i.e. the nearest preceding JoinGame packet (or the very start of the stream), which
+ * re-initializes most of the state ViaVersion tracks. Note that this is a best-effort fallback, there may still be
+ * converter state (e.g. entities spawned in a previous world) which is lost when resuming at a join point.
+ */
+public class ReplaySeekIndex {
+    public static final int DEFAULT_INTERVAL_MILLIS = 10_000;
+    public static final int DEFAULT_INTERVAL_PACKETS = 50_000;
+
+    private static final int VERSION = 1;
+
+    private static final int FLAG_LOGIN_PHASE = 1;
+    private static final int FLAG_JOIN_POINT = 2;
+
+    private int size;
+    private int[] times;
+    private long[] offsets;
+    private byte[] flags;
+
+    private ReplaySeekIndex(int capacity) {
+        this.times = new int[capacity];
+        this.offsets = new long[capacity];
+        this.flags = new byte[capacity];
+    }
+
+    private void add(int time, long offset, boolean loginPhase, boolean joinPoint) {
+        if (size == times.length) {
+            int capacity = Math.max(16, size * 2);
+            times = Arrays.copyOf(times, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+        times[size] = time;
+        offsets[size] = offset;
+        flags[size] = (byte) ((loginPhase ? FLAG_LOGIN_PHASE : 0) | (joinPoint ? FLAG_JOIN_POINT : 0));
+        size++;
+    }
+
+    /**
+     * Builds a new index by scanning the frame headers of the given raw packet data.
+     * Only the packet id of each frame is decoded, the remaining packet data is skipped.
+     * @param in The raw packet data, will be read until its end but not closed
+     * @param fileFormatVersion The file format version of the replay packet data
+     * @param fileProtocol The MC protocol version of the replay packet data
+     * @param intervalMillis Maximum amount of replay time between two index points
+     * @param intervalPackets Maximum amount of frames between two index points
+     * @return The index
+     * @throws IOException if an I/O error occurs.
+     */
+    public static ReplaySeekIndex build(InputStream in, int fileFormatVersion, ProtocolVersion fileProtocol,
+                                        int intervalMillis, int intervalPackets) throws IOException {
+        PacketTypeRegistry loginRegistry = PacketTypeRegistry.get(fileProtocol, State.LOGIN);
+        PacketTypeRegistry playRegistry = PacketTypeRegistry.get(fileProtocol, State.PLAY);
+        boolean loginPhase = ReplayInputStream.startsInLoginPhase(fileFormatVersion);
+
+        ReplaySeekIndex index = new ReplaySeekIndex(64);
+        index.add(0, 0, loginPhase, true);
+
+        int lastTime = 0;
+        int packetsSinceLast = 0;
+        long offset = 0;
+        while (true) {
+            int time = readInt(in);
+            int length = readInt(in);
+            if (time == -1 || length == -1) {
+                break; // reached end of stream
+            }
+
+            int packetId = 0;
+            int idLength = 0;
+            if (length > 0) {
+                int b;
+                do {
+                    b = in.read();
+                    if (b == -1) {
+                        throw new EOFException();
+                    }
+                    packetId |= (b & 0x7f) << (7 * idLength++);
+                } while ((b & 0x80) != 0 && idLength < 5 && idLength < length);
+            }
+            PacketType type = (loginPhase ? loginRegistry : playRegistry).getType(packetId);
+
+            boolean joinPoint = !loginPhase && type == PacketType.JoinGame;
+            boolean due = joinPoint || time - lastTime >= intervalMillis || packetsSinceLast >= intervalPackets;
+            if (length > 0 && due && time >= lastTime) { // keep points sorted, even if the replay's timestamps aren't
+                index.add(time, offset, loginPhase, joinPoint);
+                lastTime = time;
+                packetsSinceLast = 0;
+            }
+
+            ByteStreams.skipFully(in, length - idLength);
+            offset += 8 + length;
+            packetsSinceLast++;
+
+            if (loginPhase && type == PacketType.LoginSuccess) {
+                loginPhase = false;
+            }
+        }
+        return index;
+    }
+
+    public static ReplaySeekIndex read(InputStream rawIn) throws IOException {
+        NetInput in = new StreamNetInput(rawIn);
+        if (in.readVarInt() != VERSION) {
+            return null; // Incompatible index version
+        }
+        int size = in.readVarInt();
+        ReplaySeekIndex index = new ReplaySeekIndex(size);
+        int time = 0;
+        long offset = 0;
+        for (int i = 0; i < size; i++) {
+            time += in.readVarInt();
+            offset += in.readVarLong();
+            index.times[i] = time;
+            index.offsets[i] = offset;
+            index.flags[i] = in.readByte();
+        }
+        index.size = size;
+        return index;
+    }
+
+    public void write(OutputStream rawOut) throws IOException {
+        NetOutput out = new StreamNetOutput(rawOut);
+        out.writeVarInt(VERSION);
+        out.writeVarInt(size);
+        int time = 0;
+        long offset = 0;
+        for (int i = 0; i < size; i++) {
+            out.writeVarInt(times[i] - time);
+            out.writeVarLong(offsets[i] - offset);
+            out.writeByte(flags[i]);
+            time = times[i];
+            offset = offsets[i];
+        }
+    }
+
+    /**
+     * Finds the index point from which to start reading in order to receive all packets at or after the given time.
+     * Packets before the given time may be received as well.
+     * @param time The time in milliseconds
+     * @param joinPointOnly Whether only join points should be considered (required for converted streams)
+     * @return Index of the point, {@code 0} (the start of the stream) if there is no better one
+     */
+    public int find(int time, boolean joinPointOnly) {
+        // Find the last point strictly before the given time, so we don't miss any earlier packets with the same time
+        int i = Arrays.binarySearch(times, 0, size, time);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        while (i > 0 && times[i - 1] >= time) {
+            i--;
+        }
+        i = Math.max(0, i - 1);
+        if (joinPointOnly) {
+            while (i > 0 && !isJoinPoint(i)) {
+                i--;
+            }
+        }
+        return i;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getTime(int point) {
+        return times[point];
+    }
+
+    public long getOffset(int point) {
+        return offsets[point];
+    }
+
+    public boolean isLoginPhase(int point) {
+        return (flags[point] & FLAG_LOGIN_PHASE) != 0;
+    }
+
+    public boolean isJoinPoint(int point) {
+        return (flags[point] & FLAG_JOIN_POINT) != 0;
+    }
+}
@@ -54,6 +54,16 @@ public class Launcher {
                 "This is equivalent to -c \"(<a,>b)(a[b)\"");
         options.addOption("r", "reverse", false, "Reverses the packet order in the specified replay and writes it" +
                 "to the specified output file. Note that the output file if raw packet data, not a zipped replay with meta data.");
+        options.addOption("t", "compression-threads", true, "Number of threads used to compress the output replay (default 1).");
+        options.addOption("b", "compression-block-size", true, "Size in KB of the blocks which are compressed independently " +
+                "when using more than one compression thread (default 128).");
+        options.addOption("m", "batch", true, "Applies the stream filters (-s or -q) to many replays at once. Pass in the " +
+                "amount of replays processed concurrently. The first file is then either a directory of replays or a file " +
+                "listing one replay per line, the second file the output path where \"{name}\" is replaced by the " +
+                "name of each input replay (without extension).");
+        options.addOption("n", "shards", true, "Splits the packet data of the replay into the specified amount of " +
+                "time ranges which are processed in parallel by the stream filters (-s or -q). Falls back to a " +
+                "single stream if any of the filters cannot be run in parallel.");
         options.addOption("d", "daemon", true, "Runs replay studio as a daemon listening for requests. Pass in the amount" +
                 "of concurrent worker threads. The port of the daemon is defined by the environment variable 'replaystudio.port' (default 4002).");
 
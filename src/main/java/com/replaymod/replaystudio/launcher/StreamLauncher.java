@@ -23,6 +23,7 @@ import com.google.gson.JsonParser;
 import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.Studio;
 import com.replaymod.replaystudio.filter.StreamFilter;
+import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.io.ReplayOutputStream;
 import com.viaversion.viaversion.api.protocol.packet.State;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
@@ -30,24 +31,39 @@ import com.replaymod.replaystudio.replay.ReplayFile;
 import com.replaymod.replaystudio.replay.ReplayMetaData;
 import com.replaymod.replaystudio.replay.ZipReplayFile;
 import com.replaymod.replaystudio.stream.PacketStream;
+import com.replaymod.replaystudio.stream.ShardedStreamExecutor;
 import com.replaymod.replaystudio.studio.ReplayStudio;
 import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
 import org.apache.commons.cli.CommandLine;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.System.in;
 
 public class StreamLauncher {
 
+    /**
+     * Maximum number of packets moved from the stream to the output at once.
+     */
+    private static final int BATCH_SIZE = 4096;
+
     private final Studio studio = new ReplayStudio();
 
     public void launch(CommandLine cmd) throws IOException {
         // Removes the first minute, applies sample_filter on the whole stream and applies some_other at 3m for 10s:
         //   remove(-1m),sample_filter,some_other(3m-3m10s)
-        List<PacketStream.FilterInfo> filters = new ArrayList<>();
+        List<FilterSpec> filters = new ArrayList<>();
         String[] instructions;
         if (cmd.hasOption('q')) {
             instructions = new String[]{"squash"};
@@ -74,61 +90,275 @@ public class StreamLauncher {
             } else {
                 config = new JsonObject();
             }
-            StreamFilter filter = studio.loadStreamFilter(instruction);
-            if (filter == null) {
+            if (studio.loadStreamFilter(instruction) == null) {
                 throw new IllegalStateException("Filter not found: " + instruction);
             }
-            filter.init(studio,config);
-            filters.add(new PacketStream.FilterInfo(filter, start, end));
+            filters.add(new FilterSpec(instruction, config, start, end));
         }
 
         String input = cmd.getArgs()[0];
         String output = cmd.getArgs()[1];
+        int compressionThreads = Integer.parseInt(cmd.getOptionValue('t', "1"));
+        int compressionBlockSize = Integer.parseInt(cmd.getOptionValue('b', "128")) * 1024;
+        int shards = Integer.parseInt(cmd.getOptionValue('n', "1"));
+
+        if (cmd.hasOption('m')) {
+            int jobs = Integer.parseInt(cmd.getOptionValue('m'));
+            launchBatch(filters, input, output, jobs, shards, compressionThreads, compressionBlockSize);
+            return;
+        }
 
         long start = System.nanoTime();
         System.out.println("Generating " + ("x".equals(output) ? 0 : 1) + " replay via 1 stream from 1 input applying " + filters.size() + " filter(s)");
 
-        ReplayFile inFile = new ZipReplayFile(studio, new File(input));
-        ReplayMetaData meta = inFile.getMetaData();
-        ProtocolVersion inputVersion = meta.getProtocolVersion();
-        ReplayOutputStream out;
-        if (!"x".equals(output)) {
-            OutputStream buffOut = new BufferedOutputStream(new FileOutputStream(output));
-            out = new ReplayOutputStream(inputVersion, buffOut, null);
+        process(filters, new File(input), output, shards, compressionThreads, compressionBlockSize, true);
+
+        in.close();
+
+        System.out.println("Done after " + (System.nanoTime() - start) + "ns");
+    }
+
+    /**
+     * Runs the filters over many replays, each in its own stream, with up to {@code jobs} streams in parallel.
+     * Failures are reported per replay and do not affect any of the other ones.
+     * @param input Directory containing the input replays or a file listing one input replay per line
+     * @param outputTemplate Path of the output replay, with {@code {name}} replaced by the file name of the input
+     *                       without extension, or "x" to discard all outputs. Must result in a distinct path for
+     *                       each input.
+     * @param shards Number of shards each replay is split into, see {@link ShardedStreamExecutor}
+     */
+    private void launchBatch(List<FilterSpec> filters, String input, String outputTemplate, int jobs, int shards,
+                             int compressionThreads, int compressionBlockSize) throws IOException {
+        boolean dropOutput = "x".equals(outputTemplate);
+        if (!dropOutput && !outputTemplate.contains("{name}")) {
+            throw new IllegalStateException("Output path must contain {name} (or be x) when processing multiple replays: " + outputTemplate);
+        }
+
+        List<File> inputs = new ArrayList<>();
+        File inputFile = new File(input);
+        if (inputFile.isDirectory()) {
+            File[] files = inputFile.listFiles((dir, name) -> name.endsWith(".mcpr") || name.endsWith(".zip"));
+            if (files != null) {
+                Arrays.sort(files);
+                inputs.addAll(Arrays.asList(files));
+            }
         } else {
-            out = null;
+            try (BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        inputs.add(new File(line));
+                    }
+                }
+            }
         }
-        PacketStream stream = inFile.getPacketData(PacketTypeRegistry.get(inputVersion, State.LOGIN)).asPacketStream();
 
-        // Process stream
-        stream.start();
+        // Determine all outputs up front, so no two jobs (or a job and its input) write to the same file
+        List<String> outputs = new ArrayList<>();
+        Map<File, File> claimed = new HashMap<>();
+        for (File file : inputs) {
+            claimed.put(file.getCanonicalFile(), file);
+        }
+        for (File file : inputs) {
+            String output = "x";
+            if (!dropOutput) {
+                String name = file.getName();
+                int extension = name.lastIndexOf('.');
+                output = outputTemplate.replace("{name}", extension == -1 ? name : name.substring(0, extension));
+                File other = claimed.put(new File(output).getCanonicalFile(), file);
+                if (other != null) {
+                    throw new IllegalStateException("Output " + output + " of " + file + " collides with "
+                            + (other == file ? "the input itself" : "input or output of " + other));
+                }
+            }
+            outputs.add(output);
+        }
+
+        long start = System.nanoTime();
+        System.out.println("Generating " + (dropOutput ? 0 : inputs.size()) + " replay(s) via "
+                + inputs.size() + " stream(s) from " + inputs.size() + " input(s) applying " + filters.size()
+                + " filter(s) with " + jobs + " job(s)");
 
-        stream.addFilter(new ProgressFilter(meta.getDuration()));
-        for (PacketStream.FilterInfo info : filters) {
-            stream.addFilter(info.getFilter(), info.getFrom(), info.getTo());
+        AtomicLong packets = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < inputs.size(); i++) {
+                File file = inputs.get(i);
+                String output = outputs.get(i);
+                futures.add(executor.submit(() -> {
+                    try {
+                        packets.addAndGet(process(filters, file, output, shards, compressionThreads, compressionBlockSize, false));
+                        bytes.addAndGet(file.length());
+                        System.out.println("Done: " + file);
+                    } catch (Throwable t) {
+                        failed.incrementAndGet();
+                        System.out.println("Failed: " + file + ": " + t);
+                        t.printStackTrace();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e); // job catches everything
+                }
+            }
+        } finally {
+            executor.shutdownNow();
         }
 
-        System.out.println("Built pipeline: " + stream);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Done after %.1fs: %d of %d replay(s) succeeded, %d packet(s) at %.0f packets/s, %.1f MB at %.1f MB/s",
+                seconds, inputs.size() - failed.get(), inputs.size(), packets.get(), packets.get() / seconds,
+                bytes.get() / 1e6, bytes.get() / 1e6 / seconds));
+    }
 
-        PacketData data;
-        if (out != null) { // Write output
-            while ((data = stream.next()) != null) {
-                out.write(data);
+    /**
+     * Runs the filters over a single replay.
+     * @param shards Number of shards the replay is split into, see {@link ShardedStreamExecutor}
+     * @return The number of packets written
+     */
+    private long process(List<FilterSpec> filters, File input, String output, int shards,
+                         int compressionThreads, int compressionBlockSize, boolean showProgress) throws IOException {
+        try (ReplayFile inFile = new ZipReplayFile(studio, input)) {
+            ReplayMetaData meta = inFile.getMetaData();
+            ProtocolVersion inputVersion = meta.getProtocolVersion();
+            ReplayOutputStream out;
+            if (!"x".equals(output)) {
+                OutputStream buffOut = new BufferedOutputStream(new FileOutputStream(output));
+                try {
+                    out = new ReplayOutputStream(inputVersion, buffOut, null, compressionThreads, compressionBlockSize);
+                } catch (Throwable t) {
+                    buffOut.close();
+                    new File(output).delete();
+                    throw t;
+                }
+            } else {
+                out = null;
             }
+            try {
+                PacketTypeRegistry registry = PacketTypeRegistry.get(inputVersion, State.LOGIN);
+                if (shards > 1) {
+                    ShardedStreamExecutor executor = new ShardedStreamExecutor(inFile, registry, shards);
+                    for (FilterSpec spec : filters) {
+                        executor.addFilter(loadFilter(spec), spec.from, spec.to);
+                    }
+                    if (showProgress) {
+                        if (!executor.isParallelizable()) {
+                            System.out.println("Filters cannot be applied in parallel, processing a single stream");
+                        } else if (!executor.isSharded()) {
+                            System.out.println("Packet data is compressed and cannot be split, processing a single stream");
+                        } else {
+                            System.out.println("Processing up to " + shards + " shards in parallel");
+                        }
+                    }
+                    long count = executor.run(out);
+                    if (out != null) {
+                        out.close();
+                    }
+                    return count;
+                }
+
+                // When the output is dropped, packets before the earliest filter range are never looked at, so
+                // decoding can start at the closest seek index point instead
+                long from = out == null ? earliestFrom(filters) : 0;
+                ReplayInputStream packetData = from > 0 ? inFile.getPacketData(registry, (int) from) : inFile.getPacketData(registry);
+                PacketStream stream = packetData.asPacketStream();
+
+                // Process stream
+                stream.start();
+
+                if (showProgress) {
+                    stream.addFilter(new ProgressFilter(meta.getDuration()));
+                }
+                for (FilterSpec spec : filters) {
+                    stream.addFilter(loadFilter(spec), spec.from, spec.to);
+                }
 
-            for (PacketData d : stream.end()) {
-                out.write(d);
+                if (showProgress) {
+                    System.out.println("Built pipeline: " + stream);
+                }
+
+                long count = 0;
+                List<PacketData> batch = new ArrayList<>(BATCH_SIZE);
+                if (out != null) { // Write output
+                    int n;
+                    while ((n = stream.next(batch, BATCH_SIZE)) > 0) {
+                        out.write(batch);
+                        batch.clear();
+                        count += n;
+                    }
+
+                    List<PacketData> rest = stream.end();
+                    out.write(rest);
+                    count += rest.size();
+
+                    out.close();
+                } else { // Drop output
+                    int n;
+                    while ((n = stream.next(batch, BATCH_SIZE)) > 0) {
+                        release(batch);
+                        batch.clear();
+                        count += n;
+                    }
+                    List<PacketData> rest = stream.end();
+                    release(rest);
+                    count += rest.size();
+                }
+                return count;
+            } catch (Throwable t) {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        t.addSuppressed(e);
+                    }
+                    // Closing writes the meta data, so the truncated output would look like a valid replay
+                    File outputFile = new File(output);
+                    if (outputFile.exists() && !outputFile.delete()) {
+                        t.addSuppressed(new IOException("Failed to delete partial output " + output));
+                    }
+                }
+                throw t;
             }
+        }
+    }
 
-            out.close();
-        } else { // Drop output
-            while (stream.next() != null);
-            stream.end();
+    private static void release(List<PacketData> batch) {
+        for (PacketData data : batch) {
+            data.release();
         }
+    }
 
-        in.close();
+    /**
+     * Returns the earliest time any of the filters applies from, or 0 if any of them applies to the whole stream.
+     */
+    private static long earliestFrom(List<FilterSpec> filters) {
+        long from = Long.MAX_VALUE;
+        for (FilterSpec spec : filters) {
+            if (spec.from <= 0) {
+                return 0;
+            }
+            from = Math.min(from, spec.from);
+        }
+        return from == Long.MAX_VALUE ? 0 : from;
+    }
 
-        System.out.println("Done after " + (System.nanoTime() - start) + "ns");
+    private StreamFilter loadFilter(FilterSpec spec) {
+        StreamFilter filter;
+        synchronized (studio) {
+            filter = studio.loadStreamFilter(spec.name);
+        }
+        filter.init(studio, spec.config);
+        return filter;
     }
 
     private long timeStampToMillis(String string) {
@@ -168,6 +398,20 @@ public class StreamLauncher {
         }
     }
 
+    private static class FilterSpec {
+        private final String name;
+        private final JsonObject config;
+        private final long from;
+        private final long to;
+
+        private FilterSpec(String name, JsonObject config, long from, long to) {
+            this.name = name;
+            this.config = config;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
     private static class ProgressFilter implements StreamFilter {
 
         private final long total;
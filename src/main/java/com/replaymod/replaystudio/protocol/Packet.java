@@ -19,25 +19,31 @@
 package com.replaymod.replaystudio.protocol;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.Unpooled;
 import com.github.steveice10.opennbt.NBTIO;
 import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
 import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
-import com.github.steveice10.packetlib.tcp.io.ByteBufNetInput;
-import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
 import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import com.replaymod.replaystudio.util.ByteBufExtNetInput;
+import com.replaymod.replaystudio.util.ByteBufExtNetOutput;
 import com.replaymod.replaystudio.util.IGlobalPosition;
 import com.replaymod.replaystudio.util.IOConsumer;
 import com.replaymod.replaystudio.util.IOSupplier;
 import com.replaymod.replaystudio.util.IPosition;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
 import java.util.Objects;
@@ -55,7 +61,7 @@ public class Packet {
     }
 
     public Packet(PacketTypeRegistry registry, PacketType type, ByteBuf buf) {
-        this(registry, registry.getId(type), type, buf);
+        this(registry, idOf(registry, type), type, buf);
     }
 
     public Packet(PacketTypeRegistry registry, int packetId, ByteBuf buf) {
@@ -69,6 +75,14 @@ public class Packet {
         this.buf = buf;
     }
 
+    private static int idOf(PacketTypeRegistry registry, PacketType type) {
+        int id = registry.getId(type);
+        if (id == PacketTypeRegistry.NO_ID) {
+            throw new IllegalArgumentException(type + " does not exist in " + registry.getVersion() + " " + registry.getState());
+        }
+        return id;
+    }
+
     public PacketTypeRegistry getRegistry() {
         return registry;
     }
@@ -138,7 +152,7 @@ public class Packet {
         return Objects.hash(registry, id, buf);
     }
 
-    public static class Reader extends ByteBufNetInput implements AutoCloseable {
+    public static class Reader extends ByteBufExtNetInput implements AutoCloseable {
         private final Packet packet;
         private final ByteBuf buf;
         private int orgReaderIndex;
@@ -188,7 +202,15 @@ public class Packet {
         }
 
         public static CompoundTag readNBT(PacketTypeRegistry registry, NetInput in) throws IOException {
+            ByteBuf buf = bufOf(in);
             if (registry.atLeast(ProtocolVersion.v1_8)) {
+                if (buf != null) {
+                    if (buf.getByte(buf.readerIndex()) == 0) {
+                        buf.skipBytes(1);
+                        return null;
+                    }
+                    return NBTIO.readTag((DataInput) new ByteBufInputStream(buf));
+                }
                 byte b = in.readByte();
                 if (b == 0) {
                     return null;
@@ -205,18 +227,104 @@ public class Packet {
                                 return in.readUnsignedByte();
                             }
                         }
+
+                        @Override
+                        public int read(byte[] dst, int off, int len) throws IOException {
+                            if (len == 0) {
+                                return 0;
+                            }
+                            if (first) {
+                                first = false;
+                                dst[off] = b;
+                                return 1;
+                            }
+                            return in.readBytes(dst, off, len);
+                        }
                     });
                 }
             } else {
                 short length = in.readShort();
                 if (length < 0) {
                     return null;
+                } else if (buf != null) {
+                    // Slice so the buffer is advanced by exactly the length, regardless of how much gzip reads ahead
+                    return NBTIO.readTag(new GZIPInputStream(new ByteBufInputStream(buf.readSlice(length))));
                 } else {
                     return NBTIO.readTag(new GZIPInputStream(new ByteArrayInputStream(in.readBytes(length))));
                 }
             }
         }
 
+        /**
+         * Skips over an NBT tag as would be read by {@link #readNBT()} without decoding it.
+         */
+        public void skipNBT() throws IOException {
+            skipNBT(packet.registry, this);
+        }
+
+        public static void skipNBT(PacketTypeRegistry registry, NetInput in) throws IOException {
+            ByteBuf buf = bufOf(in);
+            if (buf == null) {
+                readNBT(registry, in);
+                return;
+            }
+            if (registry.atLeast(ProtocolVersion.v1_8)) {
+                byte type = buf.readByte();
+                if (type != 0) {
+                    buf.skipBytes(buf.readUnsignedShort()); // name
+                    skipNBTPayload(buf, type);
+                }
+            } else {
+                short length = buf.readShort();
+                if (length > 0) {
+                    buf.skipBytes(length);
+                }
+            }
+        }
+
+        private static void skipNBTPayload(ByteBuf buf, byte type) throws IOException {
+            switch (type) {
+                case 1: buf.skipBytes(1); break; // byte
+                case 2: buf.skipBytes(2); break; // short
+                case 3: buf.skipBytes(4); break; // int
+                case 4: buf.skipBytes(8); break; // long
+                case 5: buf.skipBytes(4); break; // float
+                case 6: buf.skipBytes(8); break; // double
+                case 7: buf.skipBytes(buf.readInt()); break; // byte array
+                case 8: buf.skipBytes(buf.readUnsignedShort()); break; // string
+                case 9: { // list
+                    byte elementType = buf.readByte();
+                    int length = buf.readInt();
+                    for (int i = 0; i < length; i++) {
+                        skipNBTPayload(buf, elementType);
+                    }
+                    break;
+                }
+                case 10: { // compound
+                    byte entryType;
+                    while ((entryType = buf.readByte()) != 0) {
+                        buf.skipBytes(buf.readUnsignedShort()); // name
+                        skipNBTPayload(buf, entryType);
+                    }
+                    break;
+                }
+                case 11: buf.skipBytes(buf.readInt() * 4); break; // int array
+                case 12: buf.skipBytes(buf.readInt() * 8); break; // long array
+                default: throw new IOException("Unknown NBT tag type: " + type);
+            }
+        }
+
+        /**
+         * Returns the buffer backing the given input, if it is known.
+         */
+        private static ByteBuf bufOf(NetInput in) {
+            if (in instanceof ByteBufExtNetInput) {
+                return ((ByteBufExtNetInput) in).getBuf();
+            } else {
+                return null;
+            }
+        }
+
         public BitSet readBitSet() throws IOException {
             return readBitSet(packet.registry, this);
         }
@@ -253,7 +361,7 @@ public class Packet {
         }
     }
 
-    public static class Writer extends ByteBufNetOutput implements AutoCloseable {
+    public static class Writer extends ByteBufExtNetOutput implements AutoCloseable {
         private final Packet packet;
 
         private Writer(Packet packet, ByteBuf buf) {
@@ -295,15 +403,25 @@ public class Packet {
 
         public static void writeNBT(PacketTypeRegistry registry, NetOutput out, CompoundTag tag) throws IOException {
             if (registry.atLeast(ProtocolVersion.v1_8)) {
+                ByteBuf buf = bufOf(out);
                 if(tag == null) {
                     out.writeByte(0);
+                } else if (buf != null) {
+                    NBTIO.writeTag((DataOutput) new ByteBufOutputStream(buf), tag);
                 } else {
-                    NBTIO.writeTag(new OutputStream() {
+                    BufferedOutputStream buffered = new BufferedOutputStream(new OutputStream() {
                         @Override
                         public void write(int i) throws IOException {
                             out.writeByte(i);
                         }
-                    }, tag);
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.writeBytes(off == 0 ? b : Arrays.copyOfRange(b, off, off + len), len);
+                        }
+                    });
+                    NBTIO.writeTag(buffered, tag);
+                    buffered.flush();
                 }
             } else {
                 ByteArrayOutputStream output = new ByteArrayOutputStream();
@@ -317,6 +435,17 @@ public class Packet {
             }
         }
 
+        /**
+         * Returns the buffer backing the given output, if it is known.
+         */
+        private static ByteBuf bufOf(NetOutput out) {
+            if (out instanceof ByteBufExtNetOutput) {
+                return ((ByteBufExtNetOutput) out).getBuf();
+            } else {
+                return null;
+            }
+        }
+
         public void writeBitSet(BitSet bitSet) throws IOException {
             writeBitSet(packet.registry, this, bitSet);
         }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.replaymod.replaystudio.protocol;
+
+import com.google.common.base.Charsets;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Table of the ids of all packet types for every supported version and state, as computed by
+ * {@link PacketTypeRegistry#computeIds(ProtocolVersion, State)}.
+ * The table is generated at build time (see {@link #main(String[])}) and shipped as a resource, so creating a
+ * {@link PacketTypeRegistry} does not usually require ViaVersion to be initialized.
+ *
+ * The first line lists all packet types known when the table was generated ({@code types <type> <type> ...}), so a
+ * table which is missing newer types is ignored as a whole, instead of silently yielding registries without them.
+ * Each following line is of the form {@code <protocol> <state> <count> <type>=<id> <type>=<id> ...}, where count is the
+ * number of mappings on that line.
+ */
+public final class PacketTypeIdTable {
+    private static final String RESOURCE = "packetTypeIds.txt";
+    private static final String TYPES_PREFIX = "types ";
+    private static final Logger LOGGER = Logger.getLogger(PacketTypeIdTable.class.getName());
+
+    /**
+     * Unparsed lines of the table by version and state. Empty if the table is not available.
+     */
+    private static Map<String, String> lines;
+
+    private PacketTypeIdTable() {}
+
+    /**
+     * Returns the packet ids for the given version and state.
+     * @return The ids or {@code null} if the table does not contain the given version and state
+     */
+    static synchronized Map<PacketType, Integer> get(ProtocolVersion version, State state) {
+        if (lines == null) {
+            lines = load();
+        }
+        String line = lines.get(version.getVersion() + " " + state.name());
+        if (line == null) {
+            return null;
+        }
+
+        String[] parts = line.trim().split(" ");
+        int count;
+        try {
+            count = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            return null; // not a line of the current format, let the caller compute the ids instead
+        }
+        if (parts.length - 1 != count) {
+            return null; // truncated line
+        }
+        Map<PacketType, Integer> ids = new EnumMap<>(PacketType.class);
+        for (int i = 1; i < parts.length; i++) {
+            String mapping = parts[i];
+            int separator = mapping.indexOf('=');
+            if (separator == -1) {
+                return null; // truncated line
+            }
+            PacketType type;
+            try {
+                type = PacketType.valueOf(mapping.substring(0, separator));
+            } catch (IllegalArgumentException e) {
+                return null; // table is out of date, let the caller compute the ids instead
+            }
+            ids.put(type, Integer.parseInt(mapping.substring(separator + 1)));
+        }
+        return ids;
+    }
+
+    private static Map<String, String> load() {
+        Map<String, String> lines = new HashMap<>();
+        InputStream in = PacketTypeIdTable.class.getResourceAsStream(RESOURCE);
+        if (in == null) {
+            return lines;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8))) {
+            boolean typesChecked = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.startsWith(TYPES_PREFIX)) {
+                    Set<String> knownTypes = new HashSet<>(Arrays.asList(line.substring(TYPES_PREFIX.length()).split(" ")));
+                    for (PacketType type : PacketType.values()) {
+                        if (!knownTypes.contains(type.name())) {
+                            LOGGER.info("Packet type id table does not know about " + type + ", ignoring it.");
+                            lines.clear();
+                            return lines;
+                        }
+                    }
+                    typesChecked = true;
+                    continue;
+                }
+                if (!typesChecked) {
+                    LOGGER.info("Packet type id table does not list its packet types, ignoring it.");
+                    lines.clear();
+                    return lines;
+                }
+                int keyEnd = line.indexOf(' ', line.indexOf(' ') + 1);
+                if (keyEnd == -1) {
+                    keyEnd = line.length();
+                }
+                lines.put(line.substring(0, keyEnd), line.substring(keyEnd));
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read packet type id table:", e);
+            lines.clear();
+        }
+        return lines;
+    }
+
+    /**
+     * Generates the table.
+     * @param args Path of the file to write the table to
+     */
+    public static void main(String[] args) throws IOException {
+        File file = new File(args[0]);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory " + parent);
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8)) {
+            out.write("# Generated by " + PacketTypeIdTable.class.getName() + ", do not edit\n");
+            StringBuilder types = new StringBuilder(TYPES_PREFIX.trim());
+            for (PacketType type : PacketType.values()) {
+                types.append(' ').append(type.name());
+            }
+            out.write(types.append('\n').toString());
+            for (ProtocolVersion version : ProtocolVersion.getProtocols()) {
+                if (ProtocolVersion.getIndex(version) < ProtocolVersion.getIndex(ProtocolVersion.v1_7_1)) {
+                    continue;
+                }
+                for (State state : State.values()) {
+                    StringBuilder line = new StringBuilder();
+                    Map<PacketType, Integer> ids = PacketTypeRegistry.computeIds(version, state);
+                    line.append(version.getVersion()).append(' ').append(state.name()).append(' ').append(ids.size());
+                    for (Map.Entry<PacketType, Integer> entry : ids.entrySet()) {
+                        line.append(' ').append(entry.getKey().name()).append('=').append(entry.getValue());
+                    }
+                    out.write(line.append('\n').toString());
+                }
+            }
+        }
+    }
+}
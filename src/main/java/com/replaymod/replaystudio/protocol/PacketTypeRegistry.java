@@ -35,46 +35,82 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class PacketTypeRegistry {
-    private static Map<ProtocolVersion, EnumMap<State, PacketTypeRegistry>> forVersionAndState = new HashMap<>();
-    private static Field clientbound;
+    /**
+     * Returned by {@link #getId(PacketType)} for packet types which do not exist in a registry.
+     */
+    public static final int NO_ID = -1;
 
-    static {
-        CustomViaManager.initialize();
-        for (ProtocolVersion version : ProtocolVersion.getProtocols()) {
-            if (ProtocolVersion.getIndex(version) < ProtocolVersion.getIndex(ProtocolVersion.v1_7_1)) {
-                continue;
-            }
-            EnumMap<State, PacketTypeRegistry> forState = new EnumMap<>(State.class);
-            for (State state : State.values()) {
-                forState.put(state, new PacketTypeRegistry(version, state));
-            }
-            forVersionAndState.put(version, forState);
-        }
-    }
+    private static final Map<ProtocolVersion, AtomicReferenceArray<PacketTypeRegistry>> forVersionAndState = new ConcurrentHashMap<>();
+    private static Field clientbound;
 
     public static PacketTypeRegistry get(ProtocolVersion version, State state) {
-        EnumMap<State, PacketTypeRegistry> forState = forVersionAndState.get(version);
-        return forState != null ? forState.get(state) : new PacketTypeRegistry(version, state);
+        if (ProtocolVersion.getIndex(version) < ProtocolVersion.getIndex(ProtocolVersion.v1_7_1)) {
+            return new PacketTypeRegistry(version, state);
+        }
+        AtomicReferenceArray<PacketTypeRegistry> forState = forVersionAndState.computeIfAbsent(version,
+                k -> new AtomicReferenceArray<>(State.values().length));
+        PacketTypeRegistry registry = forState.get(state.ordinal());
+        if (registry == null) {
+            // Registries are only created when first needed, most programs only ever use a few of them
+            forState.compareAndSet(state.ordinal(), null, new PacketTypeRegistry(version, state));
+            registry = forState.get(state.ordinal());
+        }
+        return registry;
     }
 
     private final ProtocolVersion version;
     private final State state;
     private final PacketType unknown;
-    private final Map<Integer, PacketType> typeForId = new HashMap<>();
-    private final Map<PacketType, Integer> idForType = new HashMap<>();
+    private final PacketType[] typeForId;
+    private final int[] idForType;
 
     private PacketTypeRegistry(ProtocolVersion version, State state) {
         this.version = version;
         this.state = state;
 
         PacketType unknown = null;
+        for (PacketType packetType : PacketType.values()) {
+            if (packetType.getState() == state && packetType.isUnknown()) {
+                unknown = packetType; // "unknown" type exists for all versions
+            }
+        }
+        this.unknown = unknown;
+
+        // Usually we can look the ids up in the pre-computed table, only otherwise do we need to ask ViaVersion
+        Map<PacketType, Integer> ids = PacketTypeIdTable.get(version, state);
+        if (ids == null) {
+            ids = computeIds(version, state);
+        }
+        int maxId = -1;
+        for (int id : ids.values()) {
+            maxId = Math.max(maxId, id);
+        }
+        this.typeForId = new PacketType[maxId + 1];
+        Arrays.fill(typeForId, unknown);
+        this.idForType = new int[PacketType.values().length];
+        Arrays.fill(idForType, NO_ID);
+        for (Map.Entry<PacketType, Integer> entry : ids.entrySet()) {
+            typeForId[entry.getValue()] = entry.getKey();
+            idForType[entry.getKey().ordinal()] = entry.getValue();
+        }
+    }
+
+    /**
+     * Computes the ids of all packet types in the given version and state from ViaVersion's protocol mappings.
+     */
+    static synchronized Map<PacketType, Integer> computeIds(ProtocolVersion version, State state) {
+        CustomViaManager.initialize();
+
+        Map<PacketType, Integer> ids = new EnumMap<>(PacketType.class);
         int versionIndex = ProtocolVersion.getIndex(version);
         packets: for (PacketType packetType : PacketType.values()) {
             if (packetType.getState() != state) {
@@ -82,10 +118,8 @@ public class PacketTypeRegistry {
             }
 
             if (packetType.isUnknown()) {
-                unknown = packetType;
                 continue; // "unknown" type exists for all versions
             }
-
             if (ProtocolVersion.getIndex(packetType.getInitialVersion()) > versionIndex) {
                 continue; // packet didn't yet exist in this version
             }
@@ -159,10 +193,9 @@ public class PacketTypeRegistry {
                 }
             }
 
-            typeForId.put(id, packetType);
-            idForType.put(packetType, id);
+            ids.put(packetType, id);
         }
-        this.unknown = unknown;
+        return ids;
     }
 
     private static List<ProtocolPathEntry> getProtocolPath(int clientVersion, int serverVersion) {
@@ -189,12 +222,16 @@ public class PacketTypeRegistry {
         return state;
     }
 
-    public Integer getId(PacketType type) {
-        return idForType.get(type);
+    /**
+     * Returns the id of the given packet type in this registry.
+     * @return The id or {@link #NO_ID} if the packet type does not exist in this registry
+     */
+    public int getId(PacketType type) {
+        return idForType[type.ordinal()];
     }
 
     public PacketType getType(int id) {
-        return typeForId.getOrDefault(id, unknown);
+        return id >= 0 && id < typeForId.length ? typeForId[id] : unknown;
     }
 
     public boolean atLeast(ProtocolVersion protocolVersion) {
@@ -21,61 +21,84 @@ package com.replaymod.replaystudio.protocol.packets;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 public class EntityId {
     public static List<Integer> getEntityIds(Packet packet) throws IOException {
+        IntList result = new IntArrayList(2);
+        getEntityIds(packet, result);
+        return result;
+    }
+
+    /**
+     * Adds all entity ids in the given packet to the given list.
+     * Unlike {@link #getEntityIds(Packet)}, this does not box the ids, so the same list can be re-used for all packets.
+     */
+    public static void getEntityIds(Packet packet, IntList result) throws IOException {
         switch (packet.getType()) {
             case EntityCollectItem: try (Packet.Reader in = packet.reader()) {
                 if (packet.atLeast(ProtocolVersion.v1_8)) {
-                    return Arrays.asList(in.readVarInt(), in.readVarInt());
+                    result.add(in.readVarInt());
+                    result.add(in.readVarInt());
                 } else {
-                    return Arrays.asList(in.readInt(), in.readInt());
+                    result.add(in.readInt());
+                    result.add(in.readInt());
                 }
+                return;
             }
             case DestroyEntities:
-                return PacketDestroyEntities.getEntityIds(packet);
+                PacketDestroyEntities.getEntityIds(packet, result);
+                return;
             case SetPassengers: try (Packet.Reader in = packet.reader()) {
-                int entityId = in.readVarInt();
+                result.add(in.readVarInt());
                 int len = in.readVarInt();
-                List<Integer> result = new ArrayList<>(len + 1);
-                result.add(entityId);
                 for (int i = 0; i < len; i++) {
                     result.add(in.readVarInt());
                 }
-                return result;
+                return;
             }
             case EntityAttach: try (Packet.Reader in = packet.reader()) {
-                return Arrays.asList(in.readInt(), in.readInt());
+                result.add(in.readInt());
+                result.add(in.readInt());
+                return;
             }
             case Combat: try (Packet.Reader in = packet.reader()) {
                 int event = in.readVarInt();
                 if (event == 1) { // end combat
                     in.readVarInt(); // duration
-                    return Collections.singletonList(in.readInt());
+                    result.add(in.readInt());
                 } else if (event == 2) { // entity dead
-                    return Arrays.asList(in.readVarInt(), in.readInt());
+                    result.add(in.readVarInt());
+                    result.add(in.readInt());
                 }
-                return Collections.emptyList();
+                return;
             }
             case CombatEntityDead: try (Packet.Reader in = packet.reader()) {
-                return Arrays.asList(in.readVarInt(), in.readInt());
+                result.add(in.readVarInt());
+                result.add(in.readInt());
+                return;
             }
             default:
-                Integer entityId = getEntityId(packet);
-                if (entityId != null) {
-                    return Collections.singletonList(entityId);
-                } else {
-                    return Collections.emptyList();
+                int entityId = getEntityIdOrMinus1(packet);
+                if (entityId != -1) {
+                    result.add(entityId);
                 }
         }
     }
 
     public static Integer getEntityId(Packet packet) throws IOException {
+        int entityId = getEntityIdOrMinus1(packet);
+        return entityId != -1 ? entityId : null;
+    }
+
+    /**
+     * Returns the id of the single entity associated with the given packet or -1 if there is no such entity.
+     */
+    public static int getEntityIdOrMinus1(Packet packet) throws IOException {
         switch (packet.getType()) {
             case OpenHorseWindow: try (Packet.Reader in = packet.reader()) {
                 in.readByte();
@@ -127,7 +150,7 @@ public class EntityId {
                 return in.readInt();
             }
             default:
-                return null;
+                return -1;
         }
     }
 }
@@ -0,0 +1,634 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Chunk;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Column;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.TileEntity;
+import com.viaversion.viaversion.api.minecraft.chunks.PaletteType;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Lazy view of a chunk data (or chunk unload) packet.
+ *
+ * Creating the view only finds the offsets of the individual parts of the packet (most importantly of each section)
+ * in one pass. Sections, heightmaps, biomes, tile entities and light data are only decoded when they are accessed.
+ * When the packet is written back, all parts which have not been replaced are copied as is instead of being
+ * re-encoded.
+ *
+ * The view reads from the buffer of the packet it was created for, so the packet must not be released while the view
+ * is in use. It does not take ownership of the packet.
+ *
+ * Only 1.9+ packets are indexed lazily, older ones are fully decoded via {@link PacketChunkData} when the view is
+ * created (their sections are split across the whole packet).
+ *
+ * Setters for parts which the packet does not contain (e.g. heightmaps prior to 1.14 or biomes in a partial chunk)
+ * throw an {@link IllegalStateException} because the change could not be written.
+ */
+public class LazyChunkData {
+    private final Packet packet;
+    private final PacketTypeRegistry registry;
+
+    private PacketChunkData eager; // pre 1.9
+
+    private boolean isUnload;
+    private int x;
+    private int z;
+    private boolean fullChunk;
+    private boolean useExistingLightData; // 1.16+
+    private boolean hasSkylight; // pre 1.14
+
+    // Absolute offsets into the packet buffer, -1 if the part is not present
+    private int heightMapsStart = -1, heightMapsEnd; // 1.14+
+    private int biomesStart = -1, biomesEnd; // 1.15+ pre 1.18
+    private int dataStart, dataEnd;
+    private int[] sectionStarts, sectionEnds;
+    private int biomeDataStart = -1, biomeDataEnd; // pre 1.15
+    private int tileEntitiesStart = -1, tileEntitiesEnd; // 1.9.3+
+    private int lightDataStart = -1, lightDataEnd; // 1.18+
+
+    // Decoded (or replaced) parts
+    private Chunk[] sections;
+    private boolean[] sectionModified;
+    private CompoundTag heightMaps;
+    private boolean heightMapsDecoded, heightMapsModified;
+    private int[] biomes;
+    private boolean biomesModified;
+    private byte[] biomeData;
+    private boolean biomeDataModified;
+    private TileEntity[] tileEntities;
+    private boolean tileEntitiesModified;
+    private PacketUpdateLight.Data lightData;
+    private boolean lightDataModified;
+
+    private LazyChunkData(Packet packet) {
+        this.packet = packet;
+        this.registry = packet.getRegistry();
+    }
+
+    /**
+     * Creates a lazy view of the given ChunkData or UnloadChunk packet.
+     * @param packet The packet, must not be released while the view is in use
+     * @param sections Number of sections in the current dimension, see {@link PacketChunkData#read(Packet, int)}
+     */
+    public static LazyChunkData read(Packet packet, int sections) throws IOException {
+        LazyChunkData chunkData = new LazyChunkData(packet);
+        if (packet.olderThan(ProtocolVersion.v1_9)) {
+            chunkData.readEager(sections);
+        } else if (packet.getType() == PacketType.UnloadChunk) {
+            try (Packet.Reader in = packet.reader()) {
+                chunkData.isUnload = true;
+                chunkData.x = in.readInt();
+                chunkData.z = in.readInt();
+            }
+        } else {
+            chunkData.index(sections);
+        }
+        return chunkData;
+    }
+
+    private void readEager(int sections) throws IOException {
+        eager = PacketChunkData.read(packet, sections);
+        isUnload = eager.isUnload();
+        Column column = eager.getColumn();
+        if (isUnload) {
+            x = eager.getUnloadX();
+            z = eager.getUnloadZ();
+        } else {
+            x = column.x;
+            z = column.z;
+            fullChunk = column.isFull();
+            this.sections = column.chunks;
+        }
+    }
+
+    private void index(int sectionCount) throws IOException {
+        ByteBuf buf = packet.getBuf();
+        BitSet mask;
+        try (Packet.Reader in = packet.reader()) {
+            x = in.readInt();
+            z = in.readInt();
+            fullChunk = packet.atLeast(ProtocolVersion.v1_17) || in.readBoolean();
+            useExistingLightData = fullChunk;
+            if (packet.atLeast(ProtocolVersion.v1_16) && !packet.atLeast(ProtocolVersion.v1_16_2)) {
+                useExistingLightData = in.readBoolean();
+            }
+            if (packet.atLeast(ProtocolVersion.v1_18)) {
+                // See PacketChunkData.readLoad
+                mask = new BitSet();
+                mask.set(0, sectionCount);
+            } else {
+                mask = in.readBitSet();
+            }
+            if (packet.atLeast(ProtocolVersion.v1_14)) {
+                heightMapsStart = buf.readerIndex();
+                in.skipNBT();
+                heightMapsEnd = buf.readerIndex();
+            }
+            if (packet.atLeast(ProtocolVersion.v1_15) && packet.olderThan(ProtocolVersion.v1_18) && fullChunk) {
+                biomesStart = buf.readerIndex();
+                if (packet.atLeast(ProtocolVersion.v1_16_2)) {
+                    for (int i = in.readVarInt(); i > 0; i--) {
+                        in.readVarInt();
+                    }
+                } else {
+                    buf.skipBytes(1024 * 4);
+                }
+                biomesEnd = buf.readerIndex();
+            }
+            int dataLength = in.readVarInt();
+            dataStart = buf.readerIndex();
+            dataEnd = dataStart + dataLength;
+
+            int count = packet.atLeast(ProtocolVersion.v1_17) ? mask.length() : 16;
+            sectionStarts = new int[count];
+            sectionEnds = new int[count];
+            if (!indexSections(mask, false) && !indexSections(mask, true)) {
+                throw new IOException("Failed to read chunk data.");
+            }
+            buf.readerIndex(dataEnd);
+
+            if (packet.atLeast(ProtocolVersion.v1_9_3)) {
+                tileEntitiesStart = buf.readerIndex();
+                for (int i = in.readVarInt(); i > 0; i--) {
+                    if (packet.atLeast(ProtocolVersion.v1_18)) {
+                        in.readByte(); // xz
+                        in.readShort(); // y
+                        in.readVarInt(); // type
+                    }
+                    in.skipNBT();
+                }
+                tileEntitiesEnd = buf.readerIndex();
+            }
+
+            if (packet.atLeast(ProtocolVersion.v1_18)) {
+                lightDataStart = buf.readerIndex();
+                lightDataEnd = buf.writerIndex();
+            }
+        }
+
+        sections = new Chunk[sectionStarts.length];
+        sectionModified = new boolean[sectionStarts.length];
+    }
+
+    /**
+     * Finds the offsets of all sections within the data array.
+     * Prior to 1.14, whether sections contain sky light can only be determined by trying (see
+     * {@link PacketChunkData}), so this returns {@code false} if the data does not match the given assumption.
+     */
+    private boolean indexSections(BitSet mask, boolean hasSkylight) {
+        ByteBuf buf = packet.getBuf();
+        boolean inSectionLight = packet.atMost(ProtocolVersion.v1_13_2);
+        biomeDataStart = -1;
+        try (Packet.Reader in = packet.reader()) {
+            buf.readerIndex(dataStart);
+            for (int i = 0; i < sectionStarts.length; i++) {
+                if (!mask.get(i)) {
+                    sectionStarts[i] = -1;
+                    continue;
+                }
+                sectionStarts[i] = buf.readerIndex();
+                if (packet.atLeast(ProtocolVersion.v1_14)) {
+                    in.readShort(); // block count
+                }
+                skipPalettedStorage(in, PaletteType.BLOCKS);
+                if (packet.atLeast(ProtocolVersion.v1_18)) {
+                    skipPalettedStorage(in, PaletteType.BIOMES);
+                }
+                if (inSectionLight) {
+                    buf.skipBytes(hasSkylight ? 4096 : 2048);
+                }
+                sectionEnds[i] = buf.readerIndex();
+                if (sectionEnds[i] > dataEnd) {
+                    return false;
+                }
+            }
+            if (packet.olderThan(ProtocolVersion.v1_15) && fullChunk && buf.readerIndex() < dataEnd) {
+                biomeDataStart = buf.readerIndex();
+                biomeDataEnd = biomeDataStart + (packet.atLeast(ProtocolVersion.v1_13) ? 1024 : 256);
+                if (biomeDataEnd > dataEnd) {
+                    return false;
+                }
+                buf.readerIndex(biomeDataEnd);
+            }
+            if (packet.atLeast(ProtocolVersion.v1_14)) {
+                return true; // no light in here, (vanilla) padding may follow
+            }
+            this.hasSkylight = hasSkylight;
+            return buf.readerIndex() == dataEnd || hasSkylight;
+        } catch (IndexOutOfBoundsException | IOException e) {
+            return false;
+        }
+    }
+
+    private void skipPalettedStorage(Packet.Reader in, PaletteType type) throws IOException {
+        int bitsPerEntry = in.readUnsignedByte();
+        int stateCount;
+        if (bitsPerEntry > type.highestBitsPerValue() && packet.atLeast(ProtocolVersion.v1_13)) {
+            stateCount = 0;
+        } else if (bitsPerEntry == 0 && packet.atLeast(ProtocolVersion.v1_18)) {
+            stateCount = 1;
+        } else {
+            stateCount = in.readVarInt();
+        }
+        for (int i = 0; i < stateCount; i++) {
+            in.readVarInt();
+        }
+        packet.getBuf().skipBytes(in.readVarInt() * 8);
+    }
+
+    public boolean isUnload() {
+        return isUnload;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * Whether this packet contains a whole chunk column (as opposed to only some sections of it).
+     * Same as {@link Column#isFull()}.
+     */
+    public boolean isFull() {
+        if (eager != null) {
+            return fullChunk;
+        }
+        return biomeDataStart != -1 || biomesStart != -1 || packet.atLeast(ProtocolVersion.v1_18);
+    }
+
+    /**
+     * Returns the number of section slots, i.e. the length of {@link Column#chunks}.
+     */
+    public int getSectionCount() {
+        return sections.length;
+    }
+
+    public boolean hasSection(int index) {
+        return eager != null ? sections[index] != null : sectionStarts[index] != -1 || sectionModified[index];
+    }
+
+    /**
+     * Returns the given section, decoding it if it has not yet been accessed.
+     * @return The section or {@code null} if the packet does not contain it
+     */
+    public Chunk getSection(int index) throws IOException {
+        Chunk section = sections[index];
+        if (section == null && eager == null && !sectionModified[index] && sectionStarts[index] != -1) {
+            try (Packet.Reader in = packet.reader()) {
+                packet.getBuf().readerIndex(sectionStarts[index]);
+                section = new Chunk(packet, in);
+                if (packet.atMost(ProtocolVersion.v1_13_2)) {
+                    section.blockLight = in.readBytes(2048);
+                    section.skyLight = hasSkylight ? in.readBytes(2048) : null;
+                }
+            }
+            sections[index] = section;
+        }
+        return section;
+    }
+
+    /**
+     * Returns all sections, decoding those which have not yet been accessed.
+     * Unlike {@link #toColumn()}, this does not decode any of the other parts of the packet.
+     */
+    public Chunk[] getSections() throws IOException {
+        for (int i = 0; i < sections.length; i++) {
+            getSection(i);
+        }
+        return sections;
+    }
+
+    /**
+     * Replaces the given section. Modified sections are re-encoded when the packet is written.
+     * @param section The new section or {@code null} to remove it
+     */
+    public void setSection(int index, Chunk section) {
+        sections[index] = section;
+        if (eager == null) {
+            sectionModified[index] = true;
+        }
+    }
+
+    public CompoundTag getHeightMaps() throws IOException {
+        if (eager != null) {
+            return eager.getColumn().heightMaps;
+        }
+        if (!heightMapsDecoded && heightMapsStart != -1) {
+            try (Packet.Reader in = packet.reader()) {
+                packet.getBuf().readerIndex(heightMapsStart);
+                heightMaps = in.readNBT();
+            }
+        }
+        heightMapsDecoded = true;
+        return heightMaps;
+    }
+
+    public void setHeightMaps(CompoundTag heightMaps) {
+        checkPresent(eager == null && heightMapsStart != -1, "heightmaps");
+        this.heightMaps = heightMaps;
+        this.heightMapsDecoded = true;
+        this.heightMapsModified = true;
+    }
+
+    /**
+     * 1.15+ pre 1.18
+     */
+    public int[] getBiomes() throws IOException {
+        if (eager != null) {
+            return eager.getColumn().biomes;
+        }
+        if (biomesModified) {
+            return biomes;
+        }
+        if (biomesStart == -1) {
+            return null;
+        }
+        try (Packet.Reader in = packet.reader()) {
+            packet.getBuf().readerIndex(biomesStart);
+            if (packet.atLeast(ProtocolVersion.v1_16_2)) {
+                int[] biomes = new int[in.readVarInt()];
+                for (int i = 0; i < biomes.length; i++) {
+                    biomes[i] = in.readVarInt();
+                }
+                return biomes;
+            } else {
+                return in.readInts(1024);
+            }
+        }
+    }
+
+    /**
+     * Replaces the biomes of a full chunk.
+     * 1.15+ pre 1.18
+     */
+    public void setBiomes(int[] biomes) {
+        checkPresent(eager == null && biomesStart != -1, "biomes");
+        if (biomes == null) {
+            throw new NullPointerException("biomes");
+        }
+        this.biomes = biomes;
+        this.biomesModified = true;
+    }
+
+    /**
+     * Pre 1.15
+     */
+    public byte[] getBiomeData() {
+        if (eager != null) {
+            return eager.getColumn().biomeData;
+        }
+        if (biomeDataModified) {
+            return biomeData;
+        }
+        if (biomeDataStart == -1) {
+            return null;
+        }
+        byte[] biomeData = new byte[biomeDataEnd - biomeDataStart];
+        packet.getBuf().getBytes(biomeDataStart, biomeData);
+        return biomeData;
+    }
+
+    /**
+     * Replaces the biome data of a full chunk.
+     * Pre 1.15
+     */
+    public void setBiomeData(byte[] biomeData) {
+        if (biomeData == null) {
+            throw new NullPointerException("biomeData");
+        }
+        if (eager != null) {
+            Column column = eager.getColumn();
+            checkPresent(!isUnload && column.biomeData != null, "biome data");
+            column.biomeData = biomeData;
+            return;
+        }
+        checkPresent(biomeDataStart != -1, "biome data");
+        this.biomeData = biomeData;
+        this.biomeDataModified = true;
+    }
+
+    /**
+     * 1.9.3+
+     */
+    public TileEntity[] getTileEntities() throws IOException {
+        if (eager != null) {
+            return eager.getColumn().tileEntities;
+        }
+        if (tileEntities == null && tileEntitiesStart != -1) {
+            try (Packet.Reader in = packet.reader()) {
+                packet.getBuf().readerIndex(tileEntitiesStart);
+                TileEntity[] tileEntities = new TileEntity[in.readVarInt()];
+                for (int i = 0; i < tileEntities.length; i++) {
+                    tileEntities[i] = new TileEntity(packet, in);
+                }
+                this.tileEntities = tileEntities;
+            }
+        }
+        return tileEntities;
+    }
+
+    public void setTileEntities(TileEntity[] tileEntities) {
+        checkPresent(eager == null && tileEntitiesStart != -1, "tile entities");
+        this.tileEntities = tileEntities;
+        this.tileEntitiesModified = true;
+    }
+
+    /**
+     * 1.18+
+     */
+    public PacketUpdateLight.Data getLightData() throws IOException {
+        if (eager != null) {
+            return eager.getColumn().lightData;
+        }
+        if (lightData == null && lightDataStart != -1) {
+            try (Packet.Reader in = packet.reader()) {
+                packet.getBuf().readerIndex(lightDataStart);
+                lightData = PacketUpdateLight.readData(packet, in);
+            }
+        }
+        return lightData;
+    }
+
+    public void setLightData(PacketUpdateLight.Data lightData) {
+        checkPresent(eager == null && lightDataStart != -1, "light data");
+        this.lightData = lightData;
+        this.lightDataModified = true;
+    }
+
+    private void checkPresent(boolean present, String part) {
+        if (!present) {
+            throw new IllegalStateException("Cannot replace " + part + ", the packet does not contain any.");
+        }
+    }
+
+    /**
+     * Decodes all parts of the packet.
+     * @return The same column as would be returned by {@link PacketChunkData#getColumn()}
+     */
+    public Column toColumn() throws IOException {
+        if (eager != null) {
+            return eager.getColumn();
+        }
+        return new Column(x, z, getSections(), getBiomeData(), getTileEntities(), getHeightMaps(), getBiomes(),
+                useExistingLightData, getLightData());
+    }
+
+    private boolean isModified() {
+        if (heightMapsModified || biomesModified || biomeDataModified || tileEntitiesModified || lightDataModified) {
+            return true;
+        }
+        for (boolean modified : sectionModified) {
+            if (modified) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the (possibly modified) packet. Parts which have not been replaced are copied from the original packet.
+     * @return A new packet owned by the caller
+     */
+    public Packet write() throws IOException {
+        if (eager != null) {
+            return eager.write(registry);
+        }
+        if (isUnload || !isModified()) {
+            return packet.copy();
+        }
+
+        ByteBuf orgBuf = packet.getBuf();
+        Packet result = new Packet(registry, PacketType.ChunkData);
+        try (Packet.Writer out = result.overwrite()) {
+            ByteBuf buf = result.getBuf();
+            BitSet mask = new BitSet();
+            for (int i = 0; i < sections.length; i++) {
+                if (hasSection(i) && (!sectionModified[i] || sections[i] != null)) {
+                    mask.set(i);
+                }
+            }
+
+            out.writeInt(x);
+            out.writeInt(z);
+            if (result.olderThan(ProtocolVersion.v1_17)) {
+                out.writeBoolean(fullChunk);
+            }
+            if (result.atLeast(ProtocolVersion.v1_16) && !result.atLeast(ProtocolVersion.v1_16_2)) {
+                out.writeBoolean(useExistingLightData);
+            }
+            if (result.olderThan(ProtocolVersion.v1_18)) {
+                out.writeBitSet(mask);
+            }
+            if (heightMapsStart != -1) {
+                if (heightMapsModified) {
+                    out.writeNBT(heightMaps);
+                } else {
+                    buf.writeBytes(orgBuf, heightMapsStart, heightMapsEnd - heightMapsStart);
+                }
+            }
+            if (biomesStart != -1) {
+                if (biomesModified) {
+                    if (result.atLeast(ProtocolVersion.v1_16_2)) {
+                        out.writeVarInt(biomes.length);
+                        for (int biome : biomes) {
+                            out.writeVarInt(biome);
+                        }
+                    } else {
+                        out.writeInts(biomes);
+                    }
+                } else {
+                    buf.writeBytes(orgBuf, biomesStart, biomesEnd - biomesStart);
+                }
+            }
+
+            ByteBuf data = Unpooled.buffer(dataEnd - dataStart);
+            try {
+                ByteBufNetOutput dataOut = new ByteBufNetOutput(data);
+                for (int i = 0; i < sections.length; i++) {
+                    if (!mask.get(i)) {
+                        continue;
+                    }
+                    if (sectionModified[i]) {
+                        Chunk section = sections[i];
+                        section.write(result, dataOut);
+                        if (result.atMost(ProtocolVersion.v1_13_2)) {
+                            dataOut.writeBytes(section.blockLight);
+                            if (section.skyLight != null) {
+                                dataOut.writeBytes(section.skyLight);
+                            }
+                        }
+                    } else {
+                        data.writeBytes(orgBuf, sectionStarts[i], sectionEnds[i] - sectionStarts[i]);
+                    }
+                }
+                // Biome data (pre 1.15) and any padding follow the last section
+                int trailerStart = dataStart;
+                for (int i = 0; i < sectionStarts.length; i++) {
+                    if (sectionStarts[i] != -1) {
+                        trailerStart = sectionEnds[i];
+                    }
+                }
+                if (biomeDataModified) {
+                    data.writeBytes(biomeData);
+                    trailerStart = biomeDataEnd;
+                }
+                data.writeBytes(orgBuf, trailerStart, dataEnd - trailerStart);
+
+                out.writeVarInt(data.readableBytes());
+                buf.writeBytes(data);
+            } finally {
+                data.release();
+            }
+
+            if (tileEntitiesStart != -1) {
+                if (tileEntitiesModified) {
+                    out.writeVarInt(tileEntities.length);
+                    for (TileEntity tileEntity : tileEntities) {
+                        tileEntity.write(result, out);
+                    }
+                } else {
+                    buf.writeBytes(orgBuf, tileEntitiesStart, tileEntitiesEnd - tileEntitiesStart);
+                }
+            }
+            if (lightDataStart != -1) {
+                if (lightDataModified) {
+                    PacketUpdateLight.writeData(result, out, lightData);
+                } else {
+                    buf.writeBytes(orgBuf, lightDataStart, lightDataEnd - lightDataStart);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -130,6 +130,63 @@ public class PacketBlockChange {
         }
     }
 
+    /**
+     * Writes a MultiBlockChange packet for the given changes.
+     * All changes must be within the given chunk section (or the given chunk column prior to 1.16.2).
+     */
+    public static Packet writeBulk(PacketTypeRegistry registry, int chunkX, int chunkY, int chunkZ, List<PacketBlockChange> changes) throws IOException {
+        int[] positions = new int[changes.size()];
+        int[] ids = new int[changes.size()];
+        for (int i = 0; i < positions.length; i++) {
+            PacketBlockChange change = changes.get(i);
+            IPosition pos = change.pos;
+            positions[i] = (pos.getY() & 255) << 8 | (pos.getZ() & 15) << 4 | pos.getX() & 15;
+            ids[i] = change.id;
+        }
+        return writeBulk(registry, chunkX, chunkY, chunkZ, positions.length, positions, ids);
+    }
+
+    /**
+     * Writes a MultiBlockChange packet for the given changes.
+     * All changes must be within the given chunk section (or the given chunk column prior to 1.16.2).
+     * Positions are packed as {@code y << 8 | z << 4 | x}, relative to the section (or column prior to 1.16.2).
+     */
+    public static Packet writeBulk(PacketTypeRegistry registry, int chunkX, int chunkY, int chunkZ, int count, int[] positions, int[] ids) throws IOException {
+        Packet packet = new Packet(registry, PacketType.MultiBlockChange);
+        try (Packet.Writer out = packet.overwrite()) {
+            if (packet.atLeast(ProtocolVersion.v1_16_2)) {
+                out.writeLong(((long) chunkX & 0x3fffff) << 42 | ((long) chunkZ & 0x3fffff) << 20 | (long) chunkY & 0xfffff);
+                out.writeBoolean(false); // don't skip light updates
+            } else {
+                out.writeInt(chunkX);
+                out.writeInt(chunkZ);
+            }
+            if (packet.atLeast(ProtocolVersion.v1_8)) {
+                out.writeVarInt(count);
+            } else {
+                out.writeShort(count);
+                out.writeInt(count * 4);
+            }
+            for (int i = 0; i < count; i++) {
+                int pos = positions[i];
+                int x = pos & 15;
+                int z = pos >> 4 & 15;
+                int y = pos >> 8 & 255;
+                if (packet.atLeast(ProtocolVersion.v1_16_2)) {
+                    out.writeVarLong((long) ids[i] << 12 | x << 8 | z << 4 | y & 15);
+                } else {
+                    out.writeShort(x << 12 | z << 8 | y);
+                    if (packet.atLeast(ProtocolVersion.v1_8)) {
+                        out.writeVarInt(ids[i]);
+                    } else {
+                        out.writeShort(ids[i]);
+                    }
+                }
+            }
+        }
+        return packet;
+    }
+
     public static List<PacketBlockChange> readSingleOrBulk(Packet packet) throws IOException {
         if (packet.getType() == PacketType.BlockChange) {
             return Collections.singletonList(read(packet));
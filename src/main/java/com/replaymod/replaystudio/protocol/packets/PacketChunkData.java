@@ -29,12 +29,15 @@ import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.util.Utils;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntList;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
@@ -684,6 +687,23 @@ public class PacketChunkData {
         public Chunk copy() {
             return new Chunk(this);
         }
+
+        /**
+         * Returns an estimate of the number of bytes held by this section, i.e. its storages and light arrays.
+         */
+        public int getRetainedSize() {
+            int size = this.blocks.getRetainedSize();
+            if (this.biomes != null) {
+                size += this.biomes.getRetainedSize();
+            }
+            if (this.blockLight != null) {
+                size += this.blockLight.length;
+            }
+            if (this.skyLight != null) {
+                size += this.skyLight.length;
+            }
+            return size;
+        }
     }
 
     public static class PalettedStorage {
@@ -691,7 +711,9 @@ public class PacketChunkData {
         private final PacketTypeRegistry registry;
         private int countDelta;
         private int bitsPerEntry;
-        private List<Integer> states;
+        private int[] states;
+        private int stateCount;
+        private Int2IntOpenHashMap stateIds; // reverse lookup for states, only built once required by `set`
         private FlexibleStorage storage;
         private long[] metadata; // 1.7 only
         private long[] extended; // 1.7 only
@@ -702,7 +724,8 @@ public class PacketChunkData {
             this.countDelta = from.countDelta;
             this.bitsPerEntry = from.bitsPerEntry;
             if (from.states != null) {
-                this.states = new ArrayList<>(from.states);
+                this.states = from.states.clone();
+                this.stateCount = from.stateCount;
             }
             if (from.storage != null) {
                 this.storage = FlexibleStorage.from(registry, bitsPerEntry, from.storage.entries, from.storage.data.clone());
@@ -723,8 +746,8 @@ public class PacketChunkData {
             this.registry = registry;
             this.bitsPerEntry = type == PaletteType.BLOCKS ? 4 : 0;
 
-            this.states = new ArrayList<>();
-            this.states.add(0);
+            this.states = new int[1 << this.bitsPerEntry];
+            this.stateCount = 1;
 
             this.storage = FlexibleStorage.empty(registry, bitsPerEntry, type.size());
         }
@@ -741,7 +764,6 @@ public class PacketChunkData {
             this.type = type;
             this.registry = packet.getRegistry();
             this.bitsPerEntry = in.readUnsignedByte();
-            this.states = new ArrayList<>();
             int stateCount;
             if (this.bitsPerEntry > type.highestBitsPerValue() && packet.atLeast(ProtocolVersion.v1_13)) {
                 stateCount = 0;
@@ -750,8 +772,10 @@ public class PacketChunkData {
             } else {
                 stateCount = in.readVarInt();
             }
+            this.states = new int[stateCount];
+            this.stateCount = stateCount;
             for(int i = 0; i < stateCount; ++i) {
-                this.states.add(in.readVarInt());
+                this.states[i] = in.readVarInt();
             }
 
             this.storage = FlexibleStorage.from(registry, bitsPerEntry, type.size(), in.readLongs(in.readVarInt()));
@@ -761,11 +785,11 @@ public class PacketChunkData {
         void write(Packet packet, NetOutput out) throws IOException {
             out.writeByte(this.bitsPerEntry);
             if (this.bitsPerEntry == 0 && packet.atLeast(ProtocolVersion.v1_18)) {
-                out.writeVarInt(this.states.get(0));
+                out.writeVarInt(this.states[0]);
             } else if (this.bitsPerEntry <= type.highestBitsPerValue() || !packet.atLeast(ProtocolVersion.v1_13)) {
-                out.writeVarInt(this.states.size());
-                for (Integer state : this.states) {
-                    out.writeVarInt(state);
+                out.writeVarInt(this.stateCount);
+                for (int i = 0; i < this.stateCount; i++) {
+                    out.writeVarInt(this.states[i]);
                 }
             }
 
@@ -781,31 +805,177 @@ public class PacketChunkData {
             }
         }
 
+        private boolean hasLocalPalette() {
+            return this.bitsPerEntry <= type.highestBitsPerValue();
+        }
+
+        private int stateForId(int id) {
+            return id >= 0 && id < this.stateCount ? this.states[id] : 0;
+        }
+
+        private int idForState(int state) {
+            if (this.stateIds == null) {
+                this.stateIds = new Int2IntOpenHashMap(this.stateCount);
+                this.stateIds.defaultReturnValue(-1);
+                // Iterate backwards so the first occurrence wins in case of duplicates
+                for (int i = this.stateCount - 1; i >= 0; i--) {
+                    this.stateIds.put(this.states[i], i);
+                }
+            }
+            return this.stateIds.get(state);
+        }
+
+        private void addState(int state) {
+            if (this.stateCount == this.states.length) {
+                this.states = Arrays.copyOf(this.states, Math.max(4, this.stateCount * 2));
+            }
+            if (this.stateIds != null) {
+                this.stateIds.put(state, this.stateCount);
+            }
+            this.states[this.stateCount++] = state;
+        }
+
+        private void clearStates() {
+            this.stateCount = 0;
+            this.stateIds = null;
+        }
+
         /**
          * Only 1.8+
          */
         public int get(int x, int y, int z) {
             if (this.bitsPerEntry == 0) {
-                return this.states.get(0);
+                return this.states[0];
             }
             int id = this.storage.get(index(x, y, z));
-            return this.bitsPerEntry <= type.highestBitsPerValue() ? (id >= 0 && id < this.states.size() ? this.states.get(id) : 0) : id;
+            return hasLocalPalette() ? stateForId(id) : id;
+        }
+
+        /**
+         * Returns the states of all entries in this storage, in the same order as their indices.
+         * Same as calling {@link #get(int, int, int)} for each entry but decodes the storage one long at a time.
+         * Only 1.8+
+         * @param out Array into which the states are written, must hold at least {@link PaletteType#size()} elements
+         * @return The given array
+         */
+        public int[] getAll(int[] out) {
+            int size = type.size();
+            if (this.bitsPerEntry == 0) {
+                Arrays.fill(out, 0, size, this.states[0]);
+                return out;
+            }
+            this.storage.getAll(out);
+            if (hasLocalPalette()) {
+                for (int i = 0; i < size; i++) {
+                    out[i] = stateForId(out[i]);
+                }
+            }
+            return out;
+        }
+
+        /**
+         * Appends a packed (index, from, to) triple to the given list for each entry whose state differs between this
+         * storage and the given one. The index is the one of the entry (see {@link #index(int, int, int)}), from is
+         * its state in this storage and to its state in the given one. Triples are appended in order of their index.
+         *
+         * If both storages use the same entry size and palette, their packed storage is compared one long at a time
+         * and only those longs which differ are decoded, so comparing identical storages is cheap. Otherwise both are
+         * fully decoded and compared.
+         *
+         * Both storages must be of the same type.
+         * Only 1.8+
+         * @param other The storage to compare to
+         * @param changes The list to which changes are appended
+         * @return The number of changes found
+         */
+        public int diff(PalettedStorage other, IntList changes) {
+            int sizeBefore = changes.size();
+            if (this.bitsPerEntry == 0 && other.bitsPerEntry == 0) {
+                if (this.states[0] != other.states[0]) {
+                    for (int i = 0; i < type.size(); i++) {
+                        addChange(changes, i, this.states[0], other.states[0]);
+                    }
+                }
+            } else if (hasSamePackedLayout(other)) {
+                diffWords(other, changes);
+            } else {
+                int size = type.size();
+                int[] from = getAll(new int[size]);
+                int[] to = other.getAll(new int[size]);
+                for (int i = 0; i < size; i++) {
+                    if (from[i] != to[i]) {
+                        addChange(changes, i, from[i], to[i]);
+                    }
+                }
+            }
+            return (changes.size() - sizeBefore) / 3;
+        }
+
+        private boolean hasSamePackedLayout(PalettedStorage other) {
+            if (this.bitsPerEntry != other.bitsPerEntry || this.bitsPerEntry == 0) {
+                return false;
+            }
+            if (this.storage.getClass() != other.storage.getClass() || this.storage.data.length != other.storage.data.length) {
+                return false;
+            }
+            if (hasLocalPalette()) {
+                if (this.stateCount != other.stateCount) {
+                    return false;
+                }
+                for (int i = 0; i < this.stateCount; i++) {
+                    if (this.states[i] != other.states[i]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void diffWords(PalettedStorage other, IntList changes) {
+            FlexibleStorage fromStorage = this.storage;
+            FlexibleStorage toStorage = other.storage;
+            long[] fromData = fromStorage.data;
+            long[] toData = toStorage.data;
+            boolean localPalette = hasLocalPalette();
+            int nextIndex = 0; // entries may span two longs, this makes sure we only report those once
+            for (int word = 0; word < fromData.length; word++) {
+                if (fromData[word] == toData[word]) {
+                    continue;
+                }
+                int lastIndex = fromStorage.lastEntry(word);
+                for (int i = Math.max(nextIndex, fromStorage.firstEntry(word)); i <= lastIndex; i++) {
+                    int fromId = fromStorage.get(i);
+                    int toId = toStorage.get(i);
+                    if (fromId != toId) {
+                        int fromState = localPalette ? stateForId(fromId) : fromId;
+                        int toState = localPalette ? other.stateForId(toId) : toId;
+                        if (fromState != toState) { // palette may contain duplicates
+                            addChange(changes, i, fromState, toState);
+                        }
+                    }
+                }
+                nextIndex = lastIndex + 1;
+            }
+        }
+
+        private static void addChange(IntList changes, int index, int from, int to) {
+            changes.add(index);
+            changes.add(from);
+            changes.add(to);
         }
 
         /**
          * Only 1.8+
          */
         public void set(int x, int y, int z, int state) {
-            int id = this.bitsPerEntry <= type.highestBitsPerValue() ? this.states.indexOf(state) : state;
+            int id = hasLocalPalette() ? idForState(state) : state;
             if(id == -1) {
-                this.states.add(state);
-                if(this.states.size() > 1 << this.bitsPerEntry) {
+                addState(state);
+                if(this.stateCount > 1 << this.bitsPerEntry) {
                     this.bitsPerEntry++;
 
-                    List<Integer> oldStates = this.states;
                     if(this.bitsPerEntry > type.highestBitsPerValue()) {
-                        oldStates = new ArrayList<Integer>(this.states);
-                        this.states.clear();
+                        clearStates();
                         // These match the size of the vanilla global palette and may be incorrect when it comes to
                         // modded servers.
                         // Unfortunately there is no easy way to determine what the actual size of the global palette
@@ -837,7 +1007,7 @@ public class PacketChunkData {
                     }
                 }
 
-                id = this.bitsPerEntry <= type.highestBitsPerValue() ? this.states.indexOf(state) : state;
+                id = hasLocalPalette() ? idForState(state) : state;
             }
 
             if (this.bitsPerEntry == 0) {
@@ -869,6 +1039,29 @@ public class PacketChunkData {
         public PalettedStorage copy() {
             return new PalettedStorage(this);
         }
+
+        /**
+         * Returns an estimate of the number of bytes held by this storage, i.e. its palette and packed entries.
+         */
+        public int getRetainedSize() {
+            int size = 0;
+            if (this.states != null) {
+                size += this.states.length * 4;
+            }
+            if (this.stateIds != null) {
+                size += this.stateIds.size() * 16; // keys and values, at the default load factor
+            }
+            if (this.storage != null) {
+                size += this.storage.data.length * 8;
+            }
+            if (this.metadata != null) {
+                size += this.metadata.length * 8;
+            }
+            if (this.extended != null) {
+                size += this.extended.length * 8;
+            }
+            return size;
+        }
     }
 
     private static abstract class FlexibleStorage {
@@ -887,6 +1080,21 @@ public class PacketChunkData {
         public abstract int get(int index);
         public abstract void set(int index, int value);
 
+        /**
+         * Writes all entries into the given array.
+         */
+        public abstract void getAll(int[] out);
+
+        /**
+         * Returns the index of the first entry which is (at least partially) stored in the given long.
+         */
+        public abstract int firstEntry(int word);
+
+        /**
+         * Returns the index of the last entry which is (at least partially) stored in the given long.
+         */
+        public abstract int lastEntry(int word);
+
         static FlexibleStorage empty(PacketTypeRegistry registry, int bitsPerEntry, int entries) {
             if (registry.atLeast(ProtocolVersion.v1_16)) {
                 return new PaddedFlexibleStorage(bitsPerEntry, entries);
@@ -939,6 +1147,32 @@ public class PacketChunkData {
             return (int) (this.data[blockIndex] >>> subIndexBits & this.maxEntryValue);
         }
 
+        @Override
+        public int firstEntry(int word) {
+            return word * this.entriesPerLong;
+        }
+
+        @Override
+        public int lastEntry(int word) {
+            return Math.min(this.entries, (word + 1) * this.entriesPerLong) - 1;
+        }
+
+        @Override
+        public void getAll(int[] out) {
+            if (this.bitsPerEntry == 0) {
+                Arrays.fill(out, 0, this.entries, 0);
+                return;
+            }
+
+            int index = 0;
+            for (long word : this.data) {
+                for (int j = 0; j < this.entriesPerLong && index < this.entries; j++) {
+                    out[index++] = (int) (word & this.maxEntryValue);
+                    word >>>= this.bitsPerEntry;
+                }
+            }
+        }
+
         @Override
         public void set(int index, int value) {
             if (index < 0 || index > this.entries - 1) {
@@ -1001,6 +1235,44 @@ public class PacketChunkData {
             }
         }
 
+        @Override
+        public int firstEntry(int word) {
+            return word * 64 / this.bitsPerEntry;
+        }
+
+        @Override
+        public int lastEntry(int word) {
+            return Math.min(this.entries - 1, ((word + 1) * 64 - 1) / this.bitsPerEntry);
+        }
+
+        @Override
+        public void getAll(int[] out) {
+            if (this.bitsPerEntry == 0) {
+                Arrays.fill(out, 0, this.entries, 0);
+                return;
+            }
+
+            // Entries may span two longs, so we keep the remaining bits of the previous long around
+            long bits = 0;
+            int bitsAvailable = 0;
+            int wordIndex = 0;
+            for (int index = 0; index < this.entries; index++) {
+                int value;
+                if (bitsAvailable >= this.bitsPerEntry) {
+                    value = (int) (bits & this.maxEntryValue);
+                    bits >>>= this.bitsPerEntry;
+                    bitsAvailable -= this.bitsPerEntry;
+                } else {
+                    long word = this.data[wordIndex++];
+                    value = (int) ((bits | word << bitsAvailable) & this.maxEntryValue);
+                    int used = this.bitsPerEntry - bitsAvailable;
+                    bits = word >>> used;
+                    bitsAvailable = 64 - used;
+                }
+                out[index] = value;
+            }
+        }
+
         @Override
         public void set(int index, int value) {
             if(index < 0 || index > this.entries - 1) {
@@ -22,6 +22,8 @@ import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -31,16 +33,21 @@ import java.util.List;
 
 public class PacketDestroyEntities {
     public static List<Integer> getEntityIds(Packet packet) throws IOException {
+        IntList result = new IntArrayList();
+        getEntityIds(packet, result);
+        return result;
+    }
+
+    public static void getEntityIds(Packet packet, IntList result) throws IOException {
         try (Packet.Reader in = packet.reader()) {
             if (packet.getType() == PacketType.DestroyEntity) {
-                return Collections.singletonList(in.readVarInt());
+                result.add(in.readVarInt());
+                return;
             }
             int len = packet.atLeast(ProtocolVersion.v1_8) ? in.readVarInt() : in.readByte();
-            List<Integer> result = new ArrayList<>(len);
             for (int i = 0; i < len; i++) {
                 result.add(packet.atLeast(ProtocolVersion.v1_8) ? in.readVarInt() : in.readInt());
             }
-            return result;
         }
     }
 
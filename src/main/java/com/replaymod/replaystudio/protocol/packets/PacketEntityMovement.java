@@ -23,6 +23,7 @@ import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
 import com.replaymod.replaystudio.util.DPosition;
+import com.replaymod.replaystudio.util.MutableLocation;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 
@@ -70,6 +71,50 @@ public class PacketEntityMovement {
         }
     }
 
+    /**
+     * Applies the relative movement in the given packet to the given location in place.
+     * Only the parts of the location which are contained in the packet are changed.
+     * @return Whether the entity is on the ground after the movement
+     */
+    public static boolean applyMovement(Packet packet, MutableLocation location) throws IOException {
+        PacketType type = packet.getType();
+        boolean hasPos = type == PacketType.EntityPosition || type == PacketType.EntityPositionRotation;
+        boolean hasRot = type == PacketType.EntityRotation || type == PacketType.EntityPositionRotation;
+        try (Packet.Reader in = packet.reader()) {
+            if (packet.atLeast(ProtocolVersion.v1_8)) {
+                in.readVarInt(); // entity id
+            } else {
+                in.readInt(); // entity id
+            }
+            if (hasPos) {
+                if (packet.atLeast(ProtocolVersion.v1_9)) {
+                    location.add(
+                            in.readShort() / 4096.0,
+                            in.readShort() / 4096.0,
+                            in.readShort() / 4096.0
+                    );
+                } else {
+                    location.add(
+                            in.readByte() / 32.0,
+                            in.readByte() / 32.0,
+                            in.readByte() / 32.0
+                    );
+                }
+            }
+            if (hasRot) {
+                location.setRotation(
+                        in.readByte() / 256f * 360,
+                        in.readByte() / 256f * 360
+                );
+            }
+            boolean onGround = true;
+            if (packet.atLeast(ProtocolVersion.v1_8) && (hasPos || hasRot)) {
+                onGround = in.readBoolean();
+            }
+            return onGround;
+        }
+    }
+
     public static Packet write(PacketTypeRegistry registry, int entityId, DPosition deltaPos, Pair<Float, Float> yawPitch, boolean onGround) throws IOException {
         boolean hasPos = deltaPos != null;
         boolean hasRot = yawPitch != null;
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.replaymod.replaystudio.rar;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.util.IPosition;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects all packets produced by a single {@link RandomAccessReplay#seek(int)}, so they can be handed to the consumer
+ * at once. A batch is reused for every seek.
+ *
+ * Optionally, consecutive single block changes are coalesced into one MultiBlockChange packet per chunk section
+ * (or chunk column prior to 1.16.2).
+ */
+public class PacketBatch implements PacketSink {
+    private final PacketTypeRegistry registry;
+    private final boolean coalesceBlockChanges;
+    private final List<Packet> packets = new ArrayList<>();
+    private final Long2ObjectLinkedOpenHashMap<List<PacketBlockChange>> pendingBlockChanges = new Long2ObjectLinkedOpenHashMap<>();
+    private final ByteBuf headers = Unpooled.buffer();
+    private CompositeByteBuf buffer;
+
+    public PacketBatch(PacketTypeRegistry registry, boolean coalesceBlockChanges) {
+        this.registry = registry;
+        this.coalesceBlockChanges = coalesceBlockChanges && registry.atLeast(ProtocolVersion.v1_8);
+    }
+
+    @Override
+    public void accept(Packet packet) {
+        try {
+            if (coalesceBlockChanges && packet.getType() == PacketType.BlockChange) {
+                PacketBlockChange change = PacketBlockChange.read(packet);
+                packet.release();
+                IPosition pos = change.getPosition();
+                int chunkY = registry.atLeast(ProtocolVersion.v1_16_2) ? pos.getY() >> 4 : 0;
+                long key = ((long) (pos.getX() >> 4) & 0x3fffff) << 42
+                        | ((long) (pos.getZ() >> 4) & 0x3fffff) << 20
+                        | (long) chunkY & 0xfffff;
+                List<PacketBlockChange> changes = pendingBlockChanges.get(key);
+                if (changes == null) {
+                    pendingBlockChanges.put(key, changes = new ArrayList<>());
+                }
+                changes.add(change);
+                return;
+            }
+
+            // Changes must not be moved past other packets (e.g. the chunk they are in might be unloaded)
+            flushBlockChanges();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        packets.add(packet);
+    }
+
+    private void flushBlockChanges() throws IOException {
+        for (Long2ObjectMap.Entry<List<PacketBlockChange>> entry : pendingBlockChanges.long2ObjectEntrySet()) {
+            long key = entry.getLongKey();
+            List<PacketBlockChange> changes = entry.getValue();
+            if (changes.size() == 1) {
+                packets.add(changes.get(0).write(registry));
+            } else {
+                int chunkX = (int) (key >> 42);
+                int chunkY = (int) (key << 44 >> 44);
+                int chunkZ = (int) (key << 22 >> 42);
+                packets.add(PacketBlockChange.writeBulk(registry, chunkX, chunkY, chunkZ, changes));
+            }
+        }
+        pendingBlockChanges.clear();
+    }
+
+    /**
+     * Must be called after the last packet has been added and before the batch is read.
+     */
+    public void flush() throws IOException {
+        flushBlockChanges();
+    }
+
+    /**
+     * Returns all packets of this batch in order. The packets remain owned by the batch.
+     */
+    public List<Packet> getPackets() {
+        return Collections.unmodifiableList(packets);
+    }
+
+    /**
+     * Returns all packets of this batch in the format in which they are sent over the network (without compression),
+     * i.e. each packet prefixed by its length and id.
+     * The returned buffer is made up of the packets' own buffers, so no content is copied.
+     * It remains owned by the batch.
+     */
+    public ByteBuf getBuffer() {
+        if (buffer == null) {
+            headers.clear();
+            int[] headerLengths = new int[packets.size()];
+            ByteBufNetOutput out = new ByteBufNetOutput(headers);
+            try {
+                for (int i = 0; i < packets.size(); i++) {
+                    Packet packet = packets.get(i);
+                    int start = headers.writerIndex();
+                    out.writeVarInt(varIntLength(packet.getId()) + packet.getBuf().readableBytes());
+                    out.writeVarInt(packet.getId());
+                    headerLengths[i] = headers.writerIndex() - start;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            buffer = Unpooled.compositeBuffer(packets.size() * 2);
+            int offset = 0;
+            for (int i = 0; i < packets.size(); i++) {
+                buffer.addComponent(true, headers.retainedSlice(offset, headerLengths[i]));
+                buffer.addComponent(true, packets.get(i).getBuf().retainedSlice());
+                offset += headerLengths[i];
+            }
+        }
+        return buffer;
+    }
+
+    public int size() {
+        return packets.size();
+    }
+
+    public boolean isEmpty() {
+        return packets.isEmpty();
+    }
+
+    /**
+     * Releases all packets in this batch and clears it for reuse.
+     */
+    public void release() {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+        for (Packet packet : packets) {
+            packet.release();
+        }
+        packets.clear();
+        pendingBlockChanges.clear();
+        headers.clear();
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
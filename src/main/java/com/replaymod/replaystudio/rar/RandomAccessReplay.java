@@ -20,27 +20,39 @@
 package com.replaymod.replaystudio.rar;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.Unpooled;
 import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
 import com.github.steveice10.packetlib.io.stream.StreamNetInput;
 import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetInput;
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
 import com.google.common.base.Optional;
+import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketPlayerListEntry;
 import com.replaymod.replaystudio.rar.analyse.ReplayAnalyzer;
+import com.replaymod.replaystudio.rar.cache.BlockCache;
+import com.replaymod.replaystudio.rar.cache.CacheCodec;
+import com.replaymod.replaystudio.rar.cache.LazyPacketList;
 import com.replaymod.replaystudio.rar.cache.ReadableCache;
 import com.replaymod.replaystudio.rar.cache.WriteableCache;
 import com.replaymod.replaystudio.rar.state.Replay;
 import com.replaymod.replaystudio.replay.ReplayFile;
-import org.apache.commons.lang3.tuple.Pair;
 
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,6 +65,13 @@ import java.util.logging.Logger;
  * and chunk states while doing so.
  * This allows it to later jump to any time by doing a diff from the current time (including backwards jumping).
  *
+ * The analysis is split into segments (see {@link #setSegmentLength(int)}), each of which is written to the cache
+ * as soon as it is complete. If the analysis is interrupted, {@link #load(Consumer)} resumes it after the last complete
+ * segment. Each segment is seeded with the state at the end of the previous one, so it can be used on its own.
+ * Seeking is possible within all complete segments, even while {@link #load(Consumer)} is still running on another
+ * thread (see {@link #getAnalysedTime()}). Only the segment containing the current time and the one it was last
+ * entered from are kept in memory, any other segment is loaded from the cache once a seek passes through it.
+ *
  * Exactly replicating the input replay is not realistically doable (and much less so if you consider doing to for
  * all versions supported), as such only entity positions, chunk state, world time and weather will be replicated.
  * This is by design and any further additions should be carefully considered as it'll probably cause significant
@@ -61,16 +80,35 @@ import java.util.logging.Logger;
 public abstract class RandomAccessReplay {
     private static final String CACHE_ENTRY = "quickModeCache.bin";
     private static final String CACHE_INDEX_ENTRY = "quickModeCacheIndex.bin";
-    private static final int CACHE_VERSION = 7;
+    private static final int CACHE_VERSION = 12;
+    private static final int CACHE_BLOCK_SIZE = 64 * 1024;
     private static final Logger LOGGER = Logger.getLogger(RandomAccessReplay.class.getName());
 
+    /**
+     * Default length of analysis segments in milliseconds of replay time.
+     */
+    public static final int DEFAULT_SEGMENT_LENGTH = 5 * 60 * 1000;
+
     private final ReplayFile replayFile;
     private final PacketTypeRegistry registry;
 
+    private int segmentLength = DEFAULT_SEGMENT_LENGTH;
+    private BlockCache blockCache = BlockCache.getDefault();
+    private CacheCodec cacheCodec = CacheCodec.DEFAULT;
+    private PacketBatch batch;
+
     private int currentTimeStamp;
 
-    private Replay state;
-    private ReadableCache cache;
+    /**
+     * All completely analysed segments. Appended to by {@link #load(Consumer)}, possibly while seeking.
+     */
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private Segment activeSegment;
+    /**
+     * The segment which was active before {@link #activeSegment}, kept loaded so seeking back and forth across their
+     * boundary does not have to reload it every time. Any other segment is unloaded.
+     */
+    private Segment previousSegment;
 
     public RandomAccessReplay(ReplayFile replayFile, PacketTypeRegistry registry) {
         this.replayFile = replayFile;
@@ -79,113 +117,428 @@ public abstract class RandomAccessReplay {
 
     protected abstract void dispatch(Packet packet);
 
-    public void load(Consumer<Double> progress) throws IOException {
-        if (!tryLoadFromCache(progress)) {
-            double progressSplit = 0.9; // 90% of progress time for analysing, 10% for loading
-            analyseReplay(d -> progress.accept(d * progressSplit));
-            tryLoadFromCache(d -> progress.accept(d * (1 - progressSplit) + progressSplit));
+    /**
+     * Dispatches all packets produced by a single {@link #seek(int)}. Only used if batching has been enabled via
+     * {@link #setBatching(boolean, boolean)}.
+     * The batch (and its packets) remain owned by this replay and are only valid for the duration of this call.
+     * The default implementation passes each packet on to {@link #dispatch(Packet)}.
+     */
+    protected void dispatch(PacketBatch batch) {
+        for (Packet packet : batch.getPackets()) {
+            dispatch(packet.retain());
+        }
+    }
+
+    /**
+     * Enables or disables batching. If enabled, all packets of a {@link #seek(int)} are collected into one
+     * {@link PacketBatch} and passed to {@link #dispatch(PacketBatch)} at once.
+     * @param batching Whether to enable batching
+     * @param coalesceBlockChanges Whether to coalesce consecutive block changes into MultiBlockChange packets
+     */
+    public void setBatching(boolean batching, boolean coalesceBlockChanges) {
+        if (batch != null) {
+            batch.release();
+        }
+        batch = batching ? new PacketBatch(registry, coalesceBlockChanges) : null;
+    }
+
+    /**
+     * Sets the length of newly analysed segments. Shorter segments allow for earlier seeking and lose less work when
+     * the analysis is interrupted but each one has to repeat the complete state at its start.
+     * @param segmentLength Length in milliseconds of replay time
+     */
+    public void setSegmentLength(int segmentLength) {
+        this.segmentLength = segmentLength;
+    }
+
+    /**
+     * Sets where decompressed blocks of the cache are kept. By default, a single {@link BlockCache} is shared by all
+     * replays, bounding the total memory used no matter how many replays are loaded.
+     */
+    public void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Sets how packets are stored in newly written cache segments, trading disk space for seek latency.
+     * Existing segments keep the codec they were written with.
+     */
+    public void setCacheCodec(CacheCodec cacheCodec) {
+        this.cacheCodec = cacheCodec;
+    }
+
+    /**
+     * Returns the time up to which the replay has been analysed, i.e. the latest time {@link #seek(int)} can reach.
+     * @return Time in milliseconds or -1 if no segment has been analysed yet
+     */
+    public int getAnalysedTime() {
+        List<Segment> segments = this.segments;
+        if (segments.isEmpty()) {
+            return -1;
         }
+        return segments.get(segments.size() - 1).endTime;
     }
 
-    private boolean tryLoadFromCache(Consumer<Double> progress) throws IOException {
+    public void load(Consumer<Double> progress) throws IOException {
         release();
 
-        Optional<InputStream> cacheIndexOpt = replayFile.getCache(CACHE_INDEX_ENTRY);
-        if (!cacheIndexOpt.isPresent()) return false;
-        try (InputStream indexIn = cacheIndexOpt.get()) {
-            Optional<InputStream> cacheOpt = replayFile.getCache(CACHE_ENTRY);
-            if (!cacheOpt.isPresent()) return false;
-            try (InputStream cacheIn = cacheOpt.get()) {
-                Pair<Replay, ReadableCache> result = loadFromCache(cacheIn, indexIn, progress);
-                if (result == null) return false;
-                Replay replay = result.getLeft();
-                ReadableCache cache = result.getRight();
-                replay.load(Packet::release, cache);
-                this.state = replay;
-                this.cache = cache;
-                return true;
+        Segment segment;
+        while ((segment = readSegment(segments.size())) != null) {
+            segments.add(segment);
+            if (segment.last) {
+                progress.accept(1.0);
+                return;
             }
-        } catch (EOFException e) {
-            LOGGER.log(Level.WARNING, "Re-analysing replay due to premature EOF while loading the cache:", e);
-            return false;
         }
+
+        double duration = replayFile.getMetaData().getDuration();
+        analyseReplay(time -> progress.accept(time / duration));
     }
 
-    private Pair<Replay, ReadableCache> loadFromCache(InputStream rawCacheIn, InputStream rawIndexIn, Consumer<Double> progress) throws IOException {
-        long sysTimeStart = System.currentTimeMillis();
+    private static String segmentEntry(String entry, int index) {
+        // First segment uses the plain name so outdated caches are replaced rather than left lying around
+        return index == 0 ? entry : entry + "." + index;
+    }
 
-        NetInput cacheIn = new StreamNetInput(rawCacheIn);
-        NetInput in = new StreamNetInput(rawIndexIn);
-        if (in.readVarInt() != CACHE_VERSION) return null; // Incompatible cache version
-        if (cacheIn.readVarInt() != CACHE_VERSION) return null; // Incompatible cache version
-        if (in.readVarInt() != registry.getVersion().getOriginalVersion()) return null; // Cache of incompatible protocol version
-        if (cacheIn.readVarInt() != registry.getVersion().getOriginalVersion()) return null; // Cache of incompatible protocol version
+    private Segment readSegment(int index) throws IOException {
+        Optional<InputStream> indexInOpt = replayFile.getCache(segmentEntry(CACHE_INDEX_ENTRY, index));
+        if (!indexInOpt.isPresent()) return null;
+        try (InputStream indexIn = indexInOpt.get()) {
+            NetInput in = new StreamNetInput(indexIn);
+            if (in.readVarInt() != CACHE_VERSION) return null; // Incompatible cache version
+            if (in.readVarInt() != registry.getVersion().getOriginalVersion()) return null; // Cache of incompatible protocol version
 
-        Replay replay = new Replay(registry, in);
+            int startTime = in.readVarInt();
+            int endTime = in.readVarInt();
+            boolean last = in.readBoolean();
+            int size = in.readVarInt();
+            int playerListIndex = in.readVarInt();
+            byte[] stateIndex = in.readBytes(in.readVarInt());
 
-        int size = in.readVarInt();
-        LOGGER.info("Creating quick mode buffer of size: " + size / 1024 + "KB");
-        ByteBuf buf = Unpooled.buffer(size);
-        int read = 0;
-        while (true) {
-            int len = buf.writeBytes(rawCacheIn, Math.min(size - read, 4096));
-            if (len <= 0) break;
-            read += len;
-            progress.accept((double) read / size);
+            int expectedStartTime = index == 0 ? 0 : segments.get(index - 1).endTime;
+            if (startTime != expectedStartTime) return null; // Left over from a different segmentation
+
+            return new Segment(index, startTime, endTime, last, size, playerListIndex, stateIndex);
+        } catch (EOFException e) {
+            LOGGER.log(Level.WARNING, "Re-analysing replay segment " + index + " due to premature EOF while loading the cache:", e);
+            return null;
         }
-        ReadableCache cache = new ReadableCache(buf);
+    }
 
-        LOGGER.info("Loaded quick replay from cache in " + (System.currentTimeMillis() - sysTimeStart) + "ms");
-        return Pair.of(replay, cache);
+    private ReadableCache readCache(Segment segment) throws IOException {
+        long sysTimeStart = System.currentTimeMillis();
+
+        // The cache is stored in independently compressed blocks, so it can be mapped and only the blocks actually
+        // required are read and decompressed
+        Optional<ByteBuf> bufOpt = replayFile.mapCache(segmentEntry(CACHE_ENTRY, segment.index));
+        if (!bufOpt.isPresent()) {
+            throw new IOException("Quick mode cache segment " + segment.index + " is missing.");
+        }
+        ByteBuf buf = bufOpt.get();
+        try {
+            NetInput cacheIn = new ByteBufNetInput(buf);
+            if (cacheIn.readVarInt() != CACHE_VERSION
+                    || cacheIn.readVarInt() != registry.getVersion().getOriginalVersion()) {
+                throw new IOException("Quick mode cache segment " + segment.index + " is incompatible with its index.");
+            }
+            CacheCodec codec = CacheCodec.readHeader(cacheIn);
+            if (buf.readableBytes() < segment.size) {
+                throw new EOFException("Quick mode cache segment " + segment.index + " is truncated.");
+            }
+            ReadableCache cache = new ReadableCache(buf.retainedSlice(buf.readerIndex(), segment.size), blockCache, codec);
+
+            LOGGER.info("Loaded quick replay segment " + segment.index + " (" + segment.size / 1024 + "KB) from cache in " + (System.currentTimeMillis() - sysTimeStart) + "ms");
+            return cache;
+        } finally {
+            buf.release();
+        }
     }
 
-    private void analyseReplay(Consumer<Double> progress) throws IOException {
+    private void analyseReplay(IntConsumer progress) throws IOException {
         double sysTimeStart = System.currentTimeMillis();
-        try (ReplayInputStream in = replayFile.getPacketData(registry);
-             OutputStream cacheOut = replayFile.writeCache(CACHE_ENTRY);
-             OutputStream cacheIndexOut = replayFile.writeCache(CACHE_INDEX_ENTRY)) {
-            NetOutput out = new StreamNetOutput(cacheOut);
-            out.writeVarInt(CACHE_VERSION);
-            out.writeVarInt(registry.getVersion().getOriginalVersion());
-            NetOutput indexOut = new StreamNetOutput(cacheIndexOut);
-            indexOut.writeVarInt(CACHE_VERSION);
-            indexOut.writeVarInt(registry.getVersion().getOriginalVersion());
 
-            WriteableCache cache = new WriteableCache(cacheOut);
+        Segment previous = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        SegmentBuilder segment;
+        int resumeTime;
+        if (previous == null) {
+            segment = new SegmentBuilder(0, 0);
+            resumeTime = -1;
+        } else {
+            LOGGER.info("Resuming analysis of replay at " + previous.endTime + "ms");
+            segment = new SegmentBuilder(previous.index + 1, previous.endTime);
+            ReadableCache cache = readCache(previous);
+            try {
+                seed(segment.analyzer, previous, cache);
+            } finally {
+                cache.release();
+            }
+            resumeTime = previous.endTime;
+        }
 
-            double duration = replayFile.getMetaData().getDuration();
-            new ReplayAnalyzer(registry, indexOut, cache)
-                    .analyse(in, time -> progress.accept(time / duration));
+        try (ReplayInputStream in = resumeTime == -1
+                ? replayFile.getPacketData(registry)
+                : replayFile.getPacketData(registry, resumeTime + 1)) {
+            int time = segment.startTime;
+            PacketData packetData;
+            while ((packetData = in.readPacket()) != null) {
+                Packet packet = packetData.getPacket();
+                int nextTime = (int) packetData.getTime();
+                if (nextTime <= resumeTime) {
+                    packet.release(); // already part of the previous segment
+                    continue;
+                }
+                if (nextTime > time && time - segment.startTime >= segmentLength) {
+                    // All packets up to and including `time` have been processed, seal the segment
+                    Segment done = segment.finish(time, false);
+                    ReadableCache cache = new ReadableCache(segment.cacheBuf, blockCache, segment.cache.getCodec());
+                    try {
+                        segment = new SegmentBuilder(done.index + 1, time);
+                        seed(segment.analyzer, done, cache);
+                    } finally {
+                        cache.release();
+                    }
+                }
+                time = nextTime;
+                progress.accept(time);
+                segment.analyzer.process(time, packet);
+            }
 
-            indexOut.writeVarInt(cache.index()); // store size of cache
+            segment.finish(time, true);
+            segment.cacheBuf.release();
         }
         LOGGER.info("Analysed replay in " + (System.currentTimeMillis() - sysTimeStart) + "ms");
     }
 
-    public void release() {
-        if (state != null && cache != null) {
+    /**
+     * Feeds the state at the end of the given segment into the analyzer for the following segment.
+     */
+    private void seed(ReplayAnalyzer analyzer, Segment segment, ReadableCache cache) throws IOException {
+        int time = segment.endTime;
+        PacketSink sink = packet -> {
             try {
-                state.unload(Packet::release, cache);
+                analyzer.process(time, packet);
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new UncheckedIOException(e);
             }
-            state = null;
+        };
+        try {
+            new LazyPacketList(registry, segment.playerListIndex).read(sink, cache);
+            Replay state = segment.newState();
+            state.load(Packet::release, cache);
+            state.play(sink, -1, time);
+            state.unload(Packet::release, cache);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-            cache.release();
-            cache = null;
+    /**
+     * Unloads all segments. Waits for any {@link #seek(int)} on another thread to finish first, as does
+     * {@link #load(Consumer)}, which starts by calling this method.
+     */
+    public synchronized void release() {
+        for (Segment segment : segments) {
+            segment.unload();
         }
+        segments.clear();
+        activeSegment = null;
+        previousSegment = null;
     }
 
     public void reset() {
         currentTimeStamp = -1;
     }
 
-    public void seek(int targetTime) throws IOException {
+    /**
+     * Seeks to the given time. Times beyond {@link #getAnalysedTime()} are clamped to it.
+     */
+    public synchronized void seek(int targetTime) throws IOException {
+        if (segments.isEmpty()) {
+            return; // nothing has been analysed yet
+        }
+        targetTime = Math.min(targetTime, getAnalysedTime());
+
+        Segment targetSegment = segments.get(0);
+        for (Segment segment : segments) {
+            if (segment.startTime <= targetTime) {
+                targetSegment = segment;
+            }
+        }
+
+        if (batch == null) {
+            seek(this::dispatch, targetSegment, targetTime);
+            return;
+        }
+        try {
+            seek(batch, targetSegment, targetTime);
+            batch.flush();
+            if (!batch.isEmpty()) {
+                dispatch(batch);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause(); // see PacketBatch
+        } finally {
+            batch.release();
+        }
+    }
+
+    private void seek(PacketSink sink, Segment targetSegment, int targetTime) throws IOException {
+        if (activeSegment == null) {
+            activate(segments.get(0));
+        }
+        if (currentTimeStamp == -1) {
+            // Client state is empty, so we can start in any segment
+            activate(targetSegment);
+        }
+        // Segments share the state at their boundaries, so we can switch over there
+        while (activeSegment != targetSegment) {
+            Segment segment = activeSegment;
+            if (targetSegment.index > segment.index) {
+                segment.state.play(sink, currentTimeStamp, segment.endTime);
+                currentTimeStamp = segment.endTime;
+                activate(segments.get(segment.index + 1));
+            } else {
+                segment.state.rewind(sink, currentTimeStamp, segment.startTime);
+                currentTimeStamp = segment.startTime;
+                activate(segments.get(segment.index - 1));
+            }
+        }
+
+        Replay state = activeSegment.state;
         if (targetTime > currentTimeStamp) {
-            state.play(this::dispatch, currentTimeStamp, targetTime);
+            state.play(sink, currentTimeStamp, targetTime);
         } else {
-            state.rewind(this::dispatch, currentTimeStamp, targetTime);
+            state.rewind(sink, currentTimeStamp, targetTime);
         }
         currentTimeStamp = targetTime;
     }
+
+    /**
+     * Makes the given segment the active one, loading it if necessary and unloading all but the one it replaces.
+     */
+    private void activate(Segment segment) throws IOException {
+        segment.load();
+        if (segment == activeSegment) {
+            return;
+        }
+        if (previousSegment != null && previousSegment != segment) {
+            previousSegment.unload();
+        }
+        previousSegment = activeSegment;
+        activeSegment = segment;
+    }
+
+    private class Segment {
+        private final int index;
+        private final int startTime;
+        private final int endTime;
+        private final boolean last;
+        private final int size;
+        private final int playerListIndex;
+        private final byte[] stateIndex;
+
+        // Only set while loaded
+        private Replay state;
+        private ReadableCache cache;
+
+        private Segment(int index, int startTime, int endTime, boolean last, int size, int playerListIndex, byte[] stateIndex) {
+            this.index = index;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.last = last;
+            this.size = size;
+            this.playerListIndex = playerListIndex;
+            this.stateIndex = stateIndex;
+        }
+
+        private Replay newState() throws IOException {
+            return new Replay(registry, new StreamNetInput(new ByteArrayInputStream(stateIndex)));
+        }
+
+        private Segment load() throws IOException {
+            if (state == null) {
+                ReadableCache cache = readCache(this);
+                Replay state = newState();
+                state.load(Packet::release, cache);
+                this.state = state;
+                this.cache = cache;
+            }
+            return this;
+        }
+
+        private void unload() {
+            if (state != null && cache != null) {
+                try {
+                    state.unload(Packet::release, cache);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                state = null;
+
+                cache.release();
+                cache = null;
+            }
+        }
+    }
+
+    private class SegmentBuilder {
+        private final int index;
+        private final int startTime;
+        private final ByteBuf cacheBuf = Unpooled.buffer();
+        private final ByteBuf indexBuf = Unpooled.buffer();
+        private final WriteableCache cache = new WriteableCache(new ByteBufOutputStream(cacheBuf), CACHE_BLOCK_SIZE, cacheCodec.newInstance());
+        private final ReplayAnalyzer analyzer;
+
+        private SegmentBuilder(int index, int startTime) throws IOException {
+            this.index = index;
+            this.startTime = startTime;
+            this.analyzer = new ReplayAnalyzer(registry, new ByteBufNetOutput(indexBuf), cache);
+        }
+
+        /**
+         * Builds this segment and writes it to the cache. The cache index is written last, so its presence implies
+         * that the segment is complete.
+         * Leaves the content of the cache in {@link #cacheBuf} for the caller to release.
+         */
+        private Segment finish(int endTime, boolean last) throws IOException {
+            LazyPacketList.Builder playerList = new LazyPacketList.Builder();
+            for (PacketPlayerListEntry entry : analyzer.getPlayerListEntries()) {
+                playerList.add(PacketPlayerListEntry.write(registry, PacketPlayerListEntry.Action.init(registry), entry));
+            }
+            int playerListIndex = playerList.build(cache);
+
+            // Unless this is the end, all things are still present at the end time, the next segment continues them
+            analyzer.build(last ? endTime : endTime + 1);
+            cache.finish();
+            byte[] stateIndex = new byte[indexBuf.readableBytes()];
+            indexBuf.readBytes(stateIndex);
+            indexBuf.release();
+
+            replayFile.removeCache(segmentEntry(CACHE_INDEX_ENTRY, index));
+            try (OutputStream cacheOut = replayFile.writeCacheUncompressed(segmentEntry(CACHE_ENTRY, index))) {
+                NetOutput out = new StreamNetOutput(cacheOut);
+                out.writeVarInt(CACHE_VERSION);
+                out.writeVarInt(registry.getVersion().getOriginalVersion());
+                cache.getCodec().writeHeader(out);
+                cacheBuf.getBytes(0, cacheOut, cacheBuf.writerIndex());
+            }
+
+            try (OutputStream cacheIndexOut = replayFile.writeCache(segmentEntry(CACHE_INDEX_ENTRY, index))) {
+                NetOutput out = new StreamNetOutput(cacheIndexOut);
+                out.writeVarInt(CACHE_VERSION);
+                out.writeVarInt(registry.getVersion().getOriginalVersion());
+                out.writeVarInt(startTime);
+                out.writeVarInt(endTime);
+                out.writeBoolean(last);
+                out.writeVarInt(cacheBuf.writerIndex());
+                out.writeVarInt(playerListIndex);
+                out.writeVarInt(stateIndex.length);
+                out.writeBytes(stateIndex);
+            }
+
+            Segment segment = new Segment(index, startTime, endTime, last, cacheBuf.writerIndex(), playerListIndex, stateIndex);
+            segments.add(segment);
+            return segment;
+        }
+    }
 }
@@ -25,6 +25,7 @@ import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.LazyChunkData;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
 import com.replaymod.replaystudio.protocol.packets.PacketDestroyEntities;
 import com.replaymod.replaystudio.protocol.packets.PacketJoinGame;
@@ -45,12 +46,16 @@ import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
 import com.replaymod.replaystudio.rar.state.World;
 import com.replaymod.replaystudio.util.IPosition;
 import com.replaymod.replaystudio.util.Location;
+import com.replaymod.replaystudio.util.MutableLocation;
 import com.replaymod.replaystudio.util.PacketUtils;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -71,6 +76,9 @@ public class ReplayAnalyzer {
 
     private final Map<String, PacketPlayerListEntry> playerListEntries = new HashMap<>();
     private Packet lastLightUpdate = null;
+    // Re-used for every packet to avoid allocations
+    private final IntList entityIds = new IntArrayList();
+    private final MutableLocation location = new MutableLocation();
 
     public ReplayAnalyzer(PacketTypeRegistry registry, NetOutput out, WriteableCache cache) throws IOException {
         this.registry = registry;
@@ -82,224 +90,253 @@ public class ReplayAnalyzer {
         int time = 0;
         PacketData packetData;
         while ((packetData = in.readPacket()) != null) {
-            Packet packet = packetData.getPacket();
             time = (int) packetData.getTime();
             progress.accept(time);
-            Integer entityId = PacketUtils.getEntityId(packet);
-            switch (packet.getType()) {
-                case SpawnMob:
-                case SpawnObject:
-                case SpawnPainting: {
-                    Entity.Builder entity = replay.world.transientThings.newEntity(time, entityId);
-                    entity.addSpawnPacket(packet.retain());
-                    break;
-                }
-                case SpawnPlayer: {
-                    Entity.Builder entity = replay.world.transientThings.newEntity(time, entityId);
+            process(time, packetData.getPacket());
+        }
 
-                    PacketPlayerListEntry entry = playerListEntries.get(PacketSpawnPlayer.getPlayerListEntryId(packet));
-                    if (entry != null) {
-                        entity.addSpawnPacket(PacketPlayerListEntry.write(registry, PacketPlayerListEntry.Action.init(registry), entry));
-                    }
+        build(time);
+    }
+
+    /**
+     * Returns the current player list entries, these are required to resume analysis at a later point.
+     */
+    public Collection<PacketPlayerListEntry> getPlayerListEntries() {
+        return playerListEntries.values();
+    }
+
+    /**
+     * Processes a single packet. Takes ownership of the packet.
+     */
+    public void process(int time, Packet packet) throws IOException {
+        int entityId = PacketUtils.getEntityIdOrMinus1(packet);
+        switch (packet.getType()) {
+            case SpawnMob:
+            case SpawnObject:
+            case SpawnPainting: {
+                Entity.Builder entity = replay.world.transientThings.newEntity(time, entityId);
+                entity.addSpawnPacket(packet.retain());
+                break;
+            }
+            case SpawnPlayer: {
+                Entity.Builder entity = replay.world.transientThings.newEntity(time, entityId);
 
-                    entity.addSpawnPacket(packet.retain());
-                    break;
+                PacketPlayerListEntry entry = playerListEntries.get(PacketSpawnPlayer.getPlayerListEntryId(packet));
+                if (entry != null) {
+                    entity.addSpawnPacket(PacketPlayerListEntry.write(registry, PacketPlayerListEntry.Action.init(registry), entry));
                 }
-                case DestroyEntity:
-                case DestroyEntities: {
-                    for (int id : PacketDestroyEntities.getEntityIds(packet)) {
-                        replay.world.transientThings.removeEntity(time, id);
-                    }
-                    break;
+
+                entity.addSpawnPacket(packet.retain());
+                break;
+            }
+            case DestroyEntity:
+            case DestroyEntities: {
+                entityIds.clear();
+                PacketDestroyEntities.getEntityIds(packet, entityIds);
+                for (int i = 0; i < entityIds.size(); i++) {
+                    replay.world.transientThings.removeEntity(time, entityIds.getInt(i));
                 }
-                case UnloadChunk:
-                case ChunkData: {
-                    PacketChunkData chunkData = PacketChunkData.read(packet, replay.world.info.dimensionType.getSections());
-                    if (chunkData.isUnload()) {
-                        replay.world.transientThings.removeChunk(time, chunkData.getUnloadX(), chunkData.getUnloadZ());
-                    } else {
-                        processChunkLoad(time, chunkData.getColumn());
-                    }
-                    break;
+                break;
+            }
+            case UnloadChunk:
+            case ChunkData: {
+                // Only decode what we actually need (e.g. nothing but the position for unload packets)
+                LazyChunkData chunkData = LazyChunkData.read(packet, replay.world.info.dimensionType.getSections());
+                if (chunkData.isUnload()) {
+                    replay.world.transientThings.removeChunk(time, chunkData.getX(), chunkData.getZ());
+                } else {
+                    processChunkLoad(time, chunkData);
                 }
-                case BulkChunkData: {
-                    for (PacketChunkData.Column column : PacketChunkData.readBulk(packet)) {
-                        processChunkLoad(time, column);
-                    }
-                    break;
+                break;
+            }
+            case BulkChunkData: {
+                for (PacketChunkData.Column column : PacketChunkData.readBulk(packet)) {
+                    processChunkLoad(time, column);
                 }
-                case UpdateLight: {
-                    if (registry.atLeast(ProtocolVersion.v1_18)) {
-                        break; // initial light is now part of the chunk packet again
-                    }
-                    // A light update packet may be sent either before or after the corresponding chunk packet.
-                    // The vanilla server appears to always send it immediately before the chunk packet.
-                    // Third-party servers (e.g. Hypixel) may sent it after the corresponding chunk packet, hence
-                    // why we must support both options here.
-                    PacketUpdateLight updateLight = PacketUpdateLight.read(packet);
-                    Chunk.Builder chunk = replay.world.transientThings.getChunk(updateLight.getX(), updateLight.getZ());
-                    if (chunk != null && chunk.spawnPackets.list.size() == 1) {
-                        // We we already know about the chunk and this is the first light update we receive for it,
-                        // then add the packet to the chunks spawn packets.
-                        chunk.spawnPackets.list.add(0, packet.retain());
-                    } else {
-                        // If we don't yet know about the chunk, then store the packet for when the chunk arrives.
-                        if (lastLightUpdate != null) {
-                            lastLightUpdate.release();
-                        }
-                        lastLightUpdate = packet.retain();
-                    }
-                    break;
+                break;
+            }
+            case UpdateLight: {
+                if (registry.atLeast(ProtocolVersion.v1_18)) {
+                    break; // initial light is now part of the chunk packet again
                 }
-                case BlockChange:
-                case MultiBlockChange: {
-                    for (PacketBlockChange record : PacketBlockChange.readSingleOrBulk(packet)) {
-                        IPosition pos = record.getPosition();
-                        Chunk.Builder chunk = replay.world.transientThings.getChunk(pos.getX() >> 4, pos.getZ() >> 4);
-                        if (chunk != null) {
-                            chunk.blocks.update(time, record);
-                        }
+                // A light update packet may be sent either before or after the corresponding chunk packet.
+                // The vanilla server appears to always send it immediately before the chunk packet.
+                // Third-party servers (e.g. Hypixel) may sent it after the corresponding chunk packet, hence
+                // why we must support both options here.
+                PacketUpdateLight updateLight = PacketUpdateLight.read(packet);
+                Chunk.Builder chunk = replay.world.transientThings.getChunk(updateLight.getX(), updateLight.getZ());
+                if (chunk != null && chunk.spawnPackets.list.size() == 1) {
+                    // We we already know about the chunk and this is the first light update we receive for it,
+                    // then add the packet to the chunks spawn packets.
+                    chunk.spawnPackets.list.add(0, packet.retain());
+                } else {
+                    // If we don't yet know about the chunk, then store the packet for when the chunk arrives.
+                    if (lastLightUpdate != null) {
+                        lastLightUpdate.release();
                     }
-                    break;
+                    lastLightUpdate = packet.retain();
                 }
-                case PlayerListEntry: {
-                    Set<PacketPlayerListEntry.Action> actions = PacketPlayerListEntry.getActions(packet);
-                    for (PacketPlayerListEntry entry : PacketPlayerListEntry.read(packet)) {
-                        for (PacketPlayerListEntry.Action action : actions) {
-                            switch (action) {
-                                case ADD:
-                                    playerListEntries.put(entry.getId(), entry);
-                                    break;
-                                case CHAT_KEY:
-                                    playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
-                                            PacketPlayerListEntry.updateChatKey(it, entry.getSigData()));
-                                    break;
-                                case GAMEMODE:
-                                    playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
-                                            PacketPlayerListEntry.updateGamemode(it, entry.getGamemode()));
-                                    break;
-                                case LISTED:
-                                    playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
-                                            PacketPlayerListEntry.updateListed(it, entry.isListed()));
-                                    break;
-                                case LATENCY:
-                                    playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
-                                            PacketPlayerListEntry.updateLatency(it, entry.getLatency()));
-                                    break;
-                                case DISPLAY_NAME:
-                                    playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
-                                            PacketPlayerListEntry.updateDisplayName(it, entry.getDisplayName()));
-                                    break;
-                                case REMOVE:
-                                    playerListEntries.remove(entry.getId());
-                            }
-                        }
+                break;
+            }
+            case BlockChange:
+            case MultiBlockChange: {
+                for (PacketBlockChange record : PacketBlockChange.readSingleOrBulk(packet)) {
+                    IPosition pos = record.getPosition();
+                    Chunk.Builder chunk = replay.world.transientThings.getChunk(pos.getX() >> 4, pos.getZ() >> 4);
+                    if (chunk != null) {
+                        chunk.blocks.update(time, record);
                     }
-                    break;
                 }
-                case Respawn: {
-                    PacketRespawn respawn = PacketRespawn.read(packet, replay.world.info.registry);
-                    String newDimension = respawn.dimension;
-                    if (!newDimension.equals(replay.world.info.dimension)) {
-                        World.Builder world = replay.newWorld(time, new World.Info(replay.world.info, respawn));
-                        if (registry.atLeast(ProtocolVersion.v1_14)) {
-                            currentViewChunkX = currentViewChunkZ = 0;
-                            world.viewPosition.put(time, PacketUpdateViewPosition.write(registry, 0, 0));
-                            world.viewDistance.put(time, PacketUpdateViewDistance.write(registry, currentViewDistance));
-                        }
-                        if (registry.atLeast(ProtocolVersion.v1_18)) {
-                            world.simulationDistance.put(time, PacketUpdateSimulationDistance.write(registry, currentSimulationDistance));
+                break;
+            }
+            case PlayerListEntry: {
+                Set<PacketPlayerListEntry.Action> actions = PacketPlayerListEntry.getActions(packet);
+                for (PacketPlayerListEntry entry : PacketPlayerListEntry.read(packet)) {
+                    for (PacketPlayerListEntry.Action action : actions) {
+                        switch (action) {
+                            case ADD:
+                                playerListEntries.put(entry.getId(), entry);
+                                break;
+                            case CHAT_KEY:
+                                playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
+                                        PacketPlayerListEntry.updateChatKey(it, entry.getSigData()));
+                                break;
+                            case GAMEMODE:
+                                playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
+                                        PacketPlayerListEntry.updateGamemode(it, entry.getGamemode()));
+                                break;
+                            case LISTED:
+                                playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
+                                        PacketPlayerListEntry.updateListed(it, entry.isListed()));
+                                break;
+                            case LATENCY:
+                                playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
+                                        PacketPlayerListEntry.updateLatency(it, entry.getLatency()));
+                                break;
+                            case DISPLAY_NAME:
+                                playerListEntries.computeIfPresent(entry.getId(), (key, it) ->
+                                        PacketPlayerListEntry.updateDisplayName(it, entry.getDisplayName()));
+                                break;
+                            case REMOVE:
+                                playerListEntries.remove(entry.getId());
                         }
                     }
-                    break;
                 }
-                case JoinGame: {
-                    PacketJoinGame joinGame = PacketJoinGame.read(packet);
-                    replay.newWorld(time, new World.Info(joinGame));
+                break;
+            }
+            case Respawn: {
+                PacketRespawn respawn = PacketRespawn.read(packet, replay.world.info.registry);
+                String newDimension = respawn.dimension;
+                if (!newDimension.equals(replay.world.info.dimension)) {
+                    World.Builder world = replay.newWorld(time, new World.Info(replay.world.info, respawn));
                     if (registry.atLeast(ProtocolVersion.v1_14)) {
                         currentViewChunkX = currentViewChunkZ = 0;
-                        replay.world.viewPosition.put(time, PacketUpdateViewPosition.write(registry, 0, 0));
-
-                        currentViewDistance = joinGame.viewDistance;
-                        replay.world.viewDistance.put(time, PacketUpdateViewDistance.write(registry, currentViewDistance));
+                        world.viewPosition.put(time, PacketUpdateViewPosition.write(registry, 0, 0));
+                        world.viewDistance.put(time, PacketUpdateViewDistance.write(registry, currentViewDistance));
                     }
                     if (registry.atLeast(ProtocolVersion.v1_18)) {
-                        currentSimulationDistance = joinGame.simulationDistance;
-                        replay.world.simulationDistance.put(time, PacketUpdateSimulationDistance.write(registry, currentSimulationDistance));
+                        world.simulationDistance.put(time, PacketUpdateSimulationDistance.write(registry, currentSimulationDistance));
                     }
-                    break;
                 }
-                case Features: {
-                    replay.features.put(time, packet.retain());
-                    break;
+                break;
+            }
+            case JoinGame: {
+                PacketJoinGame joinGame = PacketJoinGame.read(packet);
+                replay.newWorld(time, new World.Info(joinGame));
+                if (registry.atLeast(ProtocolVersion.v1_14)) {
+                    currentViewChunkX = currentViewChunkZ = 0;
+                    replay.world.viewPosition.put(time, PacketUpdateViewPosition.write(registry, 0, 0));
+
+                    currentViewDistance = joinGame.viewDistance;
+                    replay.world.viewDistance.put(time, PacketUpdateViewDistance.write(registry, currentViewDistance));
                 }
-                case Tags: {
-                    replay.tags.put(time, packet.retain());
-                    break;
+                if (registry.atLeast(ProtocolVersion.v1_18)) {
+                    currentSimulationDistance = joinGame.simulationDistance;
+                    replay.world.simulationDistance.put(time, PacketUpdateSimulationDistance.write(registry, currentSimulationDistance));
                 }
-                case UpdateViewPosition: {
-                    currentViewChunkX = PacketUpdateViewPosition.getChunkX(packet);
-                    currentViewChunkZ = PacketUpdateViewPosition.getChunkZ(packet);
-                    invalidateOutOfBoundsChunks(time, currentViewChunkX, currentViewChunkZ, currentViewDistance);
+                break;
+            }
+            case Features: {
+                replay.features.put(time, packet.retain());
+                break;
+            }
+            case Tags: {
+                replay.tags.put(time, packet.retain());
+                break;
+            }
+            case UpdateViewPosition: {
+                currentViewChunkX = PacketUpdateViewPosition.getChunkX(packet);
+                currentViewChunkZ = PacketUpdateViewPosition.getChunkZ(packet);
+                invalidateOutOfBoundsChunks(time, currentViewChunkX, currentViewChunkZ, currentViewDistance);
 
-                    replay.world.viewPosition.put(time, packet.retain());
-                    break;
-                }
-                case UpdateViewDistance: {
-                    currentViewDistance = PacketUpdateViewDistance.getDistance(packet);
-                    invalidateOutOfBoundsChunks(time, currentViewChunkX, currentViewChunkZ, currentViewDistance);
+                replay.world.viewPosition.put(time, packet.retain());
+                break;
+            }
+            case UpdateViewDistance: {
+                currentViewDistance = PacketUpdateViewDistance.getDistance(packet);
+                invalidateOutOfBoundsChunks(time, currentViewChunkX, currentViewChunkZ, currentViewDistance);
 
-                    replay.world.viewDistance.put(time, packet.retain());
-                    break;
-                }
-                case UpdateSimulationDistance: {
-                    currentSimulationDistance = PacketUpdateSimulationDistance.getDistance(packet);
+                replay.world.viewDistance.put(time, packet.retain());
+                break;
+            }
+            case UpdateSimulationDistance: {
+                currentSimulationDistance = PacketUpdateSimulationDistance.getDistance(packet);
 
-                    replay.world.simulationDistance.put(time, packet.retain());
-                    break;
-                }
-                case UpdateTime: {
-                    replay.world.worldTimes.put(time, packet.retain());
-                    break;
-                }
-                case NotifyClient: {
-                    switch (PacketNotifyClient.getAction(packet)) {
-                        case START_RAIN:
-                            replay.world.transientThings.newWeather(time);
-                            break;
-                        case STOP_RAIN:
-                            replay.world.transientThings.removeWeather(time);
-                            break;
-                        case RAIN_STRENGTH:
-                            Weather.Builder weather = replay.world.transientThings.getWeather();
-                            if (weather != null) {
-                                weather.updateRainStrength(time, packet.retain());
-                            }
-                            break;
-                        case THUNDER_STRENGTH:
-                            replay.world.thunderStrengths.put(time, packet.retain());
-                            break;
-                        default:
-                            break;
-                    }
-                    break;
+                replay.world.simulationDistance.put(time, packet.retain());
+                break;
+            }
+            case UpdateTime: {
+                replay.world.worldTimes.put(time, packet.retain());
+                break;
+            }
+            case NotifyClient: {
+                switch (PacketNotifyClient.getAction(packet)) {
+                    case START_RAIN:
+                        replay.world.transientThings.newWeather(time);
+                        break;
+                    case STOP_RAIN:
+                        replay.world.transientThings.removeWeather(time);
+                        break;
+                    case RAIN_STRENGTH:
+                        Weather.Builder weather = replay.world.transientThings.getWeather();
+                        if (weather != null) {
+                            weather.updateRainStrength(time, packet.retain());
+                        }
+                        break;
+                    case THUNDER_STRENGTH:
+                        replay.world.thunderStrengths.put(time, packet.retain());
+                        break;
+                    default:
+                        break;
                 }
+                break;
             }
-            if (entityId != null) {
-                Entity.Builder entity = replay.world.transientThings.getEntity(entityId);
-                if (entity != null) {
-                    Location current = entity.getLocation();
-                    Location updated = PacketUtils.updateLocation(current, packet);
-                    if (updated != null) {
-                        entity.updateLocation(time, updated);
-                    }
+        }
+        if (entityId != -1) {
+            Entity.Builder entity = replay.world.transientThings.getEntity(entityId);
+            if (entity != null) {
+                Location current = entity.getLocation();
+                if (current != null) {
+                    location.set(current);
+                } else {
+                    location.set(Location.NULL);
+                }
+                if (PacketUtils.updateLocation(location, packet)) {
+                    entity.updateLocation(time, location.toLocation());
                 }
             }
-            packet.release();
         }
+        packet.release();
+    }
 
+    /**
+     * Writes the index for all packets processed so far. Things which are still active at the given time are
+     * removed at that time.
+     */
+    public void build(int time) throws IOException {
         if (lastLightUpdate != null) {
             lastLightUpdate.release();
+            lastLightUpdate = null;
         }
 
         replay.build(out, time);
@@ -307,14 +344,8 @@ public class ReplayAnalyzer {
 
     private void processChunkLoad(int time, PacketChunkData.Column column) throws IOException {
         if (column.isFull()) {
-            Chunk.Builder chunk = replay.world.transientThings.newChunk(time, column);
-            if (lastLightUpdate != null) {
-                PacketUpdateLight updateLight = PacketUpdateLight.read(lastLightUpdate);
-                if (column.x == updateLight.getX() && column.z == updateLight.getZ()) {
-                    chunk.spawnPackets.list.add(0, lastLightUpdate);
-                    lastLightUpdate = null;
-                }
-            }
+            replay.world.transientThings.newChunk(time, column);
+            attachLightUpdate(column.x, column.z);
         } else {
             Chunk.Builder chunk = replay.world.transientThings.getChunk(column.x, column.z);
             if (chunk != null) {
@@ -323,6 +354,29 @@ public class ReplayAnalyzer {
         }
     }
 
+    private void processChunkLoad(int time, LazyChunkData chunkData) throws IOException {
+        if (chunkData.isFull()) {
+            replay.world.transientThings.newChunk(time, chunkData);
+            attachLightUpdate(chunkData.getX(), chunkData.getZ());
+        } else {
+            Chunk.Builder chunk = replay.world.transientThings.getChunk(chunkData.getX(), chunkData.getZ());
+            if (chunk != null) {
+                chunk.blocks.update(time, chunkData.getSections());
+            }
+        }
+    }
+
+    private void attachLightUpdate(int x, int z) throws IOException {
+        if (lastLightUpdate != null) {
+            Chunk.Builder chunk = replay.world.transientThings.getChunk(x, z);
+            PacketUpdateLight updateLight = PacketUpdateLight.read(lastLightUpdate);
+            if (x == updateLight.getX() && z == updateLight.getZ()) {
+                chunk.spawnPackets.list.add(0, lastLightUpdate);
+                lastLightUpdate = null;
+            }
+        }
+    }
+
     private void invalidateOutOfBoundsChunks(int time, int centerX, int centerZ, int viewDistance) throws IOException {
         // For some reason MC does not transmit the actual value, instead we have to compute it ourselves.
         int distance = Math.max(2, viewDistance) + 3;
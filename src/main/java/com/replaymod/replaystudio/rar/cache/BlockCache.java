@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.replaymod.replaystudio.rar.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Least-recently-used set of decompressed blocks of block-compressed {@link ReadableCache}s.
+ * May be shared between any number of caches (and threads), the total size of all blocks kept is bounded by its
+ * memory budget.
+ */
+public class BlockCache {
+    public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    private static final BlockCache DEFAULT = new BlockCache(DEFAULT_MEMORY_BUDGET);
+
+    /**
+     * Returns the block cache shared by all {@link ReadableCache}s which have not been given a different one.
+     */
+    public static BlockCache getDefault() {
+        return DEFAULT;
+    }
+
+    private final AtomicInteger nextOwnerId = new AtomicInteger();
+    private final LinkedHashMap<Long, byte[]> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBudget;
+    private long size;
+
+    public BlockCache(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        evict();
+    }
+
+    /**
+     * Returns the total size of all blocks currently held.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    int newOwnerId() {
+        return nextOwnerId.getAndIncrement();
+    }
+
+    synchronized byte[] get(int owner, int block) {
+        return blocks.get(key(owner, block));
+    }
+
+    synchronized void put(int owner, int block, byte[] data) {
+        byte[] prev = blocks.put(key(owner, block), data);
+        if (prev != null) {
+            size -= prev.length;
+        }
+        size += data.length;
+        evict();
+    }
+
+    synchronized void removeAll(int owner) {
+        Iterator<Map.Entry<Long, byte[]>> iter = blocks.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, byte[]> entry = iter.next();
+            if ((int) (entry.getKey() >>> 32) == owner) {
+                size -= entry.getValue().length;
+                iter.remove();
+            }
+        }
+    }
+
+    private void evict() {
+        // Always keep the most recent block, the caller is about to use it
+        Iterator<byte[]> iter = blocks.values().iterator();
+        while (size > memoryBudget && blocks.size() > 1) {
+            size -= iter.next().length;
+            iter.remove();
+        }
+    }
+
+    private static long key(int owner, int block) {
+        return (long) owner << 32 | (block & 0xffffffffL);
+    }
+}
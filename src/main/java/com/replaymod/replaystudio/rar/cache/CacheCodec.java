@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.replaymod.replaystudio.rar.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import com.github.steveice10.packetlib.io.NetInput;
+import com.github.steveice10.packetlib.io.NetOutput;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.util.Utils;
+import com.replaymod.replaystudio.util.ZlibPool;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Determines how individual packets are stored in the cache.
+ *
+ * Independent of the codec, the cache as a whole is compressed in blocks (see {@link WriteableCache}), so compressing
+ * packets individually trades disk space for additional work whenever they are read:
+ * <ul>
+ *     <li>{@link #none()} stores packets as is</li>
+ *     <li>{@link #deflate(int)} deflates each packet with the given level</li>
+ *     <li>{@link #dictionary(int, int)} additionally uses a preset dictionary trained from the first packets written
+ *     to the cache, which makes even small packets compress well</li>
+ * </ul>
+ *
+ * Packets smaller than the compression threshold (see {@link #withCompressionThreshold(int)}) are stored as is, as
+ * they rarely get any smaller and are not worth the effort.
+ *
+ * The codec of a cache is stored in its header (see {@link #writeHeader(NetOutput)}). Codecs in dictionary mode
+ * are stateful, {@link #newInstance()} must be used to get a fresh one for each new cache.
+ */
+public class CacheCodec {
+    private static final int TYPE_NONE = 0;
+    private static final int TYPE_DEFLATE = 1;
+    private static final int TYPE_DICTIONARY = 2;
+
+    /**
+     * Maximum number of packets of each type sampled for the dictionary.
+     */
+    private static final int SAMPLES_PER_TYPE = 4;
+    /**
+     * Maximum number of bytes sampled from each packet.
+     */
+    private static final int MAX_SAMPLE_SIZE = 512;
+    /**
+     * Number of packets after which the dictionary is fixed, even if it is not yet full.
+     */
+    private static final int TRAINING_PACKETS = 4096;
+
+    public static final int DEFAULT_DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Default for {@link #withCompressionThreshold(int)}.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 64;
+
+    /**
+     * Deflates each packet at the default level, same as prior versions of the cache.
+     */
+    public static final CacheCodec DEFAULT = deflate(Deflater.DEFAULT_COMPRESSION);
+
+    public static CacheCodec none() {
+        return new CacheCodec(TYPE_NONE, Deflater.NO_COMPRESSION, 0, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * @param level The compression level, see {@link Deflater#setLevel(int)}
+     */
+    public static CacheCodec deflate(int level) {
+        return new CacheCodec(TYPE_DEFLATE, level, 0, DEFAULT_COMPRESSION_THRESHOLD, null);
+    }
+
+    /**
+     * @param level The compression level, see {@link Deflater#setLevel(int)}
+     * @param dictionarySize Maximum size of the trained dictionary in bytes (zlib only uses the last 32KB)
+     */
+    public static CacheCodec dictionary(int level, int dictionarySize) {
+        return new CacheCodec(TYPE_DICTIONARY, level, dictionarySize, DEFAULT_COMPRESSION_THRESHOLD, null);
+    }
+
+    private final int type;
+    private final int level;
+    private final int dictionarySize;
+    private final int threshold;
+
+    // Dictionary mode only
+    private byte[] dictionary;
+    private boolean trained;
+    private ByteBuf samples;
+    private Map<PacketType, Integer> samplesPerType;
+    private int trainingPackets;
+
+    private CacheCodec(int type, int level, int dictionarySize, int threshold, byte[] dictionary) {
+        this.type = type;
+        this.level = level;
+        this.dictionarySize = dictionarySize;
+        this.threshold = threshold;
+        this.dictionary = dictionary;
+        this.trained = dictionary != null;
+    }
+
+    /**
+     * Returns a new codec with the same configuration as this one but without any trained state.
+     */
+    public CacheCodec newInstance() {
+        return new CacheCodec(type, level, dictionarySize, threshold, null);
+    }
+
+    /**
+     * Returns a new codec with the same configuration as this one, except that packets are only compressed if they
+     * are at least the given size. Has no effect on {@link #none()}.
+     * @param threshold The size (including the packet id) in bytes, {@code 0} to try to compress all packets
+     */
+    public CacheCodec withCompressionThreshold(int threshold) {
+        return new CacheCodec(type, level, dictionarySize, type == TYPE_NONE ? Integer.MAX_VALUE : threshold, null);
+    }
+
+    /**
+     * @param zlib Where to get the inflater from, see {@link ReadableCache#readPacket(PacketTypeRegistry, NetInput)}
+     */
+    public Packet read(PacketTypeRegistry registry, NetInput in, ZlibPool zlib) throws IOException {
+        return Utils.readCompressedPacket(registry, in, dictionary, zlib);
+    }
+
+    /**
+     * @param zlib Where to get the deflater from, see {@link WriteableCache#writePacket(NetOutput, Packet)}
+     */
+    public void write(NetOutput out, Packet packet, ZlibPool zlib) throws IOException {
+        switch (type) {
+            case TYPE_NONE:
+                Utils.writeCompressedPacket(out, packet, Integer.MAX_VALUE, level, null, zlib);
+                break;
+            case TYPE_DEFLATE:
+                Utils.writeCompressedPacket(out, packet, threshold, level, null, zlib);
+                break;
+            case TYPE_DICTIONARY:
+                if (!trained) {
+                    train(packet);
+                }
+                // Packets written while training are compressed without dictionary, zlib tells them apart on read
+                Utils.writeCompressedPacket(out, packet, threshold, level, dictionary, zlib);
+                break;
+            default:
+                throw new IllegalStateException("Unknown codec type " + type);
+        }
+    }
+
+    private void train(Packet packet) {
+        if (samples == null) {
+            samples = Unpooled.buffer();
+            samplesPerType = new EnumMap<>(PacketType.class);
+        }
+
+        int count = samplesPerType.getOrDefault(packet.getType(), 0);
+        if (count < SAMPLES_PER_TYPE) {
+            samplesPerType.put(packet.getType(), count + 1);
+            ByteBuf buf = packet.getBuf();
+            int length = Math.min(buf.readableBytes(), Math.min(MAX_SAMPLE_SIZE, dictionarySize - samples.readableBytes()));
+            samples.writeBytes(buf, buf.readerIndex(), length);
+        }
+
+        if (++trainingPackets >= TRAINING_PACKETS || samples.readableBytes() >= dictionarySize) {
+            finishTraining();
+        }
+    }
+
+    private void finishTraining() {
+        if (trained) {
+            return;
+        }
+        trained = true;
+        if (samples == null) {
+            return;
+        }
+        if (samples.isReadable()) {
+            dictionary = new byte[samples.readableBytes()];
+            samples.getBytes(samples.readerIndex(), dictionary);
+        }
+        samples.release();
+        samples = null;
+        samplesPerType = null;
+    }
+
+    /**
+     * Writes this codec (including its dictionary, if any) so it can be restored via {@link #readHeader(NetInput)}.
+     * Ends training, so all packets written afterwards use the final dictionary.
+     * The compression threshold is not part of the header, it only matters when writing.
+     */
+    public void writeHeader(NetOutput out) throws IOException {
+        finishTraining();
+        out.writeVarInt(type);
+        out.writeVarInt(level);
+        if (type == TYPE_DICTIONARY) {
+            byte[] dictionary = this.dictionary != null ? this.dictionary : new byte[0];
+            out.writeVarInt(dictionarySize);
+            out.writeVarInt(dictionary.length);
+            out.writeBytes(dictionary);
+        }
+    }
+
+    public static CacheCodec readHeader(NetInput in) throws IOException {
+        int type = in.readVarInt();
+        int level = in.readVarInt();
+        switch (type) {
+            case TYPE_NONE:
+                return none();
+            case TYPE_DEFLATE:
+                return deflate(level);
+            case TYPE_DICTIONARY:
+                int dictionarySize = in.readVarInt();
+                byte[] dictionary = in.readBytes(in.readVarInt());
+                return new CacheCodec(type, level, dictionarySize, DEFAULT_COMPRESSION_THRESHOLD,
+                        dictionary.length > 0 ? dictionary : null);
+            default:
+                throw new IOException("Unknown cache codec " + type);
+        }
+    }
+}
@@ -21,23 +21,262 @@ package com.replaymod.replaystudio.rar.cache;
 
 import io.netty.buffer.ByteBuf;
 import com.github.steveice10.packetlib.io.NetInput;
+import com.github.steveice10.packetlib.io.stream.StreamNetInput;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.util.ByteBufExtNetInput;
+import com.replaymod.replaystudio.util.ZlibPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class ReadableCache {
     private final ByteBuf buf;
     private final NetInput in;
+    private final BlockInputStream blocks;
+    private final CacheCodec codec;
+    private final ZlibPool zlib = new ZlibPool();
 
     public ReadableCache(ByteBuf buf) {
         this.buf = buf;
         this.in = new ByteBufExtNetInput(buf);
+        this.blocks = null;
+        this.codec = CacheCodec.DEFAULT;
+    }
+
+    /**
+     * Creates a cache for the content of a block-compressed {@link WriteableCache}.
+     * Blocks are only decompressed when they are read and are then kept in the given {@link BlockCache}.
+     * @param buf The content of the cache
+     * @param blockCache Where decompressed blocks are kept
+     */
+    public ReadableCache(ByteBuf buf, BlockCache blockCache) throws IOException {
+        this(buf, blockCache, CacheCodec.DEFAULT);
+    }
+
+    /**
+     * Creates a cache for the content of a block-compressed {@link WriteableCache}.
+     * Blocks are only decompressed when they are read and are then kept in the given {@link BlockCache}.
+     * @param buf The content of the cache
+     * @param blockCache Where decompressed blocks are kept
+     * @param codec The codec with which packets were written to the cache
+     */
+    public ReadableCache(ByteBuf buf, BlockCache blockCache, CacheCodec codec) throws IOException {
+        this.buf = buf;
+        this.blocks = new BlockInputStream(buf, blockCache, zlib);
+        this.in = new BlockNetInput(blocks);
+        this.codec = codec;
+    }
+
+    public CacheCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Reads a packet with the codec of this cache. Must only be called from one thread at a time.
+     * @param registry The registry of the packet
+     * @param in The input of this cache, see {@link #seek(int)}
+     * @return The packet
+     */
+    public Packet readPacket(PacketTypeRegistry registry, NetInput in) throws IOException {
+        return codec.read(registry, in, zlib);
     }
 
     public NetInput seek(int index) {
-        buf.readerIndex(index);
+        if (blocks != null) {
+            blocks.seek(index);
+        } else {
+            buf.readerIndex(index);
+        }
         return in;
     }
 
+    /**
+     * Releases the content of this cache and ends all zlib codecs used by it.
+     */
     public void release() {
+        if (blocks != null) {
+            blocks.release();
+        }
         buf.release();
+        zlib.close();
+    }
+
+    /**
+     * Decodes VarInts straight from the current block, falling back to reading byte by byte only if one spans two blocks.
+     */
+    private static class BlockNetInput extends StreamNetInput {
+        private final BlockInputStream blocks;
+
+        private BlockNetInput(BlockInputStream blocks) {
+            super(blocks);
+            this.blocks = blocks;
+        }
+
+        @Override
+        public int readVarInt() throws IOException {
+            if (!blocks.ensureAvailable()) {
+                return super.readVarInt();
+            }
+            // Same as ByteBufExtNetInput.readVarInt
+            byte[] array = blocks.block;
+            int i = blocks.pos;
+            int available = array.length - i;
+            int b = array[i];
+            if (b >= 0) {
+                blocks.pos = i + 1;
+                return b;
+            }
+            int value = b & 0x7f;
+            if (available < 2) {
+                return super.readVarInt();
+            }
+            if ((b = array[i + 1]) >= 0) {
+                blocks.pos = i + 2;
+                return value | b << 7;
+            }
+            value |= (b & 0x7f) << 7;
+            if (available < 3) {
+                return super.readVarInt();
+            }
+            if ((b = array[i + 2]) >= 0) {
+                blocks.pos = i + 3;
+                return value | b << 14;
+            }
+            value |= (b & 0x7f) << 14;
+            if (available < 4) {
+                return super.readVarInt();
+            }
+            if ((b = array[i + 3]) >= 0) {
+                blocks.pos = i + 4;
+                return value | b << 21;
+            }
+            value |= (b & 0x7f) << 21;
+            if (available < 5) {
+                return super.readVarInt();
+            }
+            if ((b = array[i + 4]) >= 0) {
+                blocks.pos = i + 5;
+                return value | b << 28;
+            }
+            throw new IOException("VarInt too long (length must be <= 5)");
+        }
+    }
+
+    private static class BlockInputStream extends InputStream {
+        private final ByteBuf buf;
+        private final BlockCache blockCache;
+        private final ZlibPool zlib;
+        private final int owner;
+        private final int blockSize;
+        private final int totalSize;
+        private final int[] offsets;
+
+        private int blockIndex;
+        private byte[] block;
+        private int pos;
+
+        private BlockInputStream(ByteBuf buf, BlockCache blockCache, ZlibPool zlib) throws IOException {
+            this.buf = buf;
+            this.blockCache = blockCache;
+            this.zlib = zlib;
+            this.owner = blockCache.newOwnerId();
+
+            int tableOffset = buf.getInt(buf.writerIndex() - 4);
+            NetInput in = new ByteBufExtNetInput(buf.slice(tableOffset, buf.writerIndex() - 4 - tableOffset));
+            this.blockSize = in.readVarInt();
+            this.totalSize = in.readVarInt();
+            int blocks = in.readVarInt();
+            this.offsets = new int[blocks + 1];
+            for (int i = 0; i < blocks; i++) {
+                offsets[i + 1] = offsets[i] + in.readVarInt();
+            }
+        }
+
+        private void seek(int index) {
+            int blockIndex = index / blockSize;
+            if (blockIndex != this.blockIndex) {
+                this.blockIndex = blockIndex;
+                this.block = null;
+            }
+            this.pos = index % blockSize;
+        }
+
+        private boolean ensureAvailable() throws IOException {
+            if (block != null && pos >= block.length) {
+                blockIndex++;
+                block = null;
+                pos = 0;
+            }
+            if (block == null) {
+                if (blockIndex >= offsets.length - 1) {
+                    return false;
+                }
+                block = getBlock(blockIndex);
+            }
+            return pos < block.length;
+        }
+
+        private byte[] getBlock(int index) throws IOException {
+            byte[] data = blockCache.get(owner, index);
+            if (data != null) {
+                return data;
+            }
+
+            int offset = offsets[index];
+            int length = offsets[index + 1] - offset;
+            byte[] compressed = new byte[length];
+            buf.getBytes(offset, compressed);
+
+            data = new byte[Math.min(blockSize, totalSize - index * blockSize)];
+            Inflater inflater = zlib.inflater();
+            try {
+                inflater.setInput(compressed);
+                int read = 0;
+                while (read < data.length) {
+                    int len = inflater.inflate(data, read, data.length - read);
+                    if (len == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new EOFException("Cache block " + index + " is truncated.");
+                    }
+                    read += len;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Cache block " + index + " is corrupted.", e);
+            }
+
+            blockCache.put(owner, index, data);
+            return data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            return block[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int read = 0;
+            while (read < len && ensureAvailable()) {
+                int n = Math.min(len - read, block.length - pos);
+                System.arraycopy(block, pos, b, off + read, n);
+                pos += n;
+                read += n;
+            }
+            return read == 0 ? -1 : read;
+        }
+
+        private void release() {
+            block = null;
+            blockCache.removeAll(owner);
+        }
     }
 }
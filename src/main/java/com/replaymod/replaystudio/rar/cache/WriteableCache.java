@@ -24,18 +24,68 @@ import io.netty.buffer.Unpooled;
 import com.github.steveice10.packetlib.io.NetOutput;
 import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
 import com.replaymod.replaystudio.util.ByteBufExtNetOutput;
+import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.util.Utils;
+import com.replaymod.replaystudio.util.ZlibPool;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
 
 public class WriteableCache {
+    private final BlockOutputStream blocks;
     private final CountingOutputStream wrapper;
     private final NetOutput out;
+    private final CacheCodec codec;
+    private final ZlibPool zlib = new ZlibPool();
 
     public WriteableCache(OutputStream out) {
-        this.wrapper = new CountingOutputStream(out);
+        this(out, null, CacheCodec.DEFAULT);
+    }
+
+    /**
+     * Creates a cache which compresses its content in independent blocks, so it can later be read without having to
+     * decompress all of it (see {@link ReadableCache#ReadableCache(io.netty.buffer.ByteBuf, BlockCache)}).
+     * {@link #finish()} must be called after all content has been written.
+     * @param out Where the compressed blocks and the block index are written to
+     * @param blockSize Size of each block before compression
+     */
+    public WriteableCache(OutputStream out, int blockSize) {
+        this(out, blockSize, CacheCodec.DEFAULT);
+    }
+
+    /**
+     * Creates a cache which compresses its content in independent blocks and writes packets with the given codec.
+     * @param out Where the compressed blocks and the block index are written to
+     * @param blockSize Size of each block before compression
+     * @param codec How packets are written to the cache, must not be shared with any other cache
+     */
+    public WriteableCache(OutputStream out, int blockSize, CacheCodec codec) {
+        this(null, new BlockOutputStream(out, blockSize), codec);
+    }
+
+    private WriteableCache(OutputStream out, BlockOutputStream blocks, CacheCodec codec) {
+        this.blocks = blocks;
+        this.wrapper = new CountingOutputStream(blocks != null ? blocks : out);
         this.out = new StreamNetOutput(wrapper);
+        this.codec = codec;
+    }
+
+    public CacheCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Writes the last block and the block index, if this cache is block-compressed.
+     * Ends all zlib codecs used by this cache, no more packets may be written afterwards.
+     */
+    public void finish() throws IOException {
+        zlib.close();
+        if (blocks != null) {
+            blocks.finish(index());
+        }
     }
 
     public int index() {
@@ -46,6 +96,15 @@ public class WriteableCache {
         return out;
     }
 
+    /**
+     * Writes a packet with the codec of this cache. Must only be called from one thread at a time.
+     * @param out The output of this cache, see {@link #write()} and {@link #deferred()}
+     * @param packet The packet
+     */
+    public void writePacket(NetOutput out, Packet packet) throws IOException {
+        codec.write(out, packet, zlib);
+    }
+
     public Deferred deferred() {
         return new Deferred(Unpooled.buffer());
     }
@@ -63,6 +122,75 @@ public class WriteableCache {
         }
     }
 
+    private static class BlockOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] block;
+        private final byte[] compressed = new byte[8192];
+        private final Deflater deflater = new Deflater();
+        private final IntList blockSizes = new IntArrayList();
+        private int pos;
+        private int written;
+
+        private BlockOutputStream(OutputStream out, int blockSize) {
+            this.out = out;
+            this.block = new byte[blockSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (pos == block.length) {
+                flushBlock();
+            }
+            block[pos++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (pos == block.length) {
+                    flushBlock();
+                }
+                int n = Math.min(len, block.length - pos);
+                System.arraycopy(b, off, block, pos, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            deflater.reset();
+            deflater.setInput(block, 0, pos);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished()) {
+                int len = deflater.deflate(compressed);
+                out.write(compressed, 0, len);
+                size += len;
+            }
+            blockSizes.add(size);
+            written += size;
+            pos = 0;
+        }
+
+        private void finish(int totalSize) throws IOException {
+            if (pos > 0) {
+                flushBlock();
+            }
+            deflater.end();
+
+            int tableOffset = written;
+            NetOutput table = new StreamNetOutput(out);
+            table.writeVarInt(block.length);
+            table.writeVarInt(totalSize);
+            table.writeVarInt(blockSizes.size());
+            for (int i = 0; i < blockSizes.size(); i++) {
+                table.writeVarInt(blockSizes.getInt(i));
+            }
+            table.writeInt(tableOffset);
+        }
+    }
+
     private static class CountingOutputStream extends OutputStream {
         private final OutputStream inner;
         private int index;
@@ -21,24 +21,22 @@ package com.replaymod.replaystudio.rar.containers;
 
 import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Multimaps;
 import com.viaversion.viaversion.api.minecraft.chunks.PaletteType;
-import com.replaymod.replaystudio.protocol.Packet;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
 import com.replaymod.replaystudio.protocol.registry.DimensionType;
 import com.replaymod.replaystudio.rar.PacketSink;
 import com.replaymod.replaystudio.util.IPosition;
+import com.replaymod.replaystudio.util.Utils;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
-public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.BlockChange>>  {
+public class BlockStateTree extends DiffStateTree<BlockStateTree.Changes>  {
 
     private final PacketTypeRegistry registry;
 
@@ -48,51 +46,53 @@ public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.Bloc
     }
 
     @Override
-    protected Collection<BlockChange> read(NetInput in) throws IOException {
-        List<BlockChange> list = new LinkedList<>(); // LinkedList to allow .descendingIterator
-
-        for (int j = in.readVarInt(); j > 0; j--) {
-            list.add(new BlockChange(
-                    Packet.Reader.readPosition(registry, in),
-                    in.readVarInt(),
-                    in.readVarInt()
-            ));
+    protected Changes read(NetInput in) throws IOException {
+        Changes changes = new Changes(in.readInt(), in.readInt());
+        for (int i = in.readVarInt(); i > 0; i--) {
+            int sectionY = in.readVarInt();
+            sectionY = sectionY >>> 1 ^ -(sectionY & 1);
+            int[] values = new int[in.readVarInt() * 3];
+            Utils.readVarInts(in, values, values.length);
+            IntArrayList section = IntArrayList.wrap(values);
+            changes.sectionYs.add(sectionY);
+            changes.sections.add(section);
         }
-
-        return list;
+        return changes;
     }
 
     @Override
-    protected void discard(Collection<BlockChange> value) {
+    protected void discard(Changes value) {
     }
 
     @Override
-    protected void play(PacketSink sink, Collection<BlockChange> value) throws IOException {
-        for (BlockChange change : value) {
-            sink.accept(new PacketBlockChange(change.pos, change.to).write(registry));
-        }
+    protected void play(PacketSink sink, Changes value) throws IOException {
+        value.write(registry, sink, false);
     }
 
     @Override
-    protected void rewind(PacketSink sink, Collection<BlockChange> value) throws IOException {
-        for (Iterator<BlockChange> it = ((LinkedList<BlockChange>) value).descendingIterator(); it.hasNext(); ) {
-            BlockChange update = it.next();
-            sink.accept(PacketBlockChange.write(registry, update.pos, update.from));
-        }
+    protected void rewind(PacketSink sink, Changes value) throws IOException {
+        value.write(registry, sink, true);
     }
 
-    public static class Builder extends DiffStateTree.Builder<Collection<BlockChange>> {
+    public static class Builder extends DiffStateTree.Builder<Changes> {
         private final PacketTypeRegistry registry;
         private final DimensionType dimensionType;
-        private final ListMultimap<Integer, BlockChange> blocks = Multimaps.newListMultimap(map, LinkedList::new); // LinkedList to allow .descendingIterator
+        private final int chunkX;
+        private final int chunkZ;
         private final PacketChunkData.PalettedStorage[] currentBlockState;
+        private final IntArrayList sectionChanges = new IntArrayList(); // re-used by update(int, Column)
 
         public Builder(PacketTypeRegistry registry, DimensionType dimensionType, PacketChunkData.Column column) {
+            this(registry, dimensionType, column.x, column.z, column.chunks);
+        }
+
+        public Builder(PacketTypeRegistry registry, DimensionType dimensionType, int chunkX, int chunkZ, PacketChunkData.Chunk[] chunks) {
             this.registry = registry;
             this.dimensionType = dimensionType;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
             this.currentBlockState = new PacketChunkData.PalettedStorage[dimensionType.getSections()];
 
-            PacketChunkData.Chunk[] chunks = column.chunks;
             for (int i = 0; i < currentBlockState.length; i++) {
                 currentBlockState[i] = i >= chunks.length || chunks[i] == null
                         ? new PacketChunkData.PalettedStorage(PaletteType.BLOCKS, registry)
@@ -100,9 +100,18 @@ public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.Bloc
             }
         }
 
+        private Changes changesAt(int time) {
+            Changes changes = map.get(time);
+            if (changes == null) {
+                put(time, changes = new Changes(chunkX, chunkZ));
+            }
+            return changes;
+        }
+
         public void update(int time, PacketBlockChange record) {
             IPosition pos = record.getPosition();
-            int sectionIndex = dimensionType.sectionYToIndex(pos.getY() >> 4);
+            int sectionY = pos.getY() >> 4;
+            int sectionIndex = dimensionType.sectionYToIndex(sectionY);
             if (sectionIndex < 0 || sectionIndex >= currentBlockState.length) {
                 return; // the server will send these if you try to place blocks outside the allowed range
             }
@@ -111,13 +120,17 @@ public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.Bloc
             int prevState = blockStorage.get(x, y, z);
             int newState = record.getId();
             blockStorage.set(x, y, z, newState);
-            blocks.put(time, new BlockChange(pos, prevState, newState));
+            addChange(changesAt(time).section(sectionY), y << 8 | z << 4 | x, prevState, newState);
         }
 
         public void update(int time, PacketChunkData.Column column) {
+            update(time, column.chunks);
+        }
+
+        public void update(int time, PacketChunkData.Chunk[] chunks) {
             int sectionY = dimensionType.getMinY();
             int sectionIndex = 0;
-            for (PacketChunkData.Chunk section : column.chunks) {
+            for (PacketChunkData.Chunk section : chunks) {
                 if (section == null) {
                     sectionY++;
                     sectionIndex++;
@@ -125,17 +138,9 @@ public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.Bloc
                 }
                 PacketChunkData.PalettedStorage toBlocks = section.blocks;
                 PacketChunkData.PalettedStorage fromBlocks = currentBlockState[sectionIndex];
-                for (int y = 0; y < 16; y++) {
-                    for (int z = 0; z < 16; z++) {
-                        for (int x = 0; x < 16; x++) {
-                            int fromState = fromBlocks.get(x, y, z);
-                            int toState = toBlocks.get(x, y, z);
-                            if (fromState != toState) {
-                                IPosition pos = new IPosition(column.x << 4 | x, sectionY << 4 | y, column.z << 4 | z);
-                                blocks.put(time, new BlockChange(pos, fromState, toState));
-                            }
-                        }
-                    }
+                sectionChanges.clear();
+                if (fromBlocks.diff(toBlocks, sectionChanges) > 0) {
+                    changesAt(time).section(sectionY).addAll(sectionChanges);
                 }
                 currentBlockState[sectionIndex] = toBlocks;
                 sectionY++;
@@ -144,30 +149,113 @@ public class BlockStateTree extends DiffStateTree<Collection<BlockStateTree.Bloc
 
         }
 
+        private static void addChange(IntArrayList section, int index, int from, int to) {
+            section.add(index);
+            section.add(from);
+            section.add(to);
+        }
+
         @Override
-        protected void write(NetOutput out, Collection<BlockChange> value, int time) throws IOException {
-            out.writeVarInt(value.size());
-            for (BlockChange blockChange : value) {
-                Packet.Writer.writePosition(registry, out, blockChange.pos);
-                out.writeVarInt(blockChange.from);
-                out.writeVarInt(blockChange.to);
+        protected void write(NetOutput out, Changes value, int time) throws IOException {
+            out.writeInt(value.chunkX);
+            out.writeInt(value.chunkZ);
+            out.writeVarInt(value.sections.size());
+            for (int i = 0; i < value.sections.size(); i++) {
+                int sectionY = value.sectionYs.getInt(i);
+                out.writeVarInt(sectionY << 1 ^ sectionY >> 31);
+                IntArrayList section = value.sections.get(i);
+                out.writeVarInt(section.size() / 3);
+                int[] elements = section.elements();
+                for (int j = 0; j < section.size(); j++) {
+                    out.writeVarInt(elements[j]);
+                }
             }
         }
 
         @Override
-        protected void discard(Collection<BlockChange> value) {
+        protected void discard(Changes value) {
         }
     }
 
-    public static class BlockChange {
-        public IPosition pos;
-        public int from;
-        public int to;
+    /**
+     * All block changes of a chunk at a single point in time, grouped by section.
+     * Each section holds packed (index, from, to) triples, where index is {@code y << 8 | z << 4 | x} relative to
+     * the section.
+     */
+    public static class Changes {
+        private final int chunkX;
+        private final int chunkZ;
+        private final IntArrayList sectionYs = new IntArrayList();
+        private final List<IntArrayList> sections = new ArrayList<>();
+
+        private Changes(int chunkX, int chunkZ) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+        }
+
+        private IntArrayList section(int sectionY) {
+            int i = sectionYs.indexOf(sectionY);
+            if (i == -1) {
+                sectionYs.add(sectionY);
+                sections.add(new IntArrayList());
+                i = sections.size() - 1;
+            }
+            return sections.get(i);
+        }
+
+        /**
+         * Emits one packet per section (or per column prior to 1.16.2) setting each block to its new state or, if
+         * rewinding, in reverse order to its previous state.
+         */
+        private void write(PacketTypeRegistry registry, PacketSink sink, boolean rewind) throws IOException {
+            if (registry.atLeast(ProtocolVersion.v1_16_2)) {
+                for (int n = sections.size(), i = 0; i < n; i++) {
+                    int s = rewind ? n - 1 - i : i;
+                    IntArrayList section = sections.get(s);
+                    int count = section.size() / 3;
+                    int[] positions = new int[count];
+                    int[] ids = new int[count];
+                    collect(section, 0, rewind, positions, ids, 0);
+                    write(registry, sink, sectionYs.getInt(s), positions, ids, count);
+                }
+            } else {
+                // MultiBlockChange used to cover the whole column
+                int count = 0;
+                for (IntArrayList section : sections) {
+                    count += section.size() / 3;
+                }
+                int[] positions = new int[count];
+                int[] ids = new int[count];
+                int offset = 0;
+                for (int n = sections.size(), i = 0; i < n; i++) {
+                    int s = rewind ? n - 1 - i : i;
+                    IntArrayList section = sections.get(s);
+                    offset = collect(section, sectionYs.getInt(s) << 12, rewind, positions, ids, offset);
+                }
+                write(registry, sink, 0, positions, ids, count);
+            }
+        }
 
-        public BlockChange(IPosition pos, int from, int to) {
-            this.pos = pos;
-            this.from = from;
-            this.to = to;
+        private static int collect(IntArrayList section, int yOffset, boolean rewind, int[] positions, int[] ids, int offset) {
+            int[] elements = section.elements();
+            int count = section.size() / 3;
+            for (int j = 0; j < count; j++) {
+                int e = (rewind ? count - 1 - j : j) * 3;
+                positions[offset] = elements[e] + yOffset;
+                ids[offset] = elements[rewind ? e + 1 : e + 2];
+                offset++;
+            }
+            return offset;
+        }
+
+        private void write(PacketTypeRegistry registry, PacketSink sink, int chunkY, int[] positions, int[] ids, int count) throws IOException {
+            if (count == 1) {
+                int pos = positions[0];
+                int y = chunkY << 4 | pos >> 8;
+                sink.accept(PacketBlockChange.write(registry, new IPosition(chunkX << 4 | pos & 15, y, chunkZ << 4 | pos >> 4 & 15), ids[0]));
+            } else if (count > 1) {
+                sink.accept(PacketBlockChange.writeBulk(registry, chunkX, chunkY, chunkZ, count, positions, ids));
+            }
         }
     }
 }
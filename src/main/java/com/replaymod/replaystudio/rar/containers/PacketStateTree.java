@@ -24,24 +24,34 @@ import com.github.steveice10.packetlib.io.NetOutput;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.rar.PacketSink;
+import com.replaymod.replaystudio.rar.cache.ReadableCache;
+import com.replaymod.replaystudio.rar.cache.WriteableCache;
 
 import java.io.IOException;
 
-import static com.replaymod.replaystudio.util.Utils.readCompressedPacket;
-import static com.replaymod.replaystudio.util.Utils.writeCompressedPacket;
-
 public class PacketStateTree extends FullStateTree<Packet>  {
 
     private final PacketTypeRegistry registry;
+    private ReadableCache cache;
 
     public PacketStateTree(PacketTypeRegistry registry, int index) {
         super(index);
         this.registry = registry;
     }
 
+    @Override
+    public void load(PacketSink sink, ReadableCache cache) throws IOException {
+        this.cache = cache;
+        try {
+            super.load(sink, cache);
+        } finally {
+            this.cache = null;
+        }
+    }
+
     @Override
     protected Packet read(NetInput in) throws IOException {
-        return readCompressedPacket(registry, in);
+        return cache.readPacket(registry, in);
     }
 
     @Override
@@ -55,9 +65,21 @@ public class PacketStateTree extends FullStateTree<Packet>  {
     }
 
     public static class Builder extends FullStateTree.Builder<Packet> {
+        private WriteableCache cache;
+
+        @Override
+        public int build(WriteableCache cache) throws IOException {
+            this.cache = cache;
+            try {
+                return super.build(cache);
+            } finally {
+                this.cache = null;
+            }
+        }
+
         @Override
         protected void write(NetOutput out, Packet value, int time) throws IOException {
-            writeCompressedPacket(out, value);
+            cache.writePacket(out, value);
             value.release();
         }
 
@@ -24,6 +24,7 @@ import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimaps;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.LazyChunkData;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
 import com.replaymod.replaystudio.protocol.registry.DimensionType;
 import com.replaymod.replaystudio.rar.PacketSink;
@@ -208,6 +209,11 @@ public class TransientThings implements RandomAccessState {
             return newTransientThing(chunks, time, column.coordToLong(), new Chunk.Builder(registry, dimensionType, column));
         }
 
+        public Chunk.Builder newChunk(int time, LazyChunkData chunkData) throws IOException {
+            long key = PacketChunkData.Column.coordToLong(chunkData.getX(), chunkData.getZ());
+            return newTransientThing(chunks, time, key, new Chunk.Builder(registry, dimensionType, chunkData));
+        }
+
         public Weather.Builder newWeather(int time) throws IOException {
             return newTransientThing(weather, time, 0, new Weather.Builder(registry));
         }
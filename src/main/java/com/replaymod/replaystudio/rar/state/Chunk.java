@@ -22,6 +22,7 @@ package com.replaymod.replaystudio.rar.state;
 import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.LazyChunkData;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
 import com.replaymod.replaystudio.protocol.registry.DimensionType;
 import com.replaymod.replaystudio.rar.PacketSink;
@@ -76,6 +77,14 @@ public class Chunk extends TransientThing implements RandomAccessState {
             blocks = new BlockStateTree.Builder(registry, dimensionType, column);
         }
 
+        public Builder(PacketTypeRegistry registry, DimensionType dimensionType, LazyChunkData chunkData) throws IOException {
+            // Unless modified, the original packet is re-used as is
+            addSpawnPacket(chunkData.write());
+            addDespawnPacket(PacketChunkData.unload(chunkData.getX(), chunkData.getZ()).write(registry));
+
+            blocks = new BlockStateTree.Builder(registry, dimensionType, chunkData.getX(), chunkData.getZ(), chunkData.getSections());
+        }
+
         @Override
         public void build(NetOutput out, WriteableCache cache) throws IOException {
             super.build(out, cache);
@@ -19,6 +19,7 @@
 package com.replaymod.replaystudio.replay;
 
 import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import com.google.gson.*;
 import com.replaymod.replaystudio.Studio;
@@ -27,6 +28,7 @@ import com.replaymod.replaystudio.data.ModInfo;
 import com.replaymod.replaystudio.data.ReplayAssetEntry;
 import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.io.ReplaySeekIndex;
 import com.replaymod.replaystudio.pathing.PathingRegistry;
 import com.replaymod.replaystudio.pathing.path.Timeline;
 import com.replaymod.replaystudio.pathing.serialize.TimelineSerialization;
@@ -52,6 +54,7 @@ public abstract class AbstractReplayFile implements ReplayFile {
     private static final String ENTRY_ASSET = "asset/%s_%s.%s";
     private static final Pattern PATTERN_ASSETS = Pattern.compile("asset/.*");
     private static final String ENTRY_MODS = "mods.json";
+    private static final String CACHE_SEEK_INDEX = "seekIndex.bin";
 
     private static final byte[] THUMB_MAGIC_NUMBERS = {0, 1, 1, 2, 3, 5, 8};
 
@@ -99,6 +102,108 @@ public abstract class AbstractReplayFile implements ReplayFile {
         return new ReplayInputStream(registry, in.get(), metaData.getFileFormatVersion(), metaData.getRawProtocolVersionOr0());
     }
 
+    @Override
+    public ReplayInputStream getPacketData(PacketTypeRegistry registry, int fromTime) throws IOException {
+        // Building the index requires reading all packet data, which is only worth it if we can then skip most of it
+        ReplaySeekIndex index = hasRandomAccessPacketData() ? getSeekIndex() : getCachedSeekIndex();
+        if (index == null) {
+            return getPacketData(registry);
+        }
+        // ViaVersion keeps state across packets, so converted streams can only be resumed at join points
+        ReplayMetaData metaData = getMetaData();
+        boolean converted = metaData.getProtocolVersion().getOriginalVersion() != registry.getVersion().getOriginalVersion();
+        int point = index.find(fromTime, converted);
+        if (point == 0) {
+            return getPacketData(registry);
+        }
+        return getPacketData(registry, index.getOffset(point), index.isLoginPhase(point));
+    }
+
+    @Override
+    public ReplayInputStream getPacketData(PacketTypeRegistry registry, ReplaySeekIndex index, int fromPoint, int toPoint) throws IOException {
+        long offset = index.getOffset(fromPoint);
+        long length = toPoint < index.size() ? index.getOffset(toPoint) - offset : -1;
+        return getPacketData(registry, offset, length, index.isLoginPhase(fromPoint));
+    }
+
+    /**
+     * Returns an input stream for the packet data starting at the given byte offset.
+     * @param registry The registry used for the first packet produced
+     * @param offset Offset of a packet frame in the packet data
+     * @param loginPhase Whether the packet data is in the login phase at the given offset
+     * @return The input stream or {@code null} if there is no packet data
+     * @throws IOException If an I/O error occurs
+     */
+    protected ReplayInputStream getPacketData(PacketTypeRegistry registry, long offset, boolean loginPhase) throws IOException {
+        return getPacketData(registry, offset, -1, loginPhase);
+    }
+
+    /**
+     * Returns an input stream for the packet data starting at the given byte offset.
+     * @param registry The registry used for the first packet produced
+     * @param offset Offset of a packet frame in the packet data
+     * @param length Amount of bytes after which the stream ends (must be at a frame boundary), or -1 to read until
+     *               the end of the packet data
+     * @param loginPhase Whether the packet data is in the login phase at the given offset
+     * @return The input stream or {@code null} if there is no packet data
+     * @throws IOException If an I/O error occurs
+     */
+    protected ReplayInputStream getPacketData(PacketTypeRegistry registry, long offset, long length, boolean loginPhase) throws IOException {
+        Optional<InputStream> in = get(ENTRY_RECORDING);
+        if (!in.isPresent()) {
+            return null;
+        }
+        try {
+            ByteStreams.skipFully(in.get(), offset);
+        } catch (IOException e) {
+            Closeables.closeQuietly(in.get());
+            throw e;
+        }
+        InputStream rawIn = length == -1 ? in.get() : ByteStreams.limit(in.get(), length);
+        ReplayMetaData metaData = getMetaData();
+        return new ReplayInputStream(registry, rawIn, metaData.getFileFormatVersion(), metaData.getRawProtocolVersionOr0(), loginPhase);
+    }
+
+    @Override
+    public ReplaySeekIndex getSeekIndex() throws IOException {
+        ReplaySeekIndex cached = getCachedSeekIndex();
+        if (cached != null) {
+            return cached;
+        }
+
+        Optional<InputStream> in = get(ENTRY_RECORDING);
+        if (!in.isPresent()) {
+            return null;
+        }
+        ReplayMetaData metaData = getMetaData();
+        ReplaySeekIndex index;
+        try (InputStream recording = in.get()) {
+            index = ReplaySeekIndex.build(recording, metaData.getFileFormatVersion(), metaData.getProtocolVersion(),
+                    ReplaySeekIndex.DEFAULT_INTERVAL_MILLIS, ReplaySeekIndex.DEFAULT_INTERVAL_PACKETS);
+        }
+        try (OutputStream out = writeCache(CACHE_SEEK_INDEX)) {
+            index.write(out);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the seek index of the packet data if it has already been cached.
+     * @return The seek index or {@code null} if there is no (complete) cached index
+     * @throws IOException If an I/O error occurs
+     */
+    private ReplaySeekIndex getCachedSeekIndex() throws IOException {
+        Optional<InputStream> cached = getCache(CACHE_SEEK_INDEX);
+        if (!cached.isPresent()) {
+            return null;
+        }
+        try (InputStream in = cached.get()) {
+            return ReplaySeekIndex.read(in);
+        } catch (EOFException ignored) {
+            return null; // incomplete index, needs to be rebuilt
+        }
+    }
+
     @Override
     public ReplayOutputStream writePacketData() throws IOException {
         return new ReplayOutputStream(write(ENTRY_RECORDING));
@@ -18,12 +18,16 @@
  */
 package com.replaymod.replaystudio.replay;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
 import com.replaymod.replaystudio.data.Marker;
 import com.replaymod.replaystudio.data.ModInfo;
 import com.replaymod.replaystudio.data.ReplayAssetEntry;
 import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.io.ReplaySeekIndex;
 import com.replaymod.replaystudio.pathing.PathingRegistry;
 import com.replaymod.replaystudio.pathing.path.Timeline;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
@@ -91,6 +95,38 @@ public interface ReplayFile extends Closeable {
      */
     OutputStream writeCache(String entry) throws IOException;
 
+    /**
+     * Write to the specified cache entry of this replay file without compressing it, so it can later be accessed
+     * via {@link #mapCache(String)}. Otherwise the same as {@link #writeCache(String)}.
+     * Uncompressed entries should only be accessed via {@link #mapCache(String)}.
+     * By default, the entry is written like any other cache entry.
+     * @param entry The entry
+     * @return An output stream to write to
+     * @throws IOException If an I/O error occurs
+     */
+    default OutputStream writeCacheUncompressed(String entry) throws IOException {
+        return writeCache(entry);
+    }
+
+    /**
+     * Returns the content of the specified uncompressed cache entry (see {@link #writeCacheUncompressed(String)}).
+     * Where possible, the entry is memory-mapped instead of being read into memory.
+     * The caller is responsible for releasing the returned buffer.
+     * By default, the entry is read into memory via {@link #getCache(String)}.
+     * @param entry The entry
+     * @return Optional buffer
+     * @throws IOException If an I/O error occurs
+     */
+    default Optional<ByteBuf> mapCache(String entry) throws IOException {
+        Optional<InputStream> in = getCache(entry);
+        if (!in.isPresent()) {
+            return Optional.absent();
+        }
+        try (InputStream is = in.get()) {
+            return Optional.of(Unpooled.wrappedBuffer(ByteStreams.toByteArray(is)));
+        }
+    }
+
     /**
      * Removes the entry from this replay file.
      * Changes will not be written unless {@link #save()} is called.
@@ -126,6 +162,77 @@ public interface ReplayFile extends Closeable {
 
     ReplayInputStream getPacketData(PacketTypeRegistry registry) throws IOException;
 
+    /**
+     * Returns an input stream for the packet data which starts near the specified time.
+     * All packets at or after the given time are returned, some packets before it may be returned as well.
+     * The stream generally starts at a {@link ReplaySeekIndex} point, the caller is responsible for any state which
+     * would have been established by packets before that point.
+     * By default, this simply returns all packet data, see {@link #getPacketData(PacketTypeRegistry)}.
+     * @param registry The registry used for the first packet produced, see {@link #getPacketData(PacketTypeRegistry)}
+     * @param fromTime The time in milliseconds
+     * @return The input stream or {@code null} if there is no packet data
+     * @throws IOException If an I/O error occurs
+     */
+    default ReplayInputStream getPacketData(PacketTypeRegistry registry, int fromTime) throws IOException {
+        return getPacketData(registry);
+    }
+
+    /**
+     * Returns the seek index of the packet data, building and caching it first if necessary.
+     * By default, packet data is not indexed.
+     * @return The seek index or {@code null} if there is no packet data or it cannot be indexed
+     * @throws IOException If an I/O error occurs
+     */
+    default ReplaySeekIndex getSeekIndex() throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns an input stream for exactly the packet data between two points of the given seek index, such that the
+     * packet data can be split into multiple parts which are read independently.
+     * @param registry The registry used for the first packet produced, see {@link #getPacketData(PacketTypeRegistry)}.
+     *                 Unless {@code fromPoint} is the start of the packet data, its state should match
+     *                 {@link ReplaySeekIndex#isLoginPhase(int)} so no LoginSuccess packet is emitted mid-stream.
+     * @param index The seek index of the packet data, see {@link #getSeekIndex()}
+     * @param fromPoint The point at which the stream starts
+     * @param toPoint The point at which the stream ends (exclusive) or {@link ReplaySeekIndex#size()} to read until
+     *                the end of the packet data
+     * @return The input stream or {@code null} if there is no packet data
+     * @throws IOException If an I/O error occurs
+     * @throws UnsupportedOperationException By default, if anything but the whole packet data is requested. Packet
+     *                                       data is not indexed by default (see {@link #getSeekIndex()}), so
+     *                                       implementations which do index it must override this method as well.
+     */
+    default ReplayInputStream getPacketData(PacketTypeRegistry registry, ReplaySeekIndex index, int fromPoint, int toPoint) throws IOException {
+        if (fromPoint == 0 && toPoint >= index.size()) {
+            return getPacketData(registry);
+        }
+        throw new UnsupportedOperationException("Packet data cannot be read from index point " + fromPoint);
+    }
+
+    /**
+     * Returns whether {@link #getPacketData(PacketTypeRegistry, ReplaySeekIndex, int, int)} can start reading at any
+     * point without first reading (e.g. inflating) all packet data before that point.
+     * @return {@code true} if reading from any point is about as cheap as reading from the start
+     * @throws IOException If an I/O error occurs
+     */
+    default boolean hasRandomAccessPacketData() throws IOException {
+        return false;
+    }
+
+    /**
+     * Creates a new, empty file for temporary data belonging to this replay (e.g. intermediate packet data).
+     * The caller should delete it once it is no longer needed.
+     * @param prefix The prefix of the file name, at least three characters long
+     * @param suffix The suffix of the file name
+     * @return The new file
+     * @throws IOException If an I/O error occurs
+     * @see File#createTempFile(String, String)
+     */
+    default File createTempFile(String prefix, String suffix) throws IOException {
+        return File.createTempFile(prefix, suffix);
+    }
+
     ReplayOutputStream writePacketData() throws IOException;
 
     Map<Integer, String> getResourcePackIndex() throws IOException;
@@ -18,15 +18,25 @@
  */
 package com.replaymod.replaystudio.replay;
 
+import io.netty.buffer.ByteBuf;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.io.Closeables;
 import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.io.MappedReplayInputStream;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.util.ParallelDeflaterOutputStream;
+import com.replaymod.replaystudio.util.RawZipOutputStream;
 import com.replaymod.replaystudio.util.Utils;
+import com.replaymod.replaystudio.util.ZipCentralDirectory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.regex.Pattern;
 import java.util.zip.CRC32;
@@ -34,7 +44,6 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import static com.google.common.io.Files.*;
 import static java.nio.file.Files.*;
@@ -65,8 +74,17 @@ public class ZipReplayFile extends AbstractReplayFile {
     private final Map<String, File> changedEntries = new HashMap<>();
     private final Set<String> removedEntries = new HashSet<>();
 
+    /**
+     * Mapped packet data streams which may still be open. These are closed before any of the files they map are
+     * deleted or overwritten, as that is not possible while they are mapped (on Windows).
+     */
+    private final Set<ReplayInputStream> mappedStreams = Collections.newSetFromMap(new WeakHashMap<>());
+
     private ZipFile zipFile;
 
+    private int compressionThreads = 1;
+    private int compressionBlockSize = ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE;
+
     public ZipReplayFile(Studio studio, File file) throws IOException {
         this(studio, file, file);
     }
@@ -182,6 +200,92 @@ public class ZipReplayFile extends AbstractReplayFile {
         return Optional.of(new BufferedInputStream(zipFile.getInputStream(zipEntry)));
     }
 
+    @Override
+    public ReplayInputStream getPacketData(PacketTypeRegistry registry) throws IOException {
+        ReplayMetaData metaData = getMetaData();
+        if (metaData == null) {
+            return super.getPacketData(registry);
+        }
+        return getPacketData(registry, 0, ReplayInputStream.startsInLoginPhase(metaData.getFileFormatVersion()));
+    }
+
+    /**
+     * Packet data is mapped (and can therefore be read from any point) if it has been written via this replay file and
+     * is complete, or if it has been stored without compression.
+     */
+    @Override
+    public boolean hasRandomAccessPacketData() throws IOException {
+        if (changedEntries.containsKey(ENTRY_RECORDING)) {
+            return !outputStreams.containsKey(ENTRY_RECORDING);
+        }
+        if (zipFile == null || removedEntries.contains(ENTRY_RECORDING)) {
+            return false;
+        }
+        ZipEntry zipEntry = zipFile.getEntry(ENTRY_RECORDING);
+        return zipEntry != null && zipEntry.getMethod() == ZipEntry.STORED;
+    }
+
+    /**
+     * Temporary files are created in the temporary folder of this replay, so they are on the same disk as the replay
+     * and are cleaned up together with it.
+     */
+    @Override
+    public File createTempFile(String prefix, String suffix) throws IOException {
+        Files.createDirectories(tmpFiles.toPath());
+        return File.createTempFile(prefix, suffix, tmpFiles);
+    }
+
+    @Override
+    protected ReplayInputStream getPacketData(PacketTypeRegistry registry, long offset, long length, boolean loginPhase) throws IOException {
+        FileChannel channel = null;
+        try {
+            long start, size;
+            File changedFile = changedEntries.get(ENTRY_RECORDING);
+            if (changedFile != null) {
+                if (outputStreams.containsKey(ENTRY_RECORDING)) {
+                    // Still being written, size isn't final yet, so we can't map it
+                    return super.getPacketData(registry, offset, length, loginPhase);
+                }
+                channel = FileChannel.open(changedFile.toPath(), StandardOpenOption.READ);
+                start = 0;
+                size = channel.size();
+            } else {
+                if (zipFile == null || removedEntries.contains(ENTRY_RECORDING)) {
+                    return null;
+                }
+                ZipEntry zipEntry = zipFile.getEntry(ENTRY_RECORDING);
+                if (zipEntry == null) {
+                    return null;
+                }
+                if (zipEntry.getMethod() != ZipEntry.STORED) {
+                    // Compressed data has to be inflated anyway, so there's nothing to be gained from mapping it
+                    return super.getPacketData(registry, offset, length, loginPhase);
+                }
+                channel = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+                ZipCentralDirectory directory = ZipCentralDirectory.read(channel);
+                ZipCentralDirectory.Entry rawEntry = directory.getEntry(ENTRY_RECORDING);
+                if (rawEntry == null) {
+                    throw new IOException("Entry " + ENTRY_RECORDING + " missing from central directory");
+                }
+                start = directory.getDataOffset(rawEntry);
+                size = rawEntry.getCompressedSize();
+            }
+
+            ReplayMetaData metaData = getMetaData();
+            if (length == -1 || length > size - offset) {
+                length = size - offset;
+            }
+            ReplayInputStream in = new MappedReplayInputStream(registry, channel, true, start + offset, length,
+                    metaData.getFileFormatVersion(), metaData.getRawProtocolVersionOr0(),
+                    loginPhase, MappedReplayInputStream.DEFAULT_WINDOW_SIZE);
+            channel = null;
+            mappedStreams.add(in);
+            return in;
+        } finally {
+            Closeables.close(channel, true);
+        }
+    }
+
     @Override
     public Optional<InputStream> getCache(String entry) throws IOException {
         Path path = cache.toPath().resolve(entry);
@@ -226,6 +330,10 @@ public class ZipReplayFile extends AbstractReplayFile {
 
     @Override
     public OutputStream write(String entry) throws IOException {
+        if (ENTRY_RECORDING.equals(entry)) {
+            closeMappedStreams();
+            retireChangedRecording();
+        }
         saveInputFile();
         File file = changedEntries.get(entry);
         if (file == null) {
@@ -269,6 +377,8 @@ public class ZipReplayFile extends AbstractReplayFile {
                 @Override
                 public void close() throws IOException {
                     inner.close();
+                    // The recording is complete now (and can therefore be mapped)
+                    outputStreams.remove(ENTRY_RECORDING, inner);
 
                     String crc = "" + recordingCrc.getValue();
                     recordingCrc = null;
@@ -295,6 +405,34 @@ public class ZipReplayFile extends AbstractReplayFile {
         return new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
     }
 
+    @Override
+    public OutputStream writeCacheUncompressed(String entry) throws IOException {
+        Path path = cache.toPath().resolve(entry);
+        Files.createDirectories(path.getParent());
+        return new BufferedOutputStream(Files.newOutputStream(path));
+    }
+
+    /**
+     * {@inheritDoc}
+     * The entry is unmapped once the returned buffer has been released. Until then, the cache cannot be invalidated
+     * on Windows (e.g. by writing new packet data), so the buffer should be released before doing so.
+     */
+    @Override
+    public Optional<ByteBuf> mapCache(String entry) throws IOException {
+        Path path = cache.toPath().resolve(entry);
+        if (!Files.exists(path)) {
+            return Optional.absent();
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Cache entry " + entry + " is too large to be mapped: " + size);
+            }
+            // The mapping stays valid after the channel has been closed
+            return Optional.of(Utils.map(channel, 0, (int) size));
+        }
+    }
+
     @Override
     public void remove(String entry) throws IOException {
         saveInputFile();
@@ -320,7 +458,7 @@ public class ZipReplayFile extends AbstractReplayFile {
         if (zipFile != null && changedEntries.isEmpty() && removedEntries.isEmpty()) {
             return; // No changes, no need to save
         }
-        File outputFile = createTempFile("replaystudio", "replayfile").toFile();
+        File outputFile = Files.createTempFile("replaystudio", "replayfile").toFile();
         saveTo(outputFile);
         close();
         if (output.exists()) {
@@ -330,6 +468,16 @@ public class ZipReplayFile extends AbstractReplayFile {
         zipFile = new ZipFile(output);
     }
 
+    /**
+     * Sets the number of threads used to compress changed entries when saving this replay file.
+     * @param threads Number of threads, {@code 1} to compress on the calling thread
+     * @param blockSize Size of blocks compressed independently when using more than one thread
+     */
+    public void setCompressionThreads(int threads, int blockSize) {
+        this.compressionThreads = threads;
+        this.compressionBlockSize = blockSize;
+    }
+
     @Override
     public void saveTo(File target) throws IOException {
         for (OutputStream out : outputStreams.values()) {
@@ -337,26 +485,30 @@ public class ZipReplayFile extends AbstractReplayFile {
         }
         outputStreams.clear();
 
-        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(target)))) {
+        try (RawZipOutputStream out = new RawZipOutputStream(new BufferedOutputStream(new FileOutputStream(target)))) {
+            out.setCompressionThreads(compressionThreads, compressionBlockSize);
             if (zipFile != null) {
-                for (ZipEntry entry : Collections.list(zipFile.entries())) {
-                    if (!changedEntries.containsKey(entry.getName()) && !removedEntries.contains(entry.getName())) {
-                        entry = new ZipEntry(entry);
-                        entry.setCompressedSize(-1);
-                        out.putNextEntry(entry);
-                        Utils.copy(zipFile.getInputStream(entry), out);
+                // Unchanged entries are copied as is, without inflating and re-deflating them
+                try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+                    ZipCentralDirectory directory = ZipCentralDirectory.read(channel);
+                    for (ZipCentralDirectory.Entry entry : directory.getEntries()) {
+                        if (!changedEntries.containsKey(entry.getName()) && !removedEntries.contains(entry.getName())) {
+                            out.copyEntry(directory, entry);
+                        }
                     }
                 }
             }
             for (Map.Entry<String, File> e : changedEntries.entrySet()) {
-                out.putNextEntry(new ZipEntry(e.getKey()));
-                Utils.copy(new BufferedInputStream(new FileInputStream(e.getValue())), out);
+                try (OutputStream entryOut = out.putNextEntry(e.getKey(), e.getValue().length())) {
+                    Utils.copy(new BufferedInputStream(new FileInputStream(e.getValue())), entryOut);
+                }
             }
         }
     }
 
     @Override
     public void close() throws IOException {
+        closeMappedStreams();
         if (zipFile != null) {
             zipFile.close();
         }
@@ -370,6 +522,32 @@ public class ZipReplayFile extends AbstractReplayFile {
         delete(tmpFiles);
     }
 
+    /**
+     * Closes all mapped packet data streams, so their windows are unmapped once the packets read from them have been
+     * released. Reading from any of them afterwards fails.
+     */
+    private void closeMappedStreams() throws IOException {
+        for (ReplayInputStream in : new ArrayList<>(mappedStreams)) {
+            in.close();
+        }
+        mappedStreams.clear();
+    }
+
+    /**
+     * Moves the changed recording (if any) out of the way, so a new recording is written to a new file.
+     * Packets read from a mapped stream of the old recording may still be in use, so it must neither be truncated nor
+     * overwritten in place. Renaming it keeps the existing mappings valid. It is deleted together with all other
+     * temporary files once this replay file is closed.
+     */
+    private void retireChangedRecording() throws IOException {
+        File file = changedEntries.get(ENTRY_RECORDING);
+        if (file == null || !file.exists()) {
+            return;
+        }
+        Path retired = Files.createTempFile(tmpFiles.toPath(), "recording", ".old");
+        Files.move(file.toPath(), retired, StandardCopyOption.REPLACE_EXISTING);
+    }
+
     private void delete(File file) throws IOException {
         File[] children = file.listFiles();
         if (children != null) {
@@ -23,6 +23,7 @@ import com.google.common.collect.Lists;
 import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.filter.StreamFilter;
 import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
 
 import java.io.IOException;
 import java.util.*;
@@ -114,7 +115,14 @@ public abstract class AbstractPacketStream implements PacketStream {
     private class StreamElement {
         private final FilterInfo filter;
         private final PacketStreamContext context = new PacketStreamContext(this);
-        private final Queue<PacketData> inserted = new LinkedList<>();
+        private final ArrayDeque<PacketData> inserted = new ArrayDeque<>();
+        /**
+         * Whether the filter is interested in a packet type, by {@link PacketType#ordinal()}. {@code null} for all.
+         */
+        private final boolean[] interests;
+        // Time range of the filter with open ends replaced by the extreme values, so it can be checked with two compares
+        private final long from;
+        private final long to;
         private boolean active;
         private long lastTimestamp;
         private StreamElement next;
@@ -124,22 +132,54 @@ public abstract class AbstractPacketStream implements PacketStream {
          */
         protected StreamElement() {
             filter = null;
+            interests = null;
+            from = Long.MIN_VALUE;
+            to = Long.MAX_VALUE;
         }
 
         public StreamElement(FilterInfo filter) {
             this.filter = checkNotNull(filter);
+            this.from = filter.getFrom() == -1 ? Long.MIN_VALUE : filter.getFrom();
+            this.to = filter.getTo() == -1 ? Long.MAX_VALUE : filter.getTo();
+
+            EnumSet<PacketType> interests = filter.getFilter().getInterests();
+            if (interests == null) {
+                this.interests = null;
+            } else {
+                this.interests = new boolean[PacketType.values().length];
+                for (PacketType type : interests) {
+                    this.interests[type.ordinal()] = true;
+                }
+            }
+        }
+
+        private boolean isInterested(PacketData data) {
+            return interests == null || interests[data.getPacket().getType().ordinal()];
         }
 
         public void process(PacketData data) throws IOException {
+            long time = data != null ? data.getTime() : 0;
+            if (active && interests != null && data != null && from <= time && time <= to
+                    && !interests[data.getPacket().getType().ordinal()]) {
+                // Fast path: the filter does not care about this packet, pass it right on
+                if (time > lastTimestamp) {
+                    lastTimestamp = time;
+                }
+                next.process(data);
+                return;
+            }
+
             boolean keep = true;
-            if (data != null && filter.applies(data.getTime())) {
+            if (data != null && from <= time && time <= to) {
                 if (!active) {
                     filter.getFilter().onStart(context);
                     active = true;
                 }
-                keep = filter.getFilter().onPacket(context, data);
-                if (!keep) {
-                    data.getPacket().getBuf().release();
+                if (isInterested(data)) {
+                    keep = filter.getFilter().onPacket(context, data);
+                    if (!keep) {
+                        data.getPacket().getBuf().release();
+                    }
                 }
             } else if (active) {
                 filter.getFilter().onEnd(context, lastTimestamp);
@@ -194,7 +234,7 @@ public abstract class AbstractPacketStream implements PacketStream {
         }
     }
 
-    private final Queue<PacketData> inserted = new LinkedList<>();
+    private final ArrayDeque<PacketData> inserted = new ArrayDeque<>();
     private final List<StreamElement> filters = new ArrayList<>();
 
     private StreamElement firstElement;
@@ -264,6 +304,25 @@ public abstract class AbstractPacketStream implements PacketStream {
         return inserted.poll();
     }
 
+    @Override
+    public int next(List<PacketData> batch, int max) throws IOException {
+        int count = 0;
+        while (count < max) {
+            PacketData data = inserted.poll();
+            if (data != null) {
+                batch.add(data);
+                count++;
+                continue;
+            }
+            PacketData next = nextInput();
+            if (next == null) {
+                break;
+            }
+            firstElement.process(next);
+        }
+        return count;
+    }
+
     @Override
     public Collection<FilterInfo> getFilters() {
         return Collections.unmodifiableList(Lists.transform(filters, (e) -> e.filter));
@@ -272,7 +331,7 @@ public abstract class AbstractPacketStream implements PacketStream {
     @Override
     public List<PacketData> end() throws IOException {
         firstElement.process(null);
-        List<PacketData> result = new LinkedList<>(inserted);
+        List<PacketData> result = new ArrayList<>(inserted);
         inserted.clear();
         return result;
     }
@@ -163,6 +163,22 @@ public interface PacketStream {
      */
     PacketData next() throws IOException;
 
+    /**
+     * Retrieves up to {@code max} next elements in this stream applying all filters and appends them to the given list.
+     * @param batch The list to which the packets are appended
+     * @param max Maximum number of packets to retrieve
+     * @return The number of packets retrieved, less than {@code max} only if the end of the stream has been reached
+     */
+    default int next(List<PacketData> batch, int max) throws IOException {
+        int count = 0;
+        PacketData data;
+        while (count < max && (data = next()) != null) {
+            batch.add(data);
+            count++;
+        }
+        return count;
+    }
+
     /**
      * Starts this packet stream (e.g. opening input streams, etc.).
      */
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.stream;
+
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.filter.ParallelizableFilter;
+import com.replaymod.replaystudio.filter.StreamFilter;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.io.ReplaySeekIndex;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.stream.PacketStream.FilterInfo;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies stream filters to the packet data of a replay by splitting it at {@link ReplaySeekIndex} points into
+ * contiguous time ranges (shards) which are then processed in parallel, each by its own {@link PacketStream}.
+ * The output of all shards is written in order to a single {@link ReplayOutputStream}, so it is the same as if all
+ * packets had been processed by a single stream.
+ * <p>
+ * This is only possible if all filters are {@link ParallelizableFilter}s and the packet data can be read from any point
+ * without reading everything before it (see {@link ReplayFile#hasRandomAccessPacketData()}), otherwise each shard would
+ * have to inflate all packet data before its start. Otherwise (or if the packet data is too short to be split), all
+ * packets are processed by a single stream instead.
+ * The output of the first shard is written directly, the output of all other shards is kept in temporary files of the
+ * replay (see {@link ReplayFile#createTempFile(String, String)}) until all previous shards have been written, at which
+ * point it is appended as is, without decoding and encoding its packets again.
+ */
+public class ShardedStreamExecutor {
+
+    /**
+     * Maximum number of packets moved from a stream to its output at once.
+     */
+    private static final int BATCH_SIZE = 4096;
+
+    private final ReplayFile replayFile;
+    private final PacketTypeRegistry registry;
+    private final int shards;
+    private final List<FilterInfo> filters = new ArrayList<>();
+
+    /**
+     * Creates a new executor for the packet data of the given replay.
+     * @param replayFile The replay file
+     * @param registry The registry used for the first packet, see {@link ReplayFile#getPacketData(PacketTypeRegistry)}
+     * @param shards Maximum number of shards and therefore threads used
+     */
+    public ShardedStreamExecutor(ReplayFile replayFile, PacketTypeRegistry registry, int shards) {
+        this.replayFile = replayFile;
+        this.registry = registry;
+        this.shards = shards;
+    }
+
+    /**
+     * Adds a new filter which applies to all packets.
+     * @param filter The filter
+     */
+    public void addFilter(StreamFilter filter) {
+        addFilter(filter, -1, -1);
+    }
+
+    /**
+     * Adds a new filter which only applies within the specified bounds (inclusive).
+     * @param filter The filter
+     * @param from Timestamp from which the filter applies or -1 to apply from the start
+     * @param to Timestamp up to which the filter applies or -1 to apply up until the end
+     * @see PacketStream#addFilter(StreamFilter, long, long)
+     */
+    public void addFilter(StreamFilter filter, long from, long to) {
+        filters.add(new FilterInfo(filter, from, to));
+    }
+
+    /**
+     * Returns whether the filters of this executor can be applied to multiple shards in parallel.
+     * @return {@code true} if all filters are {@link ParallelizableFilter}s
+     */
+    public boolean isParallelizable() {
+        for (FilterInfo info : filters) {
+            if (!(info.getFilter() instanceof ParallelizableFilter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether {@link #run(ReplayOutputStream)} will split the packet data into multiple shards, unless it is too
+     * short to be split.
+     * @return {@code true} if there are multiple shards, all filters are parallelizable and the packet data can be read
+     *         from any point
+     * @throws IOException If an I/O error occurs
+     */
+    public boolean isSharded() throws IOException {
+        return shards > 1 && isParallelizable() && replayFile.hasRandomAccessPacketData();
+    }
+
+    /**
+     * Applies all filters to the packet data of the replay.
+     * @param out The output to which the resulting packets are written or {@code null} if they should be discarded.
+     *            Is not closed by this method.
+     * @return The number of resulting packets
+     * @throws IOException If an I/O error occurs
+     */
+    public long run(ReplayOutputStream out) throws IOException {
+        ReplaySeekIndex index = isSharded() ? replayFile.getSeekIndex() : null;
+        int[] points = index != null ? findShards(index) : null;
+        if (points == null || points.length < 2) {
+            try (ReplayInputStream in = replayFile.getPacketData(registry)) {
+                return in != null ? process(in, filters, out) : 0;
+            }
+        }
+
+        List<List<ParallelizableFilter>> splits = new ArrayList<>();
+        for (int i = 0; i < filters.size(); i++) {
+            splits.add(new ArrayList<>());
+        }
+        List<File> files = new ArrayList<>();
+        List<ReplayOutputStream> shardOuts = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(points.length);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < points.length; i++) {
+                int fromPoint = points[i];
+                int toPoint = i + 1 < points.length ? points[i + 1] : index.size();
+                PacketTypeRegistry shardRegistry = i == 0 ? registry : getRegistry(index, fromPoint);
+
+                List<FilterInfo> shardFilters = new ArrayList<>();
+                for (int j = 0; j < filters.size(); j++) {
+                    FilterInfo info = filters.get(j);
+                    ParallelizableFilter filter = ((ParallelizableFilter) info.getFilter()).split();
+                    splits.get(j).add(filter);
+                    shardFilters.add(new FilterInfo(filter, info.getFrom(), info.getTo()));
+                }
+
+                File file;
+                ReplayOutputStream shardOut;
+                if (i == 0 || out == null) {
+                    file = null;
+                    shardOut = out;
+                } else {
+                    file = replayFile.createTempFile("shard", ".tmcpr");
+                    files.add(file);
+                    shardOut = new ReplayOutputStream(new BufferedOutputStream(new FileOutputStream(file)),
+                            index.isLoginPhase(fromPoint));
+                    shardOuts.add(shardOut);
+                }
+
+                futures.add(executor.submit(() -> {
+                    try (ReplayInputStream in = replayFile.getPacketData(shardRegistry, index, fromPoint, toPoint)) {
+                        return in != null ? process(in, shardFilters, shardOut) : 0;
+                    } finally {
+                        if (file != null) {
+                            shardOut.close();
+                        }
+                    }
+                }));
+            }
+
+            // Stitch the shards back together, in order
+            long count = 0;
+            for (int i = 0; i < points.length; i++) {
+                try {
+                    count += futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to process shard " + i, e.getCause());
+                }
+                if (i == 0 || out == null) {
+                    continue;
+                }
+
+                // Already encoded, so it can be copied as is
+                File file = files.get(i - 1);
+                try (InputStream in = new FileInputStream(file)) {
+                    out.append(in, shardOuts.get(i - 1));
+                }
+                file.delete();
+            }
+
+            for (int j = 0; j < filters.size(); j++) {
+                ((ParallelizableFilter) filters.get(j).getFilter()).merge(splits.get(j));
+            }
+            return count;
+        } finally {
+            executor.shutdownNow();
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Chooses the points at which the shards start, such that all shards are of about equal size.
+     * Converted streams can only be resumed at join points, see {@link ReplaySeekIndex}.
+     * @return The points in ascending order, starting with the very first one
+     */
+    private int[] findShards(ReplaySeekIndex index) throws IOException {
+        ReplayMetaData metaData = replayFile.getMetaData();
+        boolean converted = metaData.getProtocolVersion().getOriginalVersion() != registry.getVersion().getOriginalVersion();
+        long size = index.getOffset(index.size() - 1);
+
+        IntArrayList points = new IntArrayList();
+        points.add(0);
+        int point = 1;
+        for (int i = 1; i < shards; i++) {
+            long target = size * i / shards;
+            while (point < index.size() && (index.getOffset(point) < target || converted && !index.isJoinPoint(point))) {
+                point++;
+            }
+            if (point >= index.size()) {
+                break;
+            }
+            points.add(point++);
+        }
+        return points.toIntArray();
+    }
+
+    /**
+     * Returns the registry for a stream starting at the given point, so no LoginSuccess packet is emitted mid-stream.
+     */
+    private PacketTypeRegistry getRegistry(ReplaySeekIndex index, int point) {
+        return PacketTypeRegistry.get(registry.getVersion(), index.isLoginPhase(point) ? State.LOGIN : State.PLAY);
+    }
+
+    private static long process(ReplayInputStream in, List<FilterInfo> filters, ReplayOutputStream out) throws IOException {
+        PacketStream stream = in.asPacketStream();
+        stream.start();
+        for (FilterInfo info : filters) {
+            stream.addFilter(info.getFilter(), info.getFrom(), info.getTo());
+        }
+
+        long count = 0;
+        List<PacketData> batch = new ArrayList<>(BATCH_SIZE);
+        int n;
+        while ((n = stream.next(batch, BATCH_SIZE)) > 0) {
+            write(batch, out);
+            batch.clear();
+            count += n;
+        }
+        List<PacketData> rest = stream.end();
+        write(rest, out);
+        return count + rest.size();
+    }
+
+    private static void write(List<PacketData> batch, ReplayOutputStream out) throws IOException {
+        if (out != null) {
+            out.write(batch);
+        } else {
+            for (PacketData data : batch) {
+                data.getPacket().release();
+            }
+        }
+    }
+}
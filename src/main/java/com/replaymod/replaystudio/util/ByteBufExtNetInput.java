@@ -22,6 +22,8 @@ package com.replaymod.replaystudio.util;
 import io.netty.buffer.ByteBuf;
 import com.github.steveice10.packetlib.tcp.io.ByteBufNetInput;
 
+import java.io.IOException;
+
 public class ByteBufExtNetInput extends ByteBufNetInput {
     private final ByteBuf buf;
 
@@ -34,4 +36,101 @@ public class ByteBufExtNetInput extends ByteBufNetInput {
     public ByteBuf getBuf() {
         return buf;
     }
+
+    @Override
+    public int readVarInt() throws IOException {
+        int index = buf.readerIndex();
+        int available = buf.writerIndex() - index;
+        if (!buf.hasArray() || available <= 0) {
+            return super.readVarInt();
+        }
+
+        // Fast path: decode straight from the backing array
+        // Only a truncated VarInt falls back to packetlib (which then reports the error): once the fallback has run at
+        // all (e.g. for VarInts near the end of the buffer), the JIT compiles the fast path considerably worse.
+        // Similarly, each exit sets the reader index itself, returning the length along with the value (e.g. packed
+        // into a long) from a shared helper turned out to be slower than even the byte-by-byte loop.
+        byte[] array = buf.array();
+        int i = buf.arrayOffset() + index;
+        int b = array[i];
+        if (b >= 0) {
+            buf.readerIndex(index + 1);
+            return b;
+        }
+        int value = b & 0x7f;
+        if (available < 2) {
+            return super.readVarInt();
+        }
+        if ((b = array[i + 1]) >= 0) {
+            buf.readerIndex(index + 2);
+            return value | b << 7;
+        }
+        value |= (b & 0x7f) << 7;
+        if (available < 3) {
+            return super.readVarInt();
+        }
+        if ((b = array[i + 2]) >= 0) {
+            buf.readerIndex(index + 3);
+            return value | b << 14;
+        }
+        value |= (b & 0x7f) << 14;
+        if (available < 4) {
+            return super.readVarInt();
+        }
+        if ((b = array[i + 3]) >= 0) {
+            buf.readerIndex(index + 4);
+            return value | b << 21;
+        }
+        value |= (b & 0x7f) << 21;
+        if (available < 5) {
+            return super.readVarInt();
+        }
+        if ((b = array[i + 4]) >= 0) {
+            buf.readerIndex(index + 5);
+            return value | b << 28;
+        }
+        throw new IOException("VarInt too long (length must be <= 5)");
+    }
+
+    @Override
+    public long readVarLong() throws IOException {
+        int index = buf.readerIndex();
+        if (!buf.hasArray()) {
+            return super.readVarLong();
+        }
+
+        // See readVarInt
+        byte[] array = buf.array();
+        int start = buf.arrayOffset() + index;
+        int limit = Math.min(buf.writerIndex() - index, 10);
+        long value = 0;
+        for (int i = 0; i < limit; i++) {
+            byte b = array[start + i];
+            value |= (long) (b & 0x7f) << (i * 7);
+            if (b >= 0) {
+                buf.readerIndex(index + i + 1);
+                return value;
+            }
+        }
+        if (limit < 10) {
+            return super.readVarLong();
+        }
+        throw new IOException("VarLong too long (length must be <= 10)");
+    }
+
+    /**
+     * Reads {@code n} consecutive VarInts into the given array.
+     */
+    public void readVarInts(int[] dst, int n) throws IOException {
+        readVarInts(dst, 0, n);
+    }
+
+    /**
+     * Reads {@code n} consecutive VarInts into the given array, starting at {@code offset}.
+     */
+    public void readVarInts(int[] dst, int offset, int n) throws IOException {
+        for (int i = offset, end = offset + n; i < end; i++) {
+            dst[i] = readVarInt();
+        }
+    }
 }
@@ -22,6 +22,8 @@ package com.replaymod.replaystudio.util;
 import io.netty.buffer.ByteBuf;
 import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
 
+import java.io.IOException;
+
 public class ByteBufExtNetOutput extends ByteBufNetOutput {
     private final ByteBuf buf;
 
@@ -34,4 +36,41 @@ public class ByteBufExtNetOutput extends ByteBufNetOutput {
     public ByteBuf getBuf() {
         return buf;
     }
+
+    @Override
+    public void writeVarInt(int value) throws IOException {
+        // Write each VarInt with a single (at most two) call(s) instead of one per byte
+        if ((value & ~0x7f) == 0) {
+            buf.writeByte(value);
+        } else if ((value & ~0x3fff) == 0) {
+            buf.writeShort((value & 0x7f | 0x80) << 8 | value >>> 7);
+        } else if ((value & ~0x1fffff) == 0) {
+            buf.writeMedium((value & 0x7f | 0x80) << 16 | (value >>> 7 & 0x7f | 0x80) << 8 | value >>> 14);
+        } else if ((value & ~0xfffffff) == 0) {
+            buf.writeInt((value & 0x7f | 0x80) << 24 | (value >>> 7 & 0x7f | 0x80) << 16
+                    | (value >>> 14 & 0x7f | 0x80) << 8 | value >>> 21);
+        } else {
+            buf.writeInt((value & 0x7f | 0x80) << 24 | (value >>> 7 & 0x7f | 0x80) << 16
+                    | (value >>> 14 & 0x7f | 0x80) << 8 | (value >>> 21 & 0x7f | 0x80));
+            buf.writeByte(value >>> 28);
+        }
+    }
+
+    @Override
+    public void writeVarLong(long value) throws IOException {
+        if ((value & ~0xfffffffL) == 0) {
+            writeVarInt((int) value); // same encoding
+        } else {
+            super.writeVarLong(value);
+        }
+    }
+
+    /**
+     * Writes the first {@code n} values of the given array as consecutive VarInts.
+     */
+    public void writeVarInts(int[] src, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            writeVarInt(src[i]);
+        }
+    }
 }
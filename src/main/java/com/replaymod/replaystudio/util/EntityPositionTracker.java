@@ -30,12 +30,13 @@ import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 import com.replaymod.replaystudio.replay.ReplayFile;
 import com.replaymod.replaystudio.replay.ReplayMetaData;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
@@ -152,17 +153,19 @@ public class EntityPositionTracker {
         synchronized (replayFile) {
             ReplayMetaData metaData = replayFile.getMetaData();
             replayLength = Math.max(1, metaData.getDuration());
+            // Positions are needed for the whole replay, so unlike most readers this cannot make use of the seek index
             origIn = replayFile.getPacketData(PacketTypeRegistry.get(metaData.getProtocolVersion(), State.LOGIN));
         }
 
-        Map<Integer, NavigableMap<Long, Location>> entityPositions = new HashMap<>();
+        Int2ObjectMap<NavigableMap<Long, Location>> entityPositions = new Int2ObjectOpenHashMap<>();
+        MutableLocation location = new MutableLocation();
         try (ReplayInputStream in = origIn) {
             PacketData packetData;
             while ((packetData = in.readPacket()) != null) {
                 Packet packet = packetData.getPacket();
 
-                Integer entityID = PacketUtils.getEntityId(packet);
-                if (entityID == null) {
+                int entityID = PacketUtils.getEntityIdOrMinus1(packet);
+                if (entityID == -1) {
                     packet.release();
                     continue;
                 }
@@ -172,11 +175,9 @@ public class EntityPositionTracker {
                     entityPositions.put(entityID, positions = new TreeMap<>());
                 }
 
-                Location oldPosition = positions.isEmpty() ? null : positions.lastEntry().getValue();
-                Location newPosition = PacketUtils.updateLocation(oldPosition, packet);
-
-                if (newPosition != null) {
-                    positions.put(packetData.getTime(), newPosition);
+                location.set(positions.isEmpty() ? Location.NULL : positions.lastEntry().getValue());
+                if (PacketUtils.updateLocation(location, packet)) {
+                    positions.put(packetData.getTime(), location.toLocation());
 
                     double progress = (double) packetData.getTime() / replayLength;
                     progressMonitor.accept(Math.min(1, Math.max(0, progress)));
@@ -23,6 +23,7 @@ import com.replaymod.replaystudio.protocol.packets.EntityId;
 import com.replaymod.replaystudio.protocol.packets.PacketEntityMovement;
 import com.replaymod.replaystudio.protocol.packets.PacketEntityTeleport;
 import com.replaymod.replaystudio.protocol.packets.SpawnEntity;
+import it.unimi.dsi.fastutil.ints.IntList;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 
@@ -58,6 +59,15 @@ public class PacketUtils {
         return EntityId.getEntityId(packet);
     }
 
+    /**
+     * Returns the entity id in the specified packet.
+     * Same as {@link #getEntityId(Packet)} but returns {@code -1} instead of {@code null}, so no boxing is required.
+     * @return Entity id or {@code -1}
+     */
+    public static int getEntityIdOrMinus1(Packet packet) throws IOException {
+        return EntityId.getEntityIdOrMinus1(packet);
+    }
+
     /**
      * Returns entity ids in the specified packet.
      * If no entity is associated with the packet this returns an empty list.
@@ -67,6 +77,15 @@ public class PacketUtils {
         return EntityId.getEntityIds(packet);
     }
 
+    /**
+     * Adds the entity ids in the specified packet to the given list.
+     * Same as {@link #getEntityIds(Packet)} but without boxing, so the list may be re-used for all packets.
+     * @param result The list to which the ids are added
+     */
+    public static void getEntityIds(Packet packet, IntList result) throws IOException {
+        EntityId.getEntityIds(packet, result);
+    }
+
     /**
      * Update (or initialize) a location with the movement (or spawn) data in the specified packet.
      * @param loc The location (may be {@code null} in case of spawn or absolute movement packets)
@@ -108,4 +127,32 @@ public class PacketUtils {
                 return null;
         }
     }
+
+    /**
+     * Update a location in place with the movement (or spawn) data in the specified packet.
+     * Same as {@link #updateLocation(Location, Packet)} but does not allocate for relative movement packets.
+     * @param loc The location, should be at 0/0/0 if the entity's location is not yet known
+     * @param packet The packet
+     * @return {@code true} if the location was updated, {@code false} when the packet could not be handled
+     */
+    public static boolean updateLocation(MutableLocation loc, Packet packet) throws IOException {
+        switch (packet.getType()) {
+            case EntityMovement:
+            case EntityPosition:
+            case EntityRotation:
+            case EntityPositionRotation:
+                PacketEntityMovement.applyMovement(packet, loc);
+                return true;
+            case EntityTeleport:
+                loc.set(PacketEntityTeleport.getLocation(packet));
+                return true;
+            default:
+                Location spawnLocation = SpawnEntity.getLocation(packet);
+                if (spawnLocation != null) {
+                    loc.set(spawnLocation);
+                    return true;
+                }
+                return false;
+        }
+    }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream which compresses its input into a raw deflate stream (no zlib/gzip header) using multiple threads,
+ * similar to how pigz works.
+ * <p>
+ * The input is split into blocks of fixed size which are compressed independently on a worker pool. Each block but
+ * the last one is terminated with a sync flush, so the concatenation of all compressed blocks is a single, standard
+ * deflate stream which can be inflated by any inflater. To not lose too much compression ratio at the block boundaries,
+ * the last 32KB of the previous block are used as the preset dictionary for each block.
+ * <p>
+ * The CRC of the data is not computed by this stream, if required it needs to be computed by the caller.
+ * Closing this stream does not close the underlying output stream.
+ * <p>
+ * The worker pool may be shared between multiple streams (see {@link #newExecutor(int)}), in which case it is up to
+ * the caller to shut it down once it is no longer needed.
+ */
+public class ParallelDeflaterOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final OutputStream out;
+    private final int level;
+    private final int blockSize;
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    /**
+     * Blocks which have been submitted for compression but not yet been written to the underlying output stream,
+     * in the order in which they need to be written.
+     */
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] block;
+    private int blockLength;
+    private byte[] dictionary;
+    private boolean closed;
+
+    /**
+     * @param out The output stream to which the compressed data is written
+     * @param level The compression level, see {@link Deflater#setLevel(int)}
+     * @param threads Number of worker threads
+     * @param blockSize Size of the uncompressed blocks which are compressed independently
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, int level, int threads, int blockSize) {
+        this(out, level, newExecutor(threads), true, threads, blockSize);
+    }
+
+    /**
+     * @param out The output stream to which the compressed data is written
+     * @param level The compression level, see {@link Deflater#setLevel(int)}
+     * @param executor The worker pool, not shut down by this stream
+     * @param threads Number of worker threads in the pool
+     * @param blockSize Size of the uncompressed blocks which are compressed independently
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, int level, ExecutorService executor, int threads, int blockSize) {
+        this(out, level, executor, false, threads, blockSize);
+    }
+
+    private ParallelDeflaterOutputStream(OutputStream out, int level, ExecutorService executor, boolean ownsExecutor,
+                                         int threads, int blockSize) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be positive");
+        if (blockSize < DICTIONARY_SIZE) throw new IllegalArgumentException("blockSize must be at least " + DICTIONARY_SIZE);
+        this.out = out;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxPending = threads * 2;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.block = new byte[blockSize];
+    }
+
+    /**
+     * Creates a worker pool which can be shared by multiple streams.
+     * @param threads Number of worker threads
+     * @return The worker pool, needs to be shut down by the caller
+     */
+    public static ExecutorService newExecutor(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be positive");
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ParallelDeflater");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        byte[] input = block;
+        int inputLength = blockLength;
+        byte[] dict = dictionary;
+        pending.add(executor.submit(() -> compress(input, inputLength, dict, last)));
+
+        if (inputLength >= DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(input, inputLength - DICTIONARY_SIZE, inputLength);
+        }
+        block = new byte[blockSize];
+        blockLength = 0;
+
+        while (pending.size() >= maxPending) {
+            writePending();
+        }
+    }
+
+    private byte[] compress(byte[] input, int length, byte[] dict, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(input, 0, length);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] result = new byte[Math.max(64, length + length / 1000 + 64)];
+            int resultLength = 0;
+            while (true) {
+                resultLength += deflater.deflate(result, resultLength, result.length - resultLength,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                boolean done = last ? deflater.finished() : resultLength < result.length;
+                if (done) {
+                    break;
+                }
+                if (resultLength == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+            }
+            return Arrays.copyOf(result, resultLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writePending() throws IOException {
+        Future<byte[]> future = pending.poll();
+        try {
+            out.write(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+    }
+
+    /**
+     * Writes all remaining input as the final block and waits for all blocks to be written to the underlying stream.
+     * No more data may be written afterwards.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            submitBlock(true);
+            while (!pending.isEmpty()) {
+                writePending();
+            }
+        } finally {
+            closed = true;
+            // Only left over if writing failed
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            if (ownsExecutor) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.flush();
+    }
+}
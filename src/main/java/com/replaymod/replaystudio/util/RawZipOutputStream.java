@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Minimal zip writer which, in addition to regular deflated entries, can copy entries verbatim (i.e. still compressed,
+ * together with their CRC and sizes) from another zip file.
+ * This allows re-writing a zip file without inflating and deflating all the entries which did not change.
+ * <p>
+ * The output is a standard zip file (using zip64 extensions where necessary) which can be read by any zip reader.
+ */
+public class RawZipOutputStream implements Closeable {
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    /**
+     * Size up to which a new entry is known to not need zip64 extensions.
+     * Deflated data may end up slightly larger than its input, hence the generous margin.
+     */
+    private static final long ZIP64_THRESHOLD = ZIP64_MAGIC / 2;
+
+    private final CountingOutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private OutputStream currentEntry;
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionThreads = 1;
+    private int compressionBlockSize = ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE;
+    /**
+     * Worker pool shared by all entries compressed with multiple threads. Created on demand, shut down on close.
+     */
+    private ExecutorService compressionExecutor;
+
+    public RawZipOutputStream(OutputStream out) {
+        this.out = new CountingOutputStream(out);
+    }
+
+    /**
+     * Sets the compression level used for new entries.
+     * @param level The compression level, see {@link Deflater#setLevel(int)}
+     */
+    public void setCompressionLevel(int level) {
+        this.compressionLevel = level;
+    }
+
+    /**
+     * Sets the number of threads used to compress new entries.
+     * If more than one thread is used, entries are compressed by a {@link ParallelDeflaterOutputStream}.
+     * @param threads Number of threads, {@code 1} to compress on the calling thread
+     * @param blockSize Size of blocks compressed independently, see {@link ParallelDeflaterOutputStream}
+     */
+    public void setCompressionThreads(int threads, int blockSize) {
+        if (threads != compressionThreads && compressionExecutor != null) {
+            compressionExecutor.shutdown(); // any entry still using it will finish normally
+            compressionExecutor = null;
+        }
+        this.compressionThreads = threads;
+        this.compressionBlockSize = blockSize;
+    }
+
+    /**
+     * Copies the given entry from the source zip file into this one without decompressing it.
+     * @param source The zip file containing the entry
+     * @param sourceEntry The entry to be copied
+     * @throws IOException If an I/O error occurs
+     */
+    public void copyEntry(ZipCentralDirectory source, ZipCentralDirectory.Entry sourceEntry) throws IOException {
+        ensureNoOpenEntry();
+
+        Entry entry = new Entry(sourceEntry.getName(), sourceEntry.getMethod(), sourceEntry.getDosTime(), FLAG_UTF8);
+        entry.crc = sourceEntry.getCrc();
+        entry.compressedSize = sourceEntry.getCompressedSize();
+        entry.size = sourceEntry.getSize();
+        entry.offset = out.count;
+
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        writeInt(LOCAL_HEADER_SIG);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(zip64 ? ZIP64_MAGIC : entry.compressedSize);
+        writeInt(zip64 ? ZIP64_MAGIC : entry.size);
+        writeShort(entry.nameBytes.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(entry.nameBytes);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.compressedSize);
+        }
+
+        source.copyData(sourceEntry, out);
+        entries.add(entry);
+    }
+
+    /**
+     * Starts a new deflated entry of unknown size.
+     * @see #putNextEntry(String, long)
+     */
+    public OutputStream putNextEntry(String name) throws IOException {
+        return putNextEntry(name, -1);
+    }
+
+    /**
+     * Starts a new deflated entry.
+     * The entry is finished when the returned output stream is closed, which has to happen before any other entry
+     * may be started.
+     * @param name Name of the new entry
+     * @param expectedSize The uncompressed size of the entry if known in advance, otherwise {@code -1}.
+     *                     Only used to determine whether the entry could require zip64 extensions.
+     * @return Output stream to which the uncompressed content of the entry is to be written
+     * @throws IOException If an I/O error occurs
+     */
+    public OutputStream putNextEntry(String name, long expectedSize) throws IOException {
+        ensureNoOpenEntry();
+
+        Entry entry = new Entry(name, ZipEntry.DEFLATED, javaToDosTime(System.currentTimeMillis()), FLAG_UTF8 | FLAG_DATA_DESCRIPTOR);
+        entry.offset = out.count;
+
+        // If the entry could exceed 4GB, the local header needs to announce zip64 so readers expect the 8-byte sizes
+        // in the data descriptor. The sizes in the extra field are left at zero (like those in the header itself) as
+        // they are not known yet, so readers which decide based on the actual size (e.g. ZipInputStream) are fine too.
+        boolean zip64 = expectedSize < 0 || expectedSize >= ZIP64_THRESHOLD;
+        writeInt(LOCAL_HEADER_SIG);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(0); // crc, see data descriptor
+        writeInt(0); // compressed size, see data descriptor
+        writeInt(0); // size, see data descriptor
+        writeShort(entry.nameBytes.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(entry.nameBytes);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(0); // size, see data descriptor
+            writeLong(0); // compressed size, see data descriptor
+        }
+
+        long dataStart = out.count;
+        CRC32 crc = new CRC32();
+        OutputStream target = new NonClosingOutputStream(out);
+        Deflater deflater;
+        OutputStream compressor;
+        if (compressionThreads > 1) {
+            deflater = null;
+            if (compressionExecutor == null) {
+                compressionExecutor = ParallelDeflaterOutputStream.newExecutor(compressionThreads);
+            }
+            compressor = new ParallelDeflaterOutputStream(target, compressionLevel, compressionExecutor,
+                    compressionThreads, compressionBlockSize);
+        } else {
+            deflater = new Deflater(compressionLevel, true);
+            compressor = new DeflaterOutputStream(target, deflater, 8192);
+        }
+        currentEntry = new OutputStream() {
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                crc.update(b, off, len);
+                entry.size += len;
+                compressor.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    compressor.close();
+                } finally {
+                    if (deflater != null) {
+                        deflater.end();
+                    }
+                }
+                entry.crc = (int) crc.getValue();
+                entry.compressedSize = out.count - dataStart;
+                closeEntry(entry);
+            }
+        };
+        return currentEntry;
+    }
+
+    private void closeEntry(Entry entry) throws IOException {
+        writeInt(DATA_DESCRIPTOR_SIG);
+        writeInt(entry.crc);
+        if (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC) {
+            writeLong(entry.compressedSize);
+            writeLong(entry.size);
+        } else {
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+        }
+        entries.add(entry);
+        currentEntry = null;
+    }
+
+    private void ensureNoOpenEntry() throws IOException {
+        if (currentEntry != null) {
+            throw new IOException("Previous entry has not yet been closed.");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (currentEntry != null) {
+                currentEntry.close();
+            }
+            writeCentralDirectory();
+        } finally {
+            if (compressionExecutor != null) {
+                compressionExecutor.shutdownNow();
+                compressionExecutor = null;
+            }
+            out.close();
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long directoryOffset = out.count;
+        for (Entry entry : entries) {
+            boolean sizeZip64 = entry.size >= ZIP64_MAGIC;
+            boolean compressedSizeZip64 = entry.compressedSize >= ZIP64_MAGIC;
+            boolean offsetZip64 = entry.offset >= ZIP64_MAGIC;
+            int extraLength = (sizeZip64 ? 8 : 0) + (compressedSizeZip64 ? 8 : 0) + (offsetZip64 ? 8 : 0);
+            boolean zip64 = extraLength > 0;
+
+            writeInt(CENTRAL_HEADER_SIG);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION); // version made by
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION); // version needed to extract
+            writeShort(entry.flags);
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(compressedSizeZip64 ? ZIP64_MAGIC : entry.compressedSize);
+            writeInt(sizeZip64 ? ZIP64_MAGIC : entry.size);
+            writeShort(entry.nameBytes.length);
+            writeShort(zip64 ? 4 + extraLength : 0);
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt(offsetZip64 ? ZIP64_MAGIC : entry.offset);
+            out.write(entry.nameBytes);
+            if (zip64) {
+                writeShort(ZIP64_EXTRA_ID);
+                writeShort(extraLength);
+                if (sizeZip64) writeLong(entry.size);
+                if (compressedSizeZip64) writeLong(entry.compressedSize);
+                if (offsetZip64) writeLong(entry.offset);
+            }
+        }
+        long directoryEnd = out.count;
+        long directorySize = directoryEnd - directoryOffset;
+
+        boolean zip64 = entries.size() >= 0xffff || directorySize >= ZIP64_MAGIC || directoryOffset >= ZIP64_MAGIC;
+        if (zip64) {
+            writeInt(ZIP64_END_SIG);
+            writeLong(44); // size of the remaining record
+            writeShort(VERSION_ZIP64); // version made by
+            writeShort(VERSION_ZIP64); // version needed to extract
+            writeInt(0); // number of this disk
+            writeInt(0); // disk with the central directory
+            writeLong(entries.size()); // entries on this disk
+            writeLong(entries.size()); // entries in total
+            writeLong(directorySize);
+            writeLong(directoryOffset);
+
+            writeInt(ZIP64_LOCATOR_SIG);
+            writeInt(0); // disk with the zip64 end of central directory
+            writeLong(directoryEnd);
+            writeInt(1); // total number of disks
+        }
+
+        writeInt(END_SIG);
+        writeShort(0); // number of this disk
+        writeShort(0); // disk with the central directory
+        writeShort(zip64 ? 0xffff : entries.size()); // entries on this disk
+        writeShort(zip64 ? 0xffff : entries.size()); // entries in total
+        writeInt(zip64 ? ZIP64_MAGIC : directorySize);
+        writeInt(zip64 ? ZIP64_MAGIC : directoryOffset);
+        writeShort(0); // comment length
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) value);
+        writeShort((int) (value >>> 16));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value);
+        writeInt(value >>> 32);
+    }
+
+    @SuppressWarnings("deprecation") // same conversion as used by ZipEntry
+    private static int javaToDosTime(long time) {
+        java.util.Date d = new java.util.Date(time);
+        int year = d.getYear() + 1900;
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (d.getMonth() + 1) << 21 | d.getDate() << 16
+                | d.getHours() << 11 | d.getMinutes() << 5 | d.getSeconds() >> 1;
+    }
+
+    private static class Entry {
+        private final byte[] nameBytes;
+        private final int method;
+        private final int dosTime;
+        private final int flags;
+        private int crc;
+        private long compressedSize;
+        private long size;
+        private long offset;
+
+        private Entry(String name, int method, int dosTime, int flags) {
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.dosTime = dosTime;
+            this.flags = flags;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -19,18 +19,21 @@
 package com.replaymod.replaystudio.util;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.PlatformDependent;
 import com.github.steveice10.packetlib.io.NetInput;
 import com.github.steveice10.packetlib.io.NetOutput;
-import com.github.steveice10.packetlib.tcp.io.ByteBufNetInput;
-import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
@@ -174,7 +177,7 @@ public class Utils {
     }
 
     public static void copy(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[8192];
         int read;
         while ((read = in.read(buffer)) > -1) {
             out.write(buffer, 0, read);
@@ -182,6 +185,41 @@ public class Utils {
         in.close();
     }
 
+    /**
+     * Reads {@code n} consecutive VarInts into the given array, in bulk if the input supports it.
+     */
+    public static void readVarInts(NetInput in, int[] dst, int n) throws IOException {
+        if (in instanceof ByteBufExtNetInput) {
+            ((ByteBufExtNetInput) in).readVarInts(dst, n);
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            dst[i] = in.readVarInt();
+        }
+    }
+
+    /**
+     * Maps a region of a file into memory (read-only).
+     * The region is unmapped as soon as the returned buffer (and all buffers derived from it) have been released,
+     * instead of whenever the garbage collector gets around to it. This matters on Windows, where a file cannot be
+     * deleted or overwritten while any part of it is mapped.
+     * @param channel Channel of the file, may be closed once this method returns
+     * @param position Position in the file at which the region starts
+     * @param size Size of the region
+     * @return The mapped region
+     */
+    public static ByteBuf map(FileChannel channel, long position, int size) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        // Netty won't let us free read-only buffers, so we wrap it with one which we can hook into
+        return new CompositeByteBuf(UnpooledByteBufAllocator.DEFAULT, true, 1, Unpooled.wrappedBuffer(mapped)) {
+            @Override
+            protected void deallocate() {
+                super.deallocate();
+                PlatformDependent.freeDirectBuffer(mapped);
+            }
+        };
+    }
+
     public static ByteBuf readRetainedSlice(NetInput in, int len) throws IOException {
         if (in instanceof ByteBufExtNetInput) {
             ByteBuf inBuf = ((ByteBufExtNetInput) in).getBuf();
@@ -203,6 +241,17 @@ public class Utils {
     }
 
     public static Packet readCompressedPacket(PacketTypeRegistry registry, NetInput in) throws IOException {
+        try (ZlibPool zlib = new ZlibPool()) {
+            return readCompressedPacket(registry, in, null, zlib);
+        }
+    }
+
+    /**
+     * Reads a packet written by {@link #writeCompressedPacket(NetOutput, Packet, int, int, byte[], ZlibPool)}.
+     * @param dictionary The preset dictionary the packet may have been compressed with, or {@code null} if none
+     * @param zlib Where to get the inflater from
+     */
+    public static Packet readCompressedPacket(PacketTypeRegistry registry, NetInput in, byte[] dictionary, ZlibPool zlib) throws IOException {
         ByteBuf byteBuf = null;
         try {
             int prefix = in.readVarInt();
@@ -211,15 +260,22 @@ public class Utils {
                 int fullLen = in.readVarInt();
                 byteBuf = Unpooled.buffer(fullLen);
 
-                Inflater inflater = new Inflater();
+                Inflater inflater = zlib.inflater();
                 inflater.setInput(in.readBytes(len));
-                inflater.inflate(byteBuf.array(), byteBuf.arrayOffset(), fullLen);
+                int read = inflater.inflate(byteBuf.array(), byteBuf.arrayOffset(), fullLen);
+                if (read == 0 && inflater.needsDictionary()) {
+                    if (dictionary == null) {
+                        throw new IOException("Packet was compressed with an unknown dictionary.");
+                    }
+                    inflater.setDictionary(dictionary);
+                    inflater.inflate(byteBuf.array(), byteBuf.arrayOffset(), fullLen);
+                }
                 byteBuf.writerIndex(fullLen);
             } else {
                 byteBuf = readRetainedSlice(in, len);
             }
 
-            int packetId = new ByteBufNetInput(byteBuf).readVarInt();
+            int packetId = new ByteBufExtNetInput(byteBuf).readVarInt();
             return new Packet(registry, packetId, registry.getType(packetId), byteBuf.retain());
         } catch (IOException e) {
             throw e;
@@ -231,25 +287,49 @@ public class Utils {
     }
 
     public static void writeCompressedPacket(NetOutput out, Packet packet) throws IOException {
+        writeCompressedPacket(out, packet, 0);
+    }
+
+    public static void writeCompressedPacket(NetOutput out, Packet packet, int threshold) throws IOException {
+        try (ZlibPool zlib = new ZlibPool()) {
+            writeCompressedPacket(out, packet, threshold, Deflater.DEFAULT_COMPRESSION, null, zlib);
+        }
+    }
+
+    /**
+     * Writes a packet, compressing it if it is at least {@code threshold} bytes large and compression actually makes it
+     * smaller.
+     * @param level The compression level, see {@link Deflater#setLevel(int)}
+     * @param dictionary The preset dictionary to compress the packet with, or {@code null} for none
+     * @param zlib Where to get the deflater from
+     */
+    public static void writeCompressedPacket(NetOutput out, Packet packet, int threshold, int level, byte[] dictionary, ZlibPool zlib) throws IOException {
         ByteBuf byteBuf = Unpooled.buffer();
         try {
-            new ByteBufNetOutput(byteBuf).writeVarInt(packet.getId());
+            new ByteBufExtNetOutput(byteBuf).writeVarInt(packet.getId());
             byteBuf.writeBytes(packet.getBuf());
 
             int rawIndex = byteBuf.readerIndex();
             int size = byteBuf.readableBytes();
 
-            byteBuf.ensureWritable(size);
-            Deflater deflater = new Deflater();
-            deflater.setInput(byteBuf.array(), byteBuf.arrayOffset() + byteBuf.readerIndex(), size);
-            deflater.finish();
-            int compressedSize = 0;
-            while (!deflater.finished() && compressedSize < size) {
-                compressedSize += deflater.deflate(
-                        byteBuf.array(),
-                        byteBuf.arrayOffset() + byteBuf.writerIndex() + compressedSize,
-                        size - compressedSize
-                );
+            int compressedSize = size;
+            if (size >= threshold) {
+                byteBuf.ensureWritable(size);
+                Deflater deflater = zlib.deflater();
+                deflater.setLevel(level);
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(byteBuf.array(), byteBuf.arrayOffset() + byteBuf.readerIndex(), size);
+                deflater.finish();
+                compressedSize = 0;
+                while (!deflater.finished() && compressedSize < size) {
+                    compressedSize += deflater.deflate(
+                            byteBuf.array(),
+                            byteBuf.arrayOffset() + byteBuf.writerIndex() + compressedSize,
+                            size - compressedSize
+                    );
+                }
             }
 
             if (compressedSize < size) {
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal reader for the central directory of a zip file.
+ * Unlike {@link java.util.zip.ZipFile}, this exposes where the (possibly compressed) data of each entry is located
+ * within the file, so it can be accessed directly, e.g. by memory-mapping it or by copying it verbatim.
+ */
+public class ZipCentralDirectory {
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final Map<String, Entry> entries;
+
+    private ZipCentralDirectory(FileChannel channel, Map<String, Entry> entries) {
+        this.channel = channel;
+        this.entries = entries;
+    }
+
+    /**
+     * Reads the central directory of the zip file accessible via the given channel.
+     * The channel is not closed by this method.
+     * @param channel Channel of the zip file
+     * @return The central directory
+     * @throws IOException If an I/O error occurs or the file is not a valid zip file
+     */
+    public static ZipCentralDirectory read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+
+        // Find the end of central directory record by scanning backwards over the (optional) archive comment
+        int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+        int endOffset = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIG) {
+                endOffset = i;
+                break;
+            }
+        }
+        if (endOffset == -1) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long entryCount = tail.getShort(endOffset + 10) & 0xffff;
+        long directorySize = tail.getInt(endOffset + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(endOffset + 16) & 0xffffffffL;
+
+        long locatorOffset = fileSize - tailSize + endOffset - ZIP64_LOCATOR_SIZE;
+        if (locatorOffset >= 0) {
+            ByteBuffer locator = readFully(channel, locatorOffset, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                ByteBuffer zip64End = readFully(channel, locator.getLong(8), ZIP64_END_SIZE);
+                if (zip64End.getInt(0) != ZIP64_END_SIG) {
+                    throw new ZipException("Invalid zip64 end of central directory record");
+                }
+                entryCount = zip64End.getLong(32);
+                directorySize = zip64End.getLong(40);
+                directoryOffset = zip64End.getLong(48);
+            }
+        }
+
+        if (directorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory too large");
+        }
+        ByteBuffer directory = readFully(channel, directoryOffset, (int) directorySize);
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        int pos = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (directory.getInt(pos) != CENTRAL_HEADER_SIG) {
+                throw new ZipException("Invalid central directory header");
+            }
+            int method = directory.getShort(pos + 10) & 0xffff;
+            int time = directory.getInt(pos + 12);
+            int crc = directory.getInt(pos + 16);
+            long compressedSize = directory.getInt(pos + 20) & 0xffffffffL;
+            long size = directory.getInt(pos + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(pos + 28) & 0xffff;
+            int extraLength = directory.getShort(pos + 30) & 0xffff;
+            int commentLength = directory.getShort(pos + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(pos + 42) & 0xffffffffL;
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(pos + CENTRAL_HEADER_SIZE);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // Values which do not fit into 32 bits are stored in the zip64 extra field instead
+            int extraPos = pos + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extraPos + extraLength;
+            while (extraPos + 4 <= extraEnd) {
+                int id = directory.getShort(extraPos) & 0xffff;
+                int length = directory.getShort(extraPos + 2) & 0xffff;
+                if (id == ZIP64_EXTRA_ID) {
+                    int fieldPos = extraPos + 4;
+                    if (size == 0xffffffffL) {
+                        size = directory.getLong(fieldPos);
+                        fieldPos += 8;
+                    }
+                    if (compressedSize == 0xffffffffL) {
+                        compressedSize = directory.getLong(fieldPos);
+                        fieldPos += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL) {
+                        localHeaderOffset = directory.getLong(fieldPos);
+                    }
+                }
+                extraPos += 4 + length;
+            }
+
+            entries.put(name, new Entry(name, method, time, crc, compressedSize, size, localHeaderOffset));
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return new ZipCentralDirectory(channel, entries);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Returns all entries in the order in which they appear in the central directory.
+     * @return List of entries
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+    }
+
+    /**
+     * Returns the entry with the given name.
+     * @param name Name of the entry
+     * @return The entry or {@code null} if no such entry exists
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns the position in the file at which the raw (possibly compressed) data of the given entry begins.
+     * The data is {@link Entry#getCompressedSize()} bytes long.
+     * @param entry The entry
+     * @return Absolute position of the entry's data
+     * @throws IOException If an I/O error occurs or the local header is invalid
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        if (entry.dataOffset == -1) {
+            ByteBuffer header = readFully(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_HEADER_SIG) {
+                throw new ZipException("Invalid local header for " + entry.name);
+            }
+            int nameLength = header.getShort(26) & 0xffff;
+            int extraLength = header.getShort(28) & 0xffff;
+            entry.dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        }
+        return entry.dataOffset;
+    }
+
+    /**
+     * Copies the raw (possibly compressed) data of the given entry to the output stream.
+     * @param entry The entry
+     * @param out The output stream
+     * @throws IOException If an I/O error occurs
+     */
+    public void copyData(Entry entry, OutputStream out) throws IOException {
+        long position = getDataOffset(entry);
+        long remaining = entry.compressedSize;
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(remaining, COPY_BUFFER_SIZE));
+        while (remaining > 0) {
+            buf.clear();
+            buf.limit((int) Math.min(remaining, buf.capacity()));
+            int read = channel.read(buf, position);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            out.write(buf.array(), 0, read);
+            position += read;
+            remaining -= read;
+        }
+    }
+
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final int dosTime;
+        private final int crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+        private long dataOffset = -1;
+
+        Entry(String name, int method, int dosTime, int crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The compression method, see {@link java.util.zip.ZipEntry#STORED} and {@link java.util.zip.ZipEntry#DEFLATED}
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return Modification time and date in MS-DOS format (time in the lower, date in the upper 16 bits)
+         */
+        public int getDosTime() {
+            return dosTime;
+        }
+
+        public int getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.replaymod.replaystudio.util;
+
+import java.io.Closeable;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One {@link Inflater} and one {@link Deflater}, reused for all data compressed by a single owner (e.g. a cache),
+ * so hot paths do not have to allocate (and leave to the finalizer) new native zlib streams for every bit of data.
+ *
+ * Instances are not thread-safe and must be confined to the thread which uses them. Each codec may only be used until
+ * the next call which returns it, at which point it is reset. The owner must {@link #close()} this pool once it is
+ * done with it, which ends both codecs.
+ */
+public class ZlibPool implements Closeable {
+    private Inflater inflater;
+    private Deflater deflater;
+
+    /**
+     * Returns a reset inflater (expecting the zlib wrapper).
+     */
+    public Inflater inflater() {
+        if (inflater == null) {
+            inflater = new Inflater();
+        } else {
+            inflater.reset();
+        }
+        return inflater;
+    }
+
+    /**
+     * Returns a reset deflater with {@link Deflater#DEFAULT_COMPRESSION} (producing the zlib wrapper).
+     */
+    public Deflater deflater() {
+        if (deflater == null) {
+            deflater = new Deflater();
+        } else {
+            deflater.reset();
+            deflater.setLevel(Deflater.DEFAULT_COMPRESSION);
+        }
+        return deflater;
+    }
+
+    /**
+     * Ends both codecs. This pool may still be used afterwards, in which case new codecs are created.
+     */
+    @Override
+    public void close() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.filter;
+
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Chunk;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Column;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.TileEntity;
+import com.replaymod.replaystudio.protocol.packets.PacketDestroyEntities;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityHeadLook;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityMovement;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityTeleport;
+import com.replaymod.replaystudio.protocol.packets.SpawnEntity;
+import com.replaymod.replaystudio.protocol.registry.DimensionType;
+import com.replaymod.replaystudio.stream.IteratorStream;
+import com.replaymod.replaystudio.stream.PacketStream;
+import com.replaymod.replaystudio.util.DPosition;
+import com.replaymod.replaystudio.util.IPosition;
+import com.replaymod.replaystudio.util.Location;
+import com.replaymod.replaystudio.util.PacketUtils;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SquashFilterTest {
+    private static final int SECTIONS = 16;
+    private static final int CHUNKS = 3; // along each axis
+    private static final int ENTITIES = 20;
+    private static final int PACKETS = 1500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+
+    private Packet randomChunk(Random random, int x, int z) throws IOException {
+        Chunk[] sections = new Chunk[SECTIONS];
+        for (int i = 0; i < 4; i++) {
+            sections[i] = new Chunk(registry);
+            for (int j = 0; j < 200; j++) {
+                sections[i].blocks.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), 1 + random.nextInt(50));
+            }
+        }
+        int[] biomes = new int[1024];
+        for (int i = 0; i < biomes.length; i++) {
+            biomes[i] = random.nextInt(20);
+        }
+        Column column = new Column(x, z, sections, null, new TileEntity[0], new CompoundTag(), biomes, true, null);
+        return PacketChunkData.load(column).write(registry);
+    }
+
+    private Packet spawnPlayer(int entityId, Location location) throws IOException {
+        Packet packet = new Packet(registry, PacketType.SpawnPlayer);
+        try (Packet.Writer out = packet.overwrite()) {
+            out.writeVarInt(entityId);
+            out.writeUUID(new UUID(0, entityId));
+            out.writeDouble(location.getX());
+            out.writeDouble(location.getY());
+            out.writeDouble(location.getZ());
+            out.writeByte((int) (location.getYaw() / 360 * 256));
+            out.writeByte((int) (location.getPitch() / 360 * 256));
+        }
+        return packet;
+    }
+
+    private Packet spawnPlayer(int entityId) throws IOException {
+        return spawnPlayer(entityId, new Location(0, 64, 0));
+    }
+
+    private Packet headLook(int entityId) throws IOException {
+        return PacketEntityHeadLook.write(registry, entityId, 90);
+    }
+
+    private Packet destroy(int... entityIds) throws IOException {
+        Packet packet = new Packet(registry, PacketType.DestroyEntities);
+        try (Packet.Writer out = packet.overwrite()) {
+            out.writeVarInt(entityIds.length);
+            for (int entityId : entityIds) {
+                out.writeVarInt(entityId);
+            }
+        }
+        return packet;
+    }
+
+    /**
+     * Squashes the given packets and returns the result.
+     */
+    private List<PacketData> squashPackets(Packet... packets) throws IOException {
+        SquashFilter filter = new SquashFilter(null, "minecraft:overworld", new DimensionType("minecraft:overworld"));
+        List<PacketData> result = new ArrayList<>();
+        PacketStream stream = new IteratorStream(result.listIterator(), (PacketStream.FilterInfo) null);
+        for (int i = 0; i < packets.length; i++) {
+            filter.onPacket(stream, new PacketData(i * 10L, packets[i]));
+        }
+        filter.onEnd(stream, packets.length * 10L);
+        return result;
+    }
+
+    /**
+     * Returns the ids of the entities which exist after applying the given packets, starting with the given ones.
+     */
+    private static Set<Integer> entitiesAfter(Set<Integer> existing, List<Packet> packets) throws IOException {
+        Set<Integer> entities = new HashSet<>(existing);
+        for (Packet packet : packets) {
+            if (packet.getType() == PacketType.SpawnPlayer) {
+                entities.add(PacketUtils.getEntityIdOrMinus1(packet));
+            } else if (packet.getType() == PacketType.DestroyEntities) {
+                entities.removeAll(PacketDestroyEntities.getEntityIds(packet));
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Squashes the given packets, asserts that the result consists of the expected packets, and that applying it
+     * results in the same entities as applying all packets unchanged (which is what squashing used to do with any
+     * destroy packets and the packets of destroyed entities).
+     */
+    private void assertSquashed(Set<Integer> existing, Packet[] packets, Packet... expected) throws IOException {
+        List<PacketData> result = squashPackets(packets);
+        List<Packet> actual = new ArrayList<>();
+        result.forEach(it -> actual.add(it.getPacket()));
+        try {
+            assertEquals(Arrays.asList(expected), actual);
+            assertEquals(entitiesAfter(existing, Arrays.asList(packets)), entitiesAfter(existing, actual));
+        } finally {
+            result.forEach(PacketData::release);
+            for (Packet packet : packets) {
+                packet.release();
+            }
+            for (Packet packet : expected) {
+                packet.release();
+            }
+        }
+    }
+
+    private static Set<Integer> ids(Integer... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+
+    private static double randomCoord(Random random) {
+        return random.nextInt(32 * 64) / 32.0;
+    }
+
+    private static float randomAngle(Random random) {
+        return random.nextInt(256) / 256f * 360;
+    }
+
+    /**
+     * Generates a stream of chunk loads (including reloads of loaded and unloaded chunks), block changes, unloads and
+     * entity spawns, moves, teleports, head rotations and despawns.
+     */
+    private List<PacketData> randomStream(Random random) throws IOException {
+        List<PacketData> packets = new ArrayList<>();
+        Set<Long> loaded = new HashSet<>();
+        Set<Integer> alive = new HashSet<>();
+        for (int i = 0; i < PACKETS; i++) {
+            long time = i * 10L;
+            int x = random.nextInt(CHUNKS);
+            int z = random.nextInt(CHUNKS);
+            long coord = Column.coordToLong(x, z);
+            int entityId = random.nextInt(ENTITIES);
+            Packet packet;
+            switch (random.nextInt(8)) {
+                case 0:
+                    packet = randomChunk(random, x, z);
+                    loaded.add(coord);
+                    break;
+                case 1:
+                    if (!loaded.remove(coord)) {
+                        continue;
+                    }
+                    packet = PacketChunkData.unload(x, z).write(registry);
+                    break;
+                case 2:
+                    if (!loaded.contains(coord)) {
+                        continue;
+                    }
+                    IPosition pos = new IPosition(x * 16 + random.nextInt(16), random.nextInt(64), z * 16 + random.nextInt(16));
+                    packet = PacketBlockChange.write(registry, pos, random.nextInt(50));
+                    break;
+                case 3:
+                    if (!alive.add(entityId)) {
+                        continue;
+                    }
+                    Location location = new Location(randomCoord(random), randomCoord(random), randomCoord(random),
+                            randomAngle(random), randomAngle(random));
+                    packet = spawnPlayer(entityId, location);
+                    break;
+                case 4:
+                    if (!alive.remove(entityId)) {
+                        continue;
+                    }
+                    packet = PacketDestroyEntities.write(registry, entityId);
+                    break;
+                case 5:
+                    if (!alive.contains(entityId)) {
+                        continue;
+                    }
+                    packet = PacketEntityTeleport.write(registry, entityId, new Location(randomCoord(random),
+                            randomCoord(random), randomCoord(random), randomAngle(random), randomAngle(random)), false);
+                    break;
+                case 6:
+                    if (!alive.contains(entityId)) {
+                        continue;
+                    }
+                    packet = PacketEntityHeadLook.write(registry, entityId, randomAngle(random));
+                    break;
+                default:
+                    if (!alive.contains(entityId)) {
+                        continue;
+                    }
+                    DPosition delta = new DPosition((random.nextInt(256) - 128) / 32.0,
+                            (random.nextInt(256) - 128) / 32.0, (random.nextInt(256) - 128) / 32.0);
+                    Pair<Float, Float> yawPitch = random.nextBoolean()
+                            ? Pair.of(randomAngle(random), randomAngle(random)) : null;
+                    packet = PacketEntityMovement.write(registry, entityId, delta, yawPitch, false);
+                    break;
+            }
+            packets.add(new PacketData(time, packet));
+        }
+        return packets;
+    }
+
+    /**
+     * The state of the world after applying a sequence of packets: blocks by chunk and entity positions, rotations and
+     * head rotations by entity id.
+     */
+    private static class World {
+        private final Map<Long, int[]> chunks = new HashMap<>();
+        private final Map<Integer, double[]> entities = new HashMap<>();
+
+        void apply(Packet packet) throws IOException {
+            switch (packet.getType()) {
+                case ChunkData:
+                case UnloadChunk: {
+                    PacketChunkData chunkData = PacketChunkData.read(packet, SECTIONS);
+                    if (chunkData.isUnload()) {
+                        chunks.remove(Column.coordToLong(chunkData.getUnloadX(), chunkData.getUnloadZ()));
+                        break;
+                    }
+                    Column column = chunkData.getColumn();
+                    int[] blocks = chunks.get(column.coordToLong());
+                    if (blocks == null || column.isFull()) {
+                        chunks.put(column.coordToLong(), blocks = new int[SECTIONS * 4096]);
+                    }
+                    for (int i = 0; i < column.chunks.length; i++) {
+                        if (column.chunks[i] != null) {
+                            int[] section = column.chunks[i].blocks.getAll(new int[4096]);
+                            System.arraycopy(section, 0, blocks, i * 4096, 4096);
+                        }
+                    }
+                    break;
+                }
+                case BlockChange:
+                case MultiBlockChange:
+                    for (PacketBlockChange change : PacketBlockChange.readSingleOrBulk(packet)) {
+                        IPosition pos = change.getPosition();
+                        int[] blocks = chunks.get(Column.coordToLong(pos.getX() >> 4, pos.getZ() >> 4));
+                        if (blocks != null) {
+                            blocks[pos.getY() << 8 | (pos.getZ() & 15) << 4 | (pos.getX() & 15)] = change.getId();
+                        }
+                    }
+                    break;
+                case SpawnPlayer: {
+                    Location location = SpawnEntity.getLocation(packet);
+                    entities.put(PacketUtils.getEntityIdOrMinus1(packet), new double[]{location.getX(),
+                            location.getY(), location.getZ(), location.getYaw(), location.getPitch(), 0});
+                    break;
+                }
+                case EntityTeleport: {
+                    Location location = PacketEntityTeleport.getLocation(packet);
+                    double[] entity = entities.get(PacketUtils.getEntityIdOrMinus1(packet));
+                    entity[0] = location.getX();
+                    entity[1] = location.getY();
+                    entity[2] = location.getZ();
+                    entity[3] = location.getYaw();
+                    entity[4] = location.getPitch();
+                    break;
+                }
+                case EntityPosition:
+                case EntityRotation:
+                case EntityPositionRotation: {
+                    Triple<DPosition, Pair<Float, Float>, Boolean> movement = PacketEntityMovement.getMovement(packet);
+                    double[] entity = entities.get(PacketUtils.getEntityIdOrMinus1(packet));
+                    if (movement.getLeft() != null) {
+                        entity[0] += movement.getLeft().getX();
+                        entity[1] += movement.getLeft().getY();
+                        entity[2] += movement.getLeft().getZ();
+                    }
+                    if (movement.getMiddle() != null) {
+                        entity[3] = movement.getMiddle().getLeft();
+                        entity[4] = movement.getMiddle().getRight();
+                    }
+                    break;
+                }
+                case EntityHeadLook:
+                    entities.get(PacketUtils.getEntityIdOrMinus1(packet))[5] = PacketEntityHeadLook.getYaw(packet);
+                    break;
+                case DestroyEntities:
+                    for (int entityId : PacketDestroyEntities.getEntityIds(packet)) {
+                        entities.remove(entityId);
+                    }
+                    break;
+                default:
+                    throw new AssertionError("Unexpected packet: " + packet.getType());
+            }
+        }
+
+        void assertEqualTo(World expected) {
+            assertEquals(expected.chunks.keySet(), chunks.keySet());
+            for (Map.Entry<Long, int[]> e : expected.chunks.entrySet()) {
+                assertArrayEquals(e.getValue(), chunks.get(e.getKey()));
+            }
+            assertEquals(expected.entities.keySet(), entities.keySet());
+            for (Map.Entry<Integer, double[]> e : expected.entities.entrySet()) {
+                assertArrayEquals("Entity " + e.getKey(), e.getValue(), entities.get(e.getKey()), 0);
+            }
+        }
+    }
+
+    /**
+     * Squashes the given packets with the given memory budget and applies the result to a new world.
+     */
+    private World squash(List<PacketData> packets, long memoryBudget, boolean expectSpill) throws IOException {
+        File spillDirectory = folder.newFolder();
+        SquashFilter filter = new SquashFilter(null, "minecraft:overworld", new DimensionType("minecraft:overworld"));
+        filter.setMemoryBudget(memoryBudget);
+        filter.setSpillDirectory(spillDirectory);
+
+        List<PacketData> result = new ArrayList<>();
+        PacketStream stream = new IteratorStream(result.listIterator(), (PacketStream.FilterInfo) null);
+        for (PacketData data : packets) {
+            filter.onPacket(stream, data);
+        }
+        assertEquals(expectSpill, spillDirectory.list().length > 0);
+        filter.onEnd(stream, packets.get(packets.size() - 1).getTime());
+        assertEquals(0, spillDirectory.list().length);
+
+        World world = new World();
+        try {
+            for (PacketData data : result) {
+                world.apply(data.getPacket());
+            }
+        } finally {
+            result.forEach(PacketData::release);
+        }
+        return world;
+    }
+
+    private void assertSpillMatchesInMemory(long memoryBudget) throws IOException {
+        List<PacketData> packets = randomStream(new Random(42));
+        try {
+            World expected = squash(packets, Long.MAX_VALUE, false);
+
+            // Sanity check: squashing must not change the outcome
+            World unsquashed = new World();
+            for (PacketData data : packets) {
+                unsquashed.apply(data.getPacket());
+            }
+            expected.assertEqualTo(unsquashed);
+
+            squash(packets, memoryBudget, true).assertEqualTo(expected);
+        } finally {
+            packets.forEach(PacketData::release);
+        }
+    }
+
+    @Test
+    public void testSpillEveryPacket() throws IOException {
+        assertSpillMatchesInMemory(1);
+    }
+
+    @Test
+    public void testSpillEveryFewChunks() throws IOException {
+        assertSpillMatchesInMemory(64 * 1024);
+    }
+
+    @Test
+    public void testDestroyEntitySpawnedBefore() throws IOException {
+        // Its packets are dropped, only the destroy packet remains
+        assertSquashed(ids(1), new Packet[]{headLook(1), destroy(1)},
+                PacketDestroyEntities.write(registry, 1));
+    }
+
+    @Test
+    public void testDestroyEntitySpawnedWithin() throws IOException {
+        // Spawned and destroyed within the squashed range, so it never needs to exist at all
+        assertSquashed(ids(), new Packet[]{spawnPlayer(1), headLook(1), destroy(1)});
+    }
+
+    @Test
+    public void testDestroyMultipleEntities() throws IOException {
+        // Each entity is handled separately: 2 is dropped altogether, 1 and 3 get a destroy packet each
+        assertSquashed(ids(1, 3), new Packet[]{spawnPlayer(2), headLook(1), destroy(1, 2), destroy(3)},
+                PacketDestroyEntities.write(registry, 1), PacketDestroyEntities.write(registry, 3));
+    }
+
+    @Test
+    public void testRespawnAfterDestroy() throws IOException {
+        // Spawning an entity replaces any existing one with the same id, so the destroy packet is dropped as well
+        assertSquashed(ids(1), new Packet[]{destroy(1), spawnPlayer(1), headLook(1)},
+                spawnPlayer(1), headLook(1));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplayInputStreamTest {
+    private static final PacketType[] TYPES = {PacketType.Chat, PacketType.EntityHeadLook, PacketType.KeepAlive};
+    private static final int FRAMES = 10000;
+
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+
+    /**
+     * Keeps track of all frames read, so we can check they have all been released.
+     */
+    private class TrackingInputStream extends ReplayInputStream {
+        private final Queue<ByteBuf> frames = new ConcurrentLinkedQueue<>();
+
+        private TrackingInputStream(byte[] data) throws IOException {
+            super(registry, new ByteArrayInputStream(data), ReplayMetaData.CURRENT_FILE_FORMAT_VERSION,
+                    registry.getVersion().getOriginalVersion(), false);
+        }
+
+        @Override
+        protected ByteBuf readFrame() throws IOException {
+            ByteBuf buf = super.readFrame();
+            if (buf != null) {
+                frames.add(buf);
+            }
+            return buf;
+        }
+
+        private void assertAllReleased() {
+            for (ByteBuf buf : frames) {
+                assertEquals(0, buf.refCnt());
+            }
+        }
+    }
+
+    /**
+     * Writes {@link #FRAMES} frames of random {@link #TYPES} and sizes, followed by the given raw frame (if any).
+     */
+    private byte[] frames(byte[] lastFrame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Random random = new Random(42);
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] payload = new byte[1 + random.nextInt(100)];
+            random.nextBytes(payload);
+            payload[0] = (byte) registry.getId(TYPES[random.nextInt(TYPES.length)]); // all ids fit in a single byte
+            out.writeInt(i);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        if (lastFrame != null) {
+            out.writeInt(FRAMES);
+            out.writeInt(lastFrame.length);
+            out.write(lastFrame);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void assertSamePacket(PacketData expected, PacketData actual) {
+        assertEquals(expected.getTime(), actual.getTime());
+        Packet expectedPacket = expected.getPacket();
+        Packet actualPacket = actual.getPacket();
+        assertEquals(expectedPacket.getId(), actualPacket.getId());
+        assertEquals(expectedPacket.getType(), actualPacket.getType());
+        assertArrayEquals(ByteBufUtil.getBytes(expectedPacket.getBuf()), ByteBufUtil.getBytes(actualPacket.getBuf()));
+    }
+
+    /**
+     * Returns the pipeline threads which are currently alive.
+     */
+    private static Set<Thread> pipelineThreads() {
+        Set<Thread> threads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("ReplayInputStream-")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    @Test
+    public void testPipelinedMatchesSerial() throws IOException {
+        byte[] data = frames(null);
+        List<PacketData> serial = new ArrayList<>();
+        try (ReplayInputStream in = new TrackingInputStream(data)) {
+            PacketData packet;
+            while ((packet = in.readPacket()) != null) {
+                serial.add(packet);
+            }
+        }
+
+        TrackingInputStream in = new TrackingInputStream(data);
+        try {
+            in.pipelined(4);
+            int i = 0;
+            // Mixing single packets and batches must not change the order
+            while (true) {
+                PacketData packet = in.readPacket();
+                if (packet == null) {
+                    break;
+                }
+                assertSamePacket(serial.get(i++), packet);
+                packet.release();
+
+                List<PacketData> batch = in.readPacketBatch();
+                if (batch == null) {
+                    break;
+                }
+                for (PacketData batchPacket : batch) {
+                    assertSamePacket(serial.get(i++), batchPacket);
+                    batchPacket.release();
+                }
+            }
+            assertEquals(serial.size(), i);
+            assertNull(in.readPacket());
+        } finally {
+            in.close();
+            serial.forEach(PacketData::release);
+        }
+        in.assertAllReleased();
+    }
+
+    @Test(timeout = 30000)
+    public void testCloseWhileQueuesAreFull() throws Exception {
+        Set<Thread> before = pipelineThreads();
+        TrackingInputStream in = new TrackingInputStream(frames(null));
+        in.pipelined(2);
+        Set<Thread> threads = pipelineThreads();
+        threads.removeAll(before);
+        assertEquals(2, threads.size());
+
+        // With more frames than fit in both queues, both threads end up blocked on their full output queue
+        while (!threads.stream().allMatch(thread -> thread.getState() == Thread.State.WAITING)) {
+            Thread.sleep(10);
+        }
+        assertTrue(in.frames.size() < FRAMES);
+
+        in.close();
+        for (Thread thread : threads) {
+            assertFalse(thread.getName(), thread.isAlive());
+        }
+        in.assertAllReleased();
+    }
+
+    @Test(timeout = 30000)
+    public void testConversionErrorIsThrownFromReadPacket() throws IOException {
+        Set<Thread> before = pipelineThreads();
+        byte[] data = frames(new byte[]{(byte) 0x80}); // packet id is cut short
+
+        int expected = 0;
+        try (ReplayInputStream in = new TrackingInputStream(data)) {
+            try {
+                PacketData packet;
+                while ((packet = in.readPacket()) != null) {
+                    expected++;
+                    packet.release();
+                }
+                fail("Expected IOException");
+            } catch (IOException ignored) {
+            }
+        }
+
+        TrackingInputStream in = new TrackingInputStream(data);
+        try {
+            in.pipelined(4);
+            int read = 0;
+            IOException error = null;
+            try {
+                PacketData packet;
+                while ((packet = in.readPacket()) != null) {
+                    read++;
+                    packet.release();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            assertNotNull(error);
+            // All packets before the broken one are still returned, as they would be without pipelining
+            assertEquals(expected, read);
+            assertNull(in.readPacket());
+        } finally {
+            in.close();
+        }
+        in.assertAllReleased();
+        assertEquals(before, pipelineThreads());
+    }
+}
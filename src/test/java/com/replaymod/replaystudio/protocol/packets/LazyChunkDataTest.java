@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Chunk;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Column;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.TileEntity;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LazyChunkDataTest {
+    private static final int SECTIONS = 16;
+    // In-section light, separate biomes, varint biomes, variable section count and 1.18 light data
+    private static final ProtocolVersion[] VERSIONS = {ProtocolVersion.v1_12_2, ProtocolVersion.v1_13_2,
+            ProtocolVersion.v1_15_2, ProtocolVersion.v1_16_4, ProtocolVersion.v1_17_1, ProtocolVersion.v1_18};
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static Chunk randomSection(PacketTypeRegistry registry, Random random) {
+        Chunk section = new Chunk(registry);
+        for (int i = 0; i < 500; i++) {
+            section.blocks.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), random.nextInt(50));
+        }
+        if (registry.atMost(ProtocolVersion.v1_13_2)) {
+            section.blockLight = randomBytes(random, 2048);
+            section.skyLight = randomBytes(random, 2048);
+        }
+        return section;
+    }
+
+    private static Packet randomChunk(PacketTypeRegistry registry, Random random) throws IOException {
+        boolean allSections = registry.atLeast(ProtocolVersion.v1_18);
+        Chunk[] sections = new Chunk[SECTIONS];
+        for (int i = 0; i < sections.length; i++) {
+            // Leave gaps (and the top-most sections) empty where the section mask allows for it
+            if (allSections || (i % 3 != 1 && i < 12)) {
+                sections[i] = randomSection(registry, random);
+            }
+        }
+        byte[] biomeData = null;
+        int[] biomes = null;
+        if (registry.olderThan(ProtocolVersion.v1_15)) {
+            biomeData = randomBytes(random, registry.atLeast(ProtocolVersion.v1_13) ? 1024 : 256);
+        } else if (registry.olderThan(ProtocolVersion.v1_18)) {
+            biomes = new int[1024];
+            for (int i = 0; i < biomes.length; i++) {
+                biomes[i] = random.nextInt(20);
+            }
+        }
+        PacketUpdateLight.Data lightData = null;
+        if (registry.atLeast(ProtocolVersion.v1_18)) {
+            lightData = randomLightData(random);
+        }
+        Column column = new Column(0, 0, sections, biomeData, new TileEntity[0], new CompoundTag(), biomes, true, lightData);
+        return PacketChunkData.load(column).write(registry);
+    }
+
+    private static PacketUpdateLight.Data randomLightData(Random random) {
+        List<byte[]> skyLight = new ArrayList<>();
+        List<byte[]> blockLight = new ArrayList<>();
+        for (int i = 0; i < SECTIONS + 2; i++) {
+            skyLight.add(randomBytes(random, 2048));
+            blockLight.add(randomBytes(random, 2048));
+        }
+        return new PacketUpdateLight.Data(skyLight, blockLight);
+    }
+
+    private static void assertReencoded(Packet expected, Packet actual) {
+        try {
+            assertEquals(expected, actual);
+        } finally {
+            expected.release();
+            actual.release();
+        }
+    }
+
+    @Test
+    public void testUnmodified() throws IOException {
+        for (ProtocolVersion version : VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            Packet packet = randomChunk(registry, new Random(42));
+            try {
+                LazyChunkData lazy = LazyChunkData.read(packet, SECTIONS);
+                assertReencoded(PacketChunkData.read(packet, SECTIONS).write(registry), lazy.write());
+                assertEquals(PacketChunkData.read(packet, SECTIONS).getColumn().chunks.length, lazy.getSectionCount());
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    @Test
+    public void testSectionChange() throws IOException {
+        for (ProtocolVersion version : VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            Random random = new Random(42);
+            Packet packet = randomChunk(registry, random);
+            try {
+                for (int index : new int[]{0, 3, 4}) {
+                    LazyChunkData lazy = LazyChunkData.read(packet, SECTIONS);
+                    PacketChunkData eager = PacketChunkData.read(packet, SECTIONS);
+
+                    Chunk section = lazy.getSection(index);
+                    section = section != null ? section.copy() : randomSection(registry, random);
+                    section.blocks.set(1, 2, 3, 1000); // new state, grows the palette
+                    section.blocks.set(4, 5, 6, section.blocks.get(7, 8, 9));
+
+                    lazy.setSection(index, section);
+                    eager.getColumn().chunks[index] = section;
+                    assertReencoded(eager.write(registry), lazy.write());
+                }
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    @Test
+    public void testSectionRemoval() throws IOException {
+        for (ProtocolVersion version : VERSIONS) {
+            if (version == ProtocolVersion.v1_18) {
+                continue; // all sections are always present
+            }
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            Packet packet = randomChunk(registry, new Random(42));
+            try {
+                LazyChunkData lazy = LazyChunkData.read(packet, SECTIONS);
+                PacketChunkData eager = PacketChunkData.read(packet, SECTIONS);
+                lazy.setSection(3, null);
+                eager.getColumn().chunks[3] = null;
+                assertReencoded(eager.write(registry), lazy.write());
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    @Test
+    public void testBiomeAndLightChange() throws IOException {
+        for (ProtocolVersion version : VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            Random random = new Random(42);
+            Packet packet = randomChunk(registry, random);
+            try {
+                LazyChunkData lazy = LazyChunkData.read(packet, SECTIONS);
+                PacketChunkData eager = PacketChunkData.read(packet, SECTIONS);
+                Column column = eager.getColumn();
+                if (column.biomeData != null) {
+                    byte[] biomeData = randomBytes(random, column.biomeData.length);
+                    lazy.setBiomeData(biomeData);
+                    column.biomeData = biomeData;
+                    assertArrayEquals(biomeData, lazy.getBiomeData());
+                }
+                if (column.biomes != null) {
+                    int[] biomes = column.biomes.clone();
+                    Arrays.fill(biomes, 0, 64, 7);
+                    lazy.setBiomes(biomes);
+                    column.biomes = biomes;
+                    assertArrayEquals(biomes, lazy.getBiomes());
+                }
+                if (column.lightData != null) {
+                    PacketUpdateLight.Data lightData = randomLightData(random);
+                    lazy.setLightData(lightData);
+                    column.lightData = lightData;
+                }
+                assertReencoded(eager.write(registry), lazy.write());
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    @Test
+    public void testUnsupportedChangesAreRejected() throws IOException {
+        for (ProtocolVersion version : VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            Packet packet = randomChunk(registry, new Random(42));
+            try {
+                LazyChunkData lazy = LazyChunkData.read(packet, SECTIONS);
+                if (registry.olderThan(ProtocolVersion.v1_18)) {
+                    assertRejected(() -> lazy.setLightData(new PacketUpdateLight.Data()));
+                }
+                if (registry.olderThan(ProtocolVersion.v1_15) || registry.atLeast(ProtocolVersion.v1_18)) {
+                    assertRejected(() -> lazy.setBiomes(new int[1024]));
+                }
+                if (registry.atLeast(ProtocolVersion.v1_15)) {
+                    assertRejected(() -> lazy.setBiomeData(new byte[1024]));
+                }
+                if (registry.olderThan(ProtocolVersion.v1_14)) {
+                    assertRejected(() -> lazy.setHeightMaps(new CompoundTag()));
+                }
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    private static void assertRejected(Runnable change) {
+        try {
+            change.run();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.viaversion.viaversion.api.minecraft.chunks.PaletteType;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PalettedStorageDiffTest {
+    // Entries span longs prior to 1.16, are padded since, and 1.18 adds single-valued palettes (used for biomes)
+    private static final ProtocolVersion[] VERSIONS = {ProtocolVersion.v1_12_2, ProtocolVersion.v1_16_4, ProtocolVersion.v1_18};
+
+    private static PacketChunkData.PalettedStorage randomBlocks(PacketTypeRegistry registry, Random random, int states) {
+        PacketChunkData.PalettedStorage storage = new PacketChunkData.PalettedStorage(PaletteType.BLOCKS, registry);
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    storage.set(x, y, z, random.nextInt(states));
+                }
+            }
+        }
+        return storage;
+    }
+
+    /**
+     * Compares the two storages entry by entry.
+     */
+    private static IntList naiveDiff(PacketChunkData.PalettedStorage from, PacketChunkData.PalettedStorage to, int size) {
+        IntList changes = new IntArrayList();
+        for (int y = 0; y < size; y++) {
+            for (int z = 0; z < size; z++) {
+                for (int x = 0; x < size; x++) {
+                    int fromState = from.get(x, y, z);
+                    int toState = to.get(x, y, z);
+                    if (fromState != toState) {
+                        int index = size == 16 ? y << 8 | z << 4 | x : y << 4 | z << 2 | x;
+                        changes.add(index);
+                        changes.add(fromState);
+                        changes.add(toState);
+                    }
+                }
+            }
+        }
+        return changes;
+    }
+
+    private static void assertDiff(PacketChunkData.PalettedStorage from, PacketChunkData.PalettedStorage to, int size) {
+        IntList expected = naiveDiff(from, to, size);
+        IntList actual = new IntArrayList();
+        actual.add(42); // changes must be appended
+        int count = from.diff(to, actual);
+        assertEquals(42, actual.getInt(0));
+        assertEquals(expected, actual.subList(1, actual.size()));
+        assertEquals(expected.size() / 3, count);
+    }
+
+    @Test
+    public void testIdentical() {
+        for (ProtocolVersion version : VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            PacketChunkData.PalettedStorage storage = randomBlocks(registry, new Random(42), 16);
+            assertDiff(storage, storage.copy(), 16);
+            assertEquals(0, storage.diff(storage.copy(), new IntArrayList()));
+        }
+    }
+
+    @Test
+    public void testSamePalette() {
+        for (ProtocolVersion version : VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            Random random = new Random(42);
+            for (int states : new int[]{2, 16, 100}) {
+                PacketChunkData.PalettedStorage from = randomBlocks(registry, random, states);
+                PacketChunkData.PalettedStorage to = from.copy();
+                // Only states already in the palette, so the packed storage is compared word by word
+                for (int i = 0; i < 50; i++) {
+                    to.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), random.nextInt(states));
+                }
+                assertDiff(from, to, 16);
+                assertDiff(to, from, 16);
+            }
+        }
+    }
+
+    @Test
+    public void testDifferentPalette() {
+        for (ProtocolVersion version : VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            Random random = new Random(42);
+            PacketChunkData.PalettedStorage from = randomBlocks(registry, random, 16);
+            PacketChunkData.PalettedStorage to = from.copy();
+            // New states grow the palette (and the entry size)
+            for (int i = 0; i < 50; i++) {
+                to.set(random.nextInt(16), random.nextInt(16), random.nextInt(16), 100 + random.nextInt(100));
+            }
+            assertDiff(from, to, 16);
+            assertDiff(to, from, 16);
+            assertDiff(from, randomBlocks(registry, random, 16), 16);
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        for (ProtocolVersion version : VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            PacketChunkData.PalettedStorage empty = new PacketChunkData.PalettedStorage(PaletteType.BLOCKS, registry);
+            PacketChunkData.PalettedStorage single = empty.copy();
+            single.set(1, 2, 3, 7);
+            assertDiff(empty, empty.copy(), 16);
+            assertDiff(empty, single, 16);
+            assertDiff(single, empty, 16);
+        }
+    }
+
+    @Test
+    public void testBiomes() {
+        PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_18, State.PLAY);
+        Random random = new Random(42);
+        PacketChunkData.PalettedStorage singleValued = new PacketChunkData.PalettedStorage(PaletteType.BIOMES, registry);
+        PacketChunkData.PalettedStorage mixed = singleValued.copy();
+        for (int i = 0; i < 20; i++) {
+            mixed.set(random.nextInt(4), random.nextInt(4), random.nextInt(4), random.nextInt(8));
+        }
+        assertDiff(singleValued, singleValued.copy(), 4);
+        assertDiff(singleValued, mixed, 4);
+        assertDiff(mixed, singleValued, 4);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.rar;
+
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketJoinGame;
+import com.replaymod.replaystudio.protocol.registry.DimensionType;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RandomAccessReplayTest {
+    private static final int DURATION = 60000;
+    private static final int INTERVAL = 100;
+    private static final int SEGMENT_LENGTH = 10000;
+    private static final int INTERRUPT_TIME = 35000;
+    // Last segment sealed before INTERRUPT_TIME
+    private static final int INTERRUPTED_ANALYSED_TIME = 30000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Studio studio = new ReplayStudio();
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_12_2, State.PLAY);
+
+    /**
+     * Remembers the world time most recently sent to the client, which is the time of the last UpdateTime packet.
+     */
+    private class TestReplay extends RandomAccessReplay {
+        private long worldTime = -1;
+
+        private TestReplay(ReplayFile replayFile) {
+            super(replayFile, registry);
+            setSegmentLength(SEGMENT_LENGTH);
+        }
+
+        @Override
+        protected void dispatch(Packet packet) {
+            try {
+                if (packet.getType() == PacketType.UpdateTime) {
+                    try (Packet.Reader in = packet.reader()) {
+                        worldTime = in.readLong();
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                packet.release();
+            }
+        }
+
+        private void assertSeek(int targetTime, int expectedTime) throws IOException {
+            seek(targetTime);
+            assertEquals("world time after seeking to " + targetTime, expectedTime / INTERVAL * INTERVAL, worldTime);
+        }
+    }
+
+    private static class Interrupted extends RuntimeException {
+    }
+
+    /**
+     * Writes a replay which joins a world at time 0 and then updates the world time (to the current replay time)
+     * every {@link #INTERVAL} ms.
+     */
+    private ReplayFile createReplay() throws IOException {
+        ReplayFile replay = new ZipReplayFile(studio, new File(folder.getRoot(), "test.mcpr"));
+        ReplayMetaData metaData = new ReplayMetaData();
+        metaData.setDuration(DURATION);
+        replay.writeMetaData(registry, metaData);
+        try (ReplayOutputStream out = replay.writePacketData()) {
+            PacketJoinGame joinGame = new PacketJoinGame();
+            joinGame.dimension = "0";
+            joinGame.dimensionType = new DimensionType("default");
+            out.write(0, joinGame.write(registry));
+            for (int time = INTERVAL; time <= DURATION; time += INTERVAL) {
+                Packet packet = new Packet(registry, PacketType.UpdateTime);
+                try (Packet.Writer writer = packet.overwrite()) {
+                    writer.writeLong(time);
+                    writer.writeLong(time);
+                }
+                out.write(time, packet);
+            }
+        }
+        return replay;
+    }
+
+    @Test
+    public void testResumeAfterInterruptedAnalysis() throws IOException {
+        try (ReplayFile replayFile = createReplay()) {
+            TestReplay interrupted = new TestReplay(replayFile);
+            try {
+                interrupted.load(progress -> {
+                    if (progress * DURATION > INTERRUPT_TIME) {
+                        throw new Interrupted();
+                    }
+                });
+                fail("analysis was not interrupted");
+            } catch (Interrupted ignored) {
+            }
+            assertEquals(INTERRUPTED_ANALYSED_TIME, interrupted.getAnalysedTime());
+            interrupted.release();
+
+            TestReplay resumed = new TestReplay(replayFile);
+            List<Double> progress = new ArrayList<>();
+            resumed.load(progress::add);
+            // Complete segments are read from the cache, only the remainder is analysed
+            assertEquals(INTERRUPTED_ANALYSED_TIME + INTERVAL, progress.get(0) * DURATION, 0.5);
+            assertEquals(DURATION, resumed.getAnalysedTime());
+
+            resumed.reset();
+            resumed.assertSeek(5050, 5050); // read from the cache
+            resumed.assertSeek(45050, 45050); // crosses into the resumed segments
+            resumed.assertSeek(DURATION, DURATION);
+            resumed.assertSeek(15050, 15050); // and back
+            resumed.assertSeek(INTERRUPTED_ANALYSED_TIME, INTERRUPTED_ANALYSED_TIME);
+            resumed.release();
+        }
+    }
+
+    @Test
+    public void testSeekWhileAnalysing() throws Exception {
+        try (ReplayFile replayFile = createReplay()) {
+            TestReplay replay = new TestReplay(replayFile);
+            CountDownLatch paused = new CountDownLatch(1);
+            CountDownLatch resume = new CountDownLatch(1);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread analysis = new Thread(() -> {
+                try {
+                    replay.load(progress -> {
+                        if (progress * DURATION > INTERRUPT_TIME && paused.getCount() > 0) {
+                            paused.countDown();
+                            try {
+                                resume.await();
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    });
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            });
+            analysis.start();
+            try {
+                assertTrue("analysis did not progress", paused.await(30, TimeUnit.SECONDS));
+                assertEquals(INTERRUPTED_ANALYSED_TIME, replay.getAnalysedTime());
+
+                replay.reset();
+                replay.assertSeek(25050, 25050);
+                replay.assertSeek(5050, 5050);
+                // Seeks beyond the analysed range are clamped
+                replay.assertSeek(50000, INTERRUPTED_ANALYSED_TIME);
+            } finally {
+                resume.countDown();
+                analysis.join();
+            }
+            assertNull(error.get());
+
+            assertEquals(DURATION, replay.getAnalysedTime());
+            replay.assertSeek(50050, 50050);
+            replay.assertSeek(5050, 5050);
+            replay.release();
+        }
+    }
+}
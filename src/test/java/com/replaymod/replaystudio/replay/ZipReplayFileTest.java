@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.replay;
+
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ZipReplayFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Studio studio = new ReplayStudio();
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+    private final PacketTypeRegistry loginRegistry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.LOGIN);
+
+    private static void writeRecording(ReplayFile replay, PacketTypeRegistry registry, int packets, byte fill) throws IOException {
+        try (ReplayOutputStream out = replay.writePacketData()) {
+            for (int i = 0; i < packets; i++) {
+                byte[] payload = new byte[100];
+                Arrays.fill(payload, fill);
+                out.write(i * 10L, new Packet(registry, PacketType.Chat, Unpooled.wrappedBuffer(payload)));
+            }
+        }
+    }
+
+    private static PacketData readFirstChat(ReplayInputStream in) throws IOException {
+        PacketData data;
+        while ((data = in.readPacket()).getPacket().getType() != PacketType.Chat) {
+            data.release(); // e.g. the LoginSuccess packet at the start
+        }
+        return data;
+    }
+
+    @Test
+    public void testRewriteRecordingWhilePacketsAreHeld() throws IOException {
+        try (ReplayFile replay = new ZipReplayFile(studio, new File(folder.getRoot(), "test.mcpr"))) {
+            replay.writeMetaData(registry, new ReplayMetaData());
+            writeRecording(replay, registry, 1000, (byte) 1);
+            assertTrue(replay.hasRandomAccessPacketData());
+
+            PacketData held;
+            try (ReplayInputStream in = replay.getPacketData(loginRegistry)) {
+                held = readFirstChat(in);
+            }
+            byte[] expected = new byte[100];
+            Arrays.fill(expected, (byte) 1);
+            try {
+                // Shorter than before, so truncating the mapped file in place would leave the held packet past its end
+                writeRecording(replay, registry, 1, (byte) 2);
+                assertArrayEquals(expected, ByteBufUtil.getBytes(held.getPacket().getBuf()));
+            } finally {
+                held.release();
+            }
+
+            try (ReplayInputStream in = replay.getPacketData(loginRegistry)) {
+                PacketData data = readFirstChat(in);
+                try {
+                    Arrays.fill(expected, (byte) 2);
+                    assertArrayEquals(expected, ByteBufUtil.getBytes(data.getPacket().getBuf()));
+                } finally {
+                    data.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.stream;
+
+import com.google.gson.JsonObject;
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.filter.ChangeTimestampFilter;
+import com.replaymod.replaystudio.filter.PacketCountFilter;
+import com.replaymod.replaystudio.filter.RemoveFilter;
+import com.replaymod.replaystudio.filter.StreamFilter;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.replay.ReplayFile;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import com.viaversion.viaversion.api.protocol.packet.State;
+import com.viaversion.viaversion.api.protocol.version.ProtocolVersion;
+import io.netty.buffer.Unpooled;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedStreamExecutorTest {
+    private static final PacketType[] TYPES = {PacketType.KeepAlive, PacketType.Chat, PacketType.EntityHeadLook};
+    // Long enough for plenty of seek index points (one every 10s by default)
+    private static final int PACKETS = 20000;
+    private static final int INTERVAL = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Studio studio = new ReplayStudio();
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.PLAY);
+    private final Map<PacketType, Integer> written = new EnumMap<>(PacketType.class);
+
+    /**
+     * Writes a replay with {@link #PACKETS} packets of random {@link #TYPES} and sizes.
+     * The replay is left open, so its packet data is mapped from the temporary recording.
+     */
+    private ReplayFile createReplay() throws IOException {
+        ReplayFile replay = new ZipReplayFile(studio, new File(folder.getRoot(), "test.mcpr"));
+        replay.writeMetaData(registry, new ReplayMetaData());
+        Random random = new Random(42);
+        try (ReplayOutputStream out = replay.writePacketData()) {
+            for (int i = 0; i < PACKETS; i++) {
+                PacketType type = TYPES[random.nextInt(TYPES.length)];
+                byte[] payload = new byte[random.nextInt(100)];
+                random.nextBytes(payload);
+                out.write((long) i * INTERVAL, new Packet(registry, type, Unpooled.wrappedBuffer(payload)));
+                written.merge(type, 1, Integer::sum);
+            }
+        }
+        return replay;
+    }
+
+    private StreamFilter filter(StreamFilter filter, JsonObject config) {
+        filter.init(studio, config);
+        return filter;
+    }
+
+    /**
+     * Applies a fresh set of filters with the given number of shards.
+     * @return The raw packet data written by the executor
+     */
+    private byte[] run(ReplayFile replay, int shards, boolean expectSharded, PacketCountFilter count) throws IOException {
+        ShardedStreamExecutor executor = new ShardedStreamExecutor(replay,
+                PacketTypeRegistry.get(ProtocolVersion.v1_16_4, State.LOGIN), shards);
+        JsonObject removeConfig = new JsonObject();
+        removeConfig.addProperty("type", PacketType.KeepAlive.name());
+        executor.addFilter(filter(new RemoveFilter(), removeConfig), PACKETS * INTERVAL / 4, PACKETS * INTERVAL / 2);
+        JsonObject timestampConfig = new JsonObject();
+        timestampConfig.addProperty("offset", 1234);
+        executor.addFilter(filter(new ChangeTimestampFilter(), timestampConfig), PACKETS * INTERVAL / 3, -1);
+        executor.addFilter(filter(count, new JsonObject()));
+        assertEquals(expectSharded, executor.isSharded());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ReplayOutputStream out = new ReplayOutputStream(bytes)) {
+            executor.run(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void assertShardedMatchesSerial(ReplayFile replay, boolean expectSharded) throws IOException {
+        PacketCountFilter serialCount = new PacketCountFilter();
+        byte[] serial = run(replay, 1, false, serialCount);
+        PacketCountFilter shardedCount = new PacketCountFilter();
+        byte[] sharded = run(replay, 4, expectSharded, shardedCount);
+
+        assertArrayEquals(serial, sharded);
+        for (PacketType type : TYPES) {
+            assertEquals(type.name(), serialCount.getCount(type), shardedCount.getCount(type));
+        }
+        // The count filter runs after the removal
+        assertEquals((int) written.get(PacketType.Chat), shardedCount.getCount(PacketType.Chat));
+        assertEquals((int) written.get(PacketType.EntityHeadLook), shardedCount.getCount(PacketType.EntityHeadLook));
+        assertTrue(shardedCount.getCount(PacketType.KeepAlive) < written.get(PacketType.KeepAlive));
+    }
+
+    @Test
+    public void testMappedPacketData() throws IOException {
+        try (ReplayFile replay = createReplay()) {
+            assertTrue(replay.hasRandomAccessPacketData());
+            assertTrue(replay.getSeekIndex().size() > 4);
+            assertShardedMatchesSerial(replay, true);
+            // Shard outputs are kept next to the replay, and only until they have been appended
+            String[] shardFiles = new File(folder.getRoot(), "test.mcpr.tmp").list((dir, name) -> name.startsWith("shard"));
+            assertEquals(0, shardFiles.length);
+        }
+    }
+
+    @Test
+    public void testCompressedPacketDataIsNotSharded() throws IOException {
+        try (ReplayFile replay = createReplay()) {
+            replay.save(); // recording is deflated
+            assertFalse(replay.hasRandomAccessPacketData());
+            assertShardedMatchesSerial(replay, false);
+        }
+    }
+}
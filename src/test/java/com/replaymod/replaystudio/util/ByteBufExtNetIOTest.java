@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetInput;
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the VarInt/VarLong fast paths of {@link ByteBufExtNetInput} and {@link ByteBufExtNetOutput} against the plain
+ * packetlib implementation.
+ */
+public class ByteBufExtNetIOTest {
+    private static final int[] INTS = {
+            0, 1, 127, 128, 255, 256,
+            (1 << 14) - 1, 1 << 14,
+            (1 << 21) - 1, 1 << 21,
+            (1 << 28) - 1, 1 << 28,
+            Integer.MAX_VALUE, -1, -128, -(1 << 21), Integer.MIN_VALUE,
+    };
+    private static final long[] LONGS = {
+            0, 1, 127, 128,
+            (1L << 21) - 1, 1L << 21,
+            (1L << 28) - 1, 1L << 28,
+            (1L << 35) - 1, 1L << 35,
+            (1L << 56) - 1, 1L << 56,
+            (1L << 63) - 1, Integer.MAX_VALUE, Integer.MIN_VALUE, -1, Long.MIN_VALUE,
+    };
+
+    private static byte[] packetlibVarInt(int value) throws IOException {
+        ByteBuf buf = Unpooled.buffer();
+        new ByteBufNetOutput(buf).writeVarInt(value);
+        return ByteBufUtil.getBytes(buf);
+    }
+
+    private static byte[] packetlibVarLong(long value) throws IOException {
+        ByteBuf buf = Unpooled.buffer();
+        new ByteBufNetOutput(buf).writeVarLong(value);
+        return ByteBufUtil.getBytes(buf);
+    }
+
+    /**
+     * Returns buffers which contain the given bytes followed by {@code padding} more, covering both the fast path
+     * (array backed, enough readable bytes) and the fallbacks (no padding, direct buffer).
+     */
+    private static ByteBuf[] buffers(byte[] bytes, int padding) {
+        ByteBuf direct = Unpooled.directBuffer();
+        direct.writeBytes(bytes);
+        direct.writeZero(padding);
+        ByteBuf offset = Unpooled.wrappedBuffer(new byte[3 + bytes.length + padding], 3, bytes.length + padding);
+        offset.setBytes(0, bytes);
+        return new ByteBuf[]{
+                Unpooled.wrappedBuffer(bytes),
+                Unpooled.buffer().writeBytes(bytes).writeZero(padding),
+                offset,
+                direct,
+        };
+    }
+
+    @Test
+    public void testWriteVarInt() throws IOException {
+        for (int value : INTS) {
+            ByteBuf buf = Unpooled.buffer();
+            new ByteBufExtNetOutput(buf).writeVarInt(value);
+            assertArrayEquals("VarInt " + value, packetlibVarInt(value), ByteBufUtil.getBytes(buf));
+        }
+    }
+
+    @Test
+    public void testReadVarInt() throws IOException {
+        for (int value : INTS) {
+            byte[] bytes = packetlibVarInt(value);
+            for (ByteBuf buf : buffers(bytes, 5)) {
+                assertEquals("VarInt " + value, value, new ByteBufExtNetInput(buf).readVarInt());
+                assertEquals("Length of VarInt " + value, bytes.length, buf.readerIndex());
+                buf.release();
+            }
+        }
+    }
+
+    @Test
+    public void testWriteVarLong() throws IOException {
+        for (long value : LONGS) {
+            ByteBuf buf = Unpooled.buffer();
+            new ByteBufExtNetOutput(buf).writeVarLong(value);
+            assertArrayEquals("VarLong " + value, packetlibVarLong(value), ByteBufUtil.getBytes(buf));
+        }
+    }
+
+    @Test
+    public void testReadVarLong() throws IOException {
+        for (long value : LONGS) {
+            byte[] bytes = packetlibVarLong(value);
+            for (ByteBuf buf : buffers(bytes, 10)) {
+                assertEquals("VarLong " + value, value, new ByteBufExtNetInput(buf).readVarLong());
+                assertEquals("Length of VarLong " + value, bytes.length, buf.readerIndex());
+                buf.release();
+            }
+        }
+    }
+
+    @Test
+    public void testReadVarInts() throws IOException {
+        ByteBuf buf = Unpooled.buffer();
+        ByteBufNetOutput out = new ByteBufNetOutput(buf);
+        for (int value : INTS) {
+            out.writeVarInt(value);
+        }
+        // The last few values are read via the fallback because fewer than five bytes remain
+        int[] values = new int[INTS.length + 2];
+        new ByteBufExtNetInput(buf.copy()).readVarInts(values, 1, INTS.length);
+        assertArrayEquals(INTS, Arrays.copyOfRange(values, 1, INTS.length + 1));
+
+        int[] generic = new int[INTS.length];
+        Utils.readVarInts(new ByteBufNetInput(buf), generic, INTS.length);
+        assertArrayEquals(INTS, generic);
+    }
+}
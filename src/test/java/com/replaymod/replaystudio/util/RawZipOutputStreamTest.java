@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2021
+ *
+ * This file is part of ReplayStudio.
+ *
+ * ReplayStudio is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ReplayStudio is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with ReplayStudio.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class RawZipOutputStreamTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<String, byte[]> content() {
+        Random random = new Random(42);
+        Map<String, byte[]> content = new LinkedHashMap<>();
+        content.put("empty", new byte[0]);
+        content.put("small.json", "{\"hello\":\"world\"}".getBytes());
+        // Half random, half repetitive, spanning multiple blocks of the parallel deflater
+        byte[] large = new byte[ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE * 5 + 1234];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i % 2 == 0 ? random.nextInt() : i / 1000);
+        }
+        content.put("recording.tmcpr", large);
+        content.put("ünïcödé/name", new byte[]{1, 2, 3});
+        return content;
+    }
+
+    private File write(Map<String, byte[]> content, int threads) throws IOException {
+        File file = folder.newFile();
+        try (RawZipOutputStream out = new RawZipOutputStream(new FileOutputStream(file))) {
+            out.setCompressionThreads(threads, ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE);
+            for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+                try (OutputStream entryOut = out.putNextEntry(entry.getKey())) {
+                    entryOut.write(entry.getValue());
+                }
+            }
+        }
+        return file;
+    }
+
+    private static void assertReadableWithZipFile(Map<String, byte[]> content, File file) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertEquals(content.size(), zipFile.size());
+            for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+                ZipEntry zipEntry = zipFile.getEntry(entry.getKey());
+                assertNotNull("Missing " + entry.getKey(), zipEntry);
+                assertEquals(entry.getValue().length, zipEntry.getSize());
+                try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                    assertArrayEquals(entry.getValue(), ByteStreams.toByteArray(in));
+                }
+            }
+        }
+    }
+
+    private static void assertReadableWithZipInputStream(Map<String, byte[]> content, File file) throws IOException {
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(file))) {
+            for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+                ZipEntry zipEntry = in.getNextEntry();
+                assertNotNull("Missing " + entry.getKey(), zipEntry);
+                assertEquals(entry.getKey(), zipEntry.getName());
+                // ZipInputStream verifies the crc and sizes in the data descriptor once the entry has been read
+                assertArrayEquals(entry.getValue(), ByteStreams.toByteArray(in));
+            }
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test
+    public void testSingleThreaded() throws IOException {
+        Map<String, byte[]> content = content();
+        File file = write(content, 1);
+        assertReadableWithZipFile(content, file);
+        assertReadableWithZipInputStream(content, file);
+    }
+
+    @Test
+    public void testMultiThreaded() throws IOException {
+        Map<String, byte[]> content = content();
+        File file = write(content, 4);
+        assertReadableWithZipFile(content, file);
+        assertReadableWithZipInputStream(content, file);
+    }
+
+    @Test
+    public void testCopyEntry() throws IOException {
+        Map<String, byte[]> content = content();
+
+        // Source written by the JDK, with both deflated and stored entries
+        File source = folder.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(source))) {
+            boolean stored = false;
+            for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(entry.getValue());
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(entry.getValue().length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                stored = !stored;
+                out.putNextEntry(zipEntry);
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+
+        File copy = folder.newFile();
+        try (FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            ZipCentralDirectory sourceDirectory = ZipCentralDirectory.read(sourceChannel);
+            try (RawZipOutputStream out = new RawZipOutputStream(new FileOutputStream(copy))) {
+                for (ZipCentralDirectory.Entry entry : sourceDirectory.getEntries()) {
+                    out.copyEntry(sourceDirectory, entry);
+                }
+            }
+
+            try (FileChannel copyChannel = FileChannel.open(copy.toPath(), StandardOpenOption.READ)) {
+                ZipCentralDirectory copyDirectory = ZipCentralDirectory.read(copyChannel);
+                assertEquals(sourceDirectory.getEntries().size(), copyDirectory.getEntries().size());
+                for (ZipCentralDirectory.Entry sourceEntry : sourceDirectory.getEntries()) {
+                    ZipCentralDirectory.Entry copyEntry = copyDirectory.getEntry(sourceEntry.getName());
+                    assertNotNull("Missing " + sourceEntry.getName(), copyEntry);
+                    assertEquals(sourceEntry.getMethod(), copyEntry.getMethod());
+                    assertEquals(sourceEntry.getCrc(), copyEntry.getCrc());
+                    assertEquals(sourceEntry.getSize(), copyEntry.getSize());
+                    assertEquals(sourceEntry.getCompressedSize(), copyEntry.getCompressedSize());
+                    assertArrayEquals(rawData(sourceDirectory, sourceEntry), rawData(copyDirectory, copyEntry));
+                }
+            }
+        }
+
+        assertReadableWithZipFile(content, copy);
+        assertReadableWithZipInputStream(content, copy);
+    }
+
+    private static byte[] rawData(ZipCentralDirectory directory, ZipCentralDirectory.Entry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        directory.copyData(entry, out);
+        return out.toByteArray();
+    }
+}